@@ -1,7 +1,6 @@
 import colors from "colors";
-import axios from "axios";
-import NodeCache from "node-cache";
 import { getRequiredGitOrgs } from "../services/envService.js";
+import { findSupplementalPAT, getGitHubAuth } from "../services/authCacheService.js";
 import { Request, Response, NextFunction } from "express";
 
 // Define a new interface for user information
@@ -10,43 +9,6 @@ export interface UserInfo {
     username: string;
 }
 
-// Define a new interface for supplemental PATs
-export interface SupplementalPAT {
-    token: string;
-    nickname: string | null;
-}
-
-// Initialize cache with 1 minute TTL
-const cache = new NodeCache({ stdTTL: 60 });
-
-// Function to load supplemental PATs from environment variables
-function loadSupplementalPATs(): SupplementalPAT[] {
-    const supplementalPATsVal = process.env.ROS_SUPPLEMENTAL_PATS || "";
-    const stems = supplementalPATsVal
-        .split(",")
-        .map((stem) => stem.trim())
-        .filter((stem) => stem.length > 0);
-    
-    const pats: SupplementalPAT[] = [];
-    
-    for (const stem of stems) {
-        const patEnvVar = `ROS_SUPPLEMENTAL_${stem}`;
-        const patNameEnvVar = `ROS_SUPPLEMENTAL_${stem}_NAME`;
-        
-        const token = process.env[patEnvVar];
-        if (token) {
-            pats.push({
-                token,
-                nickname: process.env[patNameEnvVar] || null
-            });
-        } else {
-            console.log(colors.yellow(`[AUTH] Warning: Supplemental PAT environment variable ${patEnvVar} not found`));
-        }
-    }
-    
-    return pats;
-}
-
 export default async function validateAuthorization(
     req: Request,
     res: Response,
@@ -76,12 +38,13 @@ export default async function validateAuthorization(
     // Use provided token to get user's Git organizations
     const token = req.headers.authorization.split(" ")[1];
 
-    // Load supplemental PATs
-    const supplementalPATs = loadSupplementalPATs();
-    const matchedPAT = supplementalPATs.find(pat => pat.token === token);
-    
+    // Check supplemental PATs (parsed once, looked up by token hash)
+    const matchedPAT = findSupplementalPAT(token);
+
     if (matchedPAT) {
         // The token is a supplemental PAT which is authorized immediately
+        res.locals.caller = matchedPAT.nickname || "supplemental-pat";
+        res.locals.userInfo = await getUserInfo(token);
         console.log(
             colors.green(
                 `[AUTH] Request authorized from ${req.ip} - Supplemental PAT: ${matchedPAT.nickname || "unnamed"}`
@@ -105,46 +68,11 @@ export default async function validateAuthorization(
     }
 
     try {
-        // Check cache first for organizations
-        const cacheKey = `orgs_${token}`;
-        const cachedOrgs = cache.get<string[]>(cacheKey);
-        
-        let organizations: string[];
-        if (cachedOrgs) {
-            organizations = cachedOrgs;
-        } else {
-            const response = await axios.get("https://api.github.com/user/orgs", {
-                headers: {
-                    Authorization: `token ${token}`,
-                },
-            });
-
-            // Validate the response data is a JSON array
-            if (!Array.isArray(response.data)) {
-                const err = new Error(`Error authorizing request.`);
-                (err as any).status = 401;
-                console.log(
-                    colors.red(
-                        `[AUTH] Request denied from ${req.ip} - ${err.message} - Malformed response data`
-                    )
-                );
-                return next(err);
-            }
-
-            // Compose an array of this user's orgs from the 'login' field in each object of the array
-            organizations = response.data
-                .map((org: { login: string }) => org.login || "")
-                .filter((org) => org.length > 0);
-            
-            // Store in cache
-            cache.set(cacheKey, organizations);
-        }
-
+        // Organizations and user info, cached by token hash (see authCacheService)
+        const { organizations, userInfo } = await getGitHubAuth(token);
+        const userEmail = userInfo.email;
         const requiredOrgs = getRequiredGitOrgs();
 
-        // Require that we are able to fetch an email for this user
-        const userEmail = await getUserEmail(token);
-
         // Require presence in all of the required orgs
         if (!requiredOrgs.every((org) => organizations.includes(org))) {
             // Deny the request
@@ -158,6 +86,9 @@ export default async function validateAuthorization(
             return next(err);
         }
 
+        // Identifies the caller to the rest of the request, i.e. to share the queue fairly between users
+        res.locals.caller = userInfo.username;
+        res.locals.userInfo = userInfo;
         console.log(
             colors.green(
                 `[AUTH] Request authorized from ${req.ip} - ${userEmail}`
@@ -179,9 +110,8 @@ export default async function validateAuthorization(
 
 export async function getUserInfo(token: string): Promise<UserInfo> {
     // Check for supplemental PATs
-    const supplementalPATs = loadSupplementalPATs();
-    const matchedPAT = supplementalPATs.find(pat => pat.token === token);
-    
+    const matchedPAT = findSupplementalPAT(token);
+
     if (matchedPAT) {
         // This token is authorized as a supplemental PAT
         return {
@@ -190,56 +120,8 @@ export async function getUserInfo(token: string): Promise<UserInfo> {
         };
     }
 
-    // Check cache first for user info
-    const cacheKey = `userinfo_${token}`;
-    const cachedUserInfo = cache.get<UserInfo>(cacheKey);
-    
-    if (cachedUserInfo) {
-        return cachedUserInfo;
-    }
-
-    // Get username and email from GitHub API
-    const userResponse = await axios.get("https://api.github.com/user", {
-        headers: {
-            Authorization: `token ${token}`,
-        },
-    });
-
-    if (!userResponse.data || !userResponse.data.login) {
-        throw new Error(`Error: Could not retrieve GitHub username`);
-    }
-
-    const username = userResponse.data.login;
-
-    // Fetch email from the emails endpoint
-    const response = await axios.get("https://api.github.com/user/emails", {
-        headers: {
-            Authorization: `token ${token}`,
-        },
-    });
-
-    // Validate the response data is a JSON array
-    if (!Array.isArray(response.data)) {
-        throw new Error(`Error: Malformed email response data`);
-    }
-
-    // Find the primary email for this user
-    const primary = response.data.find(
-        (email: { primary: boolean; email: string }) => email.primary
-    );
-    if (!primary || !primary.email) {
-        throw new Error(`Error: No primary user email found`);
-    }
-    const email = primary.email;
-
-    const userInfo: UserInfo = {
-        email: email,
-        username: username
-    };
-
-    // Store in cache
-    cache.set(cacheKey, userInfo);
-    return userInfo;
+    // Cached with the token's organizations
+    return (await getGitHubAuth(token)).userInfo;
 }
 
 export async function getUserEmail(token: string): Promise<string> {
@@ -0,0 +1,17 @@
+import express, { Request, Response, NextFunction } from "express";
+// Services
+import { renderMetrics } from "../services/metricsService.js";
+
+const router = express.Router();
+
+// Prometheus scrape endpoint (text exposition format), authorized like any other route (i.e. with a supplemental PAT)
+router.get("/", async (_req: Request, res: Response, next: NextFunction) => {
+    try {
+        const body = await renderMetrics();
+        res.status(200).type("text/plain; version=0.0.4; charset=utf-8").send(body);
+    } catch (error) {
+        next(error);
+    }
+});
+
+export default router;
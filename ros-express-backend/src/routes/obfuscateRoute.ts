@@ -2,29 +2,77 @@ import express, { Request, Response, NextFunction } from "express";
 import multer from "multer";
 import colors from "colors";
 import fs from "fs";
+import path from "path";
+import crypto from "crypto";
+import { pipeline } from "stream/promises";
 // Service Methods
-import { Obfuscator } from "../services/obfuscators/Obfuscator.js";
 import { getObfuscator } from "../services/obfuscators/ObfuscatorLoader.js";
 import {
-    createJob,
+    Job,
     getJob,
-    updateJobStatus,
     cleanupJob,
+    onJobStatus,
+    setJobOutputSha256,
 } from "../services/jobService.js";
+import {
+    cancelObfuscation,
+    checkObfuscationAdmission,
+    submitObfuscation,
+} from "../services/obfuscationService.js";
 import { generateUUIDFragment } from "../services/obfuscators/allatori/AllatoriConfigGenerator.js";
-import { addToQueue, getQueueLength, getJobQueueIndex } from "../services/queueService.js";
+import {
+    QueueFullError,
+    getQueueLength,
+    getJobQueueIndex,
+    getJobEstimate,
+} from "../services/queueService.js";
+import {
+    parseManifest,
+    createSession,
+    getSession,
+    deleteSession,
+    storeEntryPack,
+    assembleJar,
+} from "../services/entryStoreService.js";
+import {
+    CHUNK_SIZE,
+    createUpload,
+    getUpload,
+    deleteUpload,
+    writeChunk,
+    verifyUpload,
+} from "../services/chunkedUploadService.js";
+import deleteTemp from "../services/ioService.js";
+import { createUploadStorage } from "../services/uploadService.js";
+import { getUploadsDir } from "../services/envService.js";
+import { downloadBytes } from "../services/metricsService.js";
+import { getResultKey, isResultStoreEnabled } from "../services/resultStoreService.js";
 
 const router = express.Router();
 
-// Configure multer to handle file uploads
+// Interval between status events on an open status stream (keeps proxies and client read timeouts happy)
+const STATUS_STREAM_HEARTBEAT_MS = 10000;
+// Maximum number of jar/config pairs accepted by a single batch request
+const MAX_BATCH_SIZE = 64;
+// Clients turned away by an overloaded queue are told to retry within this range
+const MIN_RETRY_AFTER_SECONDS = 1;
+const MAX_RETRY_AFTER_SECONDS = 3600;
+
+// Configure multer to handle file uploads (compressed parts are decompressed while they are received)
+// Jars are checked for an existing watermark as they are received, so the request doesn't have to read them again
+const UPLOADS_DIR = getUploadsDir();
 const upload = multer({
-    dest: process.env.ROS_UPLOADS_OBF_STORAGE || "uploads-obf/",
+    storage: createUploadStorage(UPLOADS_DIR, (file) =>
+        file.fieldname === "jar" ? getObfuscator().getWatermarkEntryName() : null
+    ),
 });
 
 // Define a type for the expected files structure
 interface RequestFiles {
     jar?: Express.Multer.File[];
     config?: Express.Multer.File[];
+    manifest?: Express.Multer.File[];
+    entries?: Express.Multer.File[];
 }
 
 // Express Endpoint (POST)
@@ -45,81 +93,310 @@ router.post(
         // Parse files from request
         const jarFile = files.jar[0];
         const configFile = files.config[0];
-        
-        // Extract requested_by parameter from query params if it exists
-        const requestedBy = req.query.requested_by as string | undefined;
 
-        // Obtain an obfuscator instance
-        const obfuscator: Obfuscator = getObfuscator();
+        if (!admitObfuscation(res, next, [{ jarName: jarFile.originalname, jarSize: jarFile.size }])) {
+            deleteTemp(jarFile);
+            deleteTemp(configFile);
+            return;
+        }
+        return queueObfuscation(req, res, next, jarFile, configFile);
+    }
+);
+
+// Delta Upload Endpoint (POST), step 1
+// The client sends a manifest of its jar entries (name + content hash), and we reply with the hashes we don't have
+router.post(
+    "/delta",
+    upload.fields([{ name: "manifest" }]),
+    async (req: Request, res: Response, next: NextFunction): Promise<void> => {
+        const files = req.files as RequestFiles;
+        if (!files || !files.manifest) {
+            const err = new Error(`You must provide a 'manifest' file field (type: json).`);
+            (err as any).status = 400; // Bad Request
+            return next(err);
+        }
+
+        const manifestFile = files.manifest[0];
+        try {
+            const { jarName, entries } = parseManifest(
+                fs.readFileSync(manifestFile.path, "utf8")
+            );
+            const { session, missing } = createSession(jarName, entries);
+            console.log(colors.gray(`[Delta] Session ${session.id} created, ${missing.length}/${entries.length} entries missing`));
+
+            res.status(200).json({
+                message: "Delta session created",
+                session_id: session.id,
+                missing: missing,
+            });
+        } catch (error) {
+            const err = new Error(`Invalid manifest: ${error instanceof Error ? error.message : error}`);
+            (err as any).status = 400;
+            next(err);
+        } finally {
+            deleteTemp(manifestFile);
+        }
+    }
+);
+
+// Delta Upload Endpoint (POST), step 2
+// The client sends the missing entries (as an entry pack) with its config, we rebuild the jar and queue it
+router.post(
+    "/delta/:sessionId",
+    upload.fields([{ name: "entries" }, { name: "config" }]),
+    async (req: Request, res: Response, next: NextFunction): Promise<void> => {
+        const files = (req.files || {}) as RequestFiles;
+        const packFile = files.entries ? files.entries[0] : undefined;
+        const session = getSession(req.params.sessionId);
+
+        if (!session || !files.config) {
+            const err = new Error(
+                !session ? "Delta session not found" : `You must provide a 'config' file field (type: xml).`
+            );
+            (err as any).status = !session ? 404 : 400;
+            if (packFile) deleteTemp(packFile);
+            if (files.config) deleteTemp(files.config[0]);
+            return next(err);
+        }
+        const configFile = files.config[0];
+
+        // Checked before the session is used up, so the client can send this request again
+        if (!admitObfuscation(res, next, [{ jarName: session.jarName }])) {
+            if (packFile) deleteTemp(packFile);
+            deleteTemp(configFile);
+            return;
+        }
+
+        let jarFile: Express.Multer.File;
+        try {
+            if (packFile) {
+                const expected = new Set(session.entries.map((entry) => entry.hash));
+                const stored = await storeEntryPack(packFile.path, expected);
+                console.log(colors.gray(`[Delta] Session ${session.id} received ${stored} entries`));
+            }
+
+            // Rebuild the jar next to the other uploads, and describe it like a multer upload
+            const jarPath = `${UPLOADS_DIR}${crypto.randomUUID()}`;
+            await assembleJar(session, jarPath);
+            const watermarkEntry = getObfuscator().getWatermarkEntryName();
+            jarFile = {
+                ...configFile,
+                fieldname: "jar",
+                originalname: session.jarName,
+                mimetype: "application/java-archive",
+                filename: path.basename(jarPath),
+                path: jarPath,
+                size: fs.statSync(jarPath).size,
+                sha256: await hashFile(jarPath),
+                // The manifest lists every entry of the jar
+                watermarked: session.entries.some((entry) => entry.name === watermarkEntry),
+            };
+        } catch (error) {
+            console.error(colors.red(`[Delta] Error rebuilding jar for session ${session.id}: ${error}`));
+            const err = new Error(`Failed to rebuild jar: ${error instanceof Error ? error.message : error}`);
+            (err as any).status = 400;
+            deleteTemp(configFile);
+            return next(err);
+        } finally {
+            deleteSession(session.id);
+            if (packFile) deleteTemp(packFile);
+        }
+
+        return queueObfuscation(req, res, next, jarFile, configFile);
+    }
+);
+
+// Resumable Upload Endpoint (POST), step 1
+// The client declares the jar's name, size, and SHA-256, and then sends it in chunks
+router.post(
+    "/uploads",
+    async (req: Request, res: Response, next: NextFunction): Promise<void> => {
+        const { file_name, size, sha256 } = req.body || {};
+        if (typeof file_name !== "string" || typeof size !== "number" || typeof sha256 !== "string") {
+            const err = new Error(`You must provide 'file_name', 'size', and 'sha256' fields.`);
+            (err as any).status = 400;
+            return next(err);
+        }
+
+        try {
+            const upload = createUpload(path.join(UPLOADS_DIR, "chunked"), file_name, size, sha256);
+            console.log(colors.gray(`[Upload] ${upload.id} created for ${upload.size} bytes`));
+            res.status(201).json({
+                message: "Upload created",
+                upload_id: upload.id,
+                chunk_size: CHUNK_SIZE,
+                received: upload.received,
+            });
+        } catch (error) {
+            next(error);
+        }
+    }
+);
+
+// Resumable Upload Endpoint (GET)
+// Reports how many bytes were received, so an interrupted client knows where to resume
+router.get(
+    "/uploads/:uploadId",
+    async (req: Request, res: Response, next: NextFunction): Promise<void> => {
+        const upload = getUpload(req.params.uploadId);
+        if (!upload) {
+            const err = new Error("Upload not found");
+            (err as any).status = 404;
+            return next(err);
+        }
+        res.status(200).json({
+            upload_id: upload.id,
+            size: upload.size,
+            received: upload.received,
+        });
+    }
+);
+
+// Resumable Upload Endpoint (PUT), step 2
+// Each chunk is sent as the raw request body, at `?offset=<received>`, with its SHA-256 in the `X-Chunk-SHA256` header
+router.put(
+    "/uploads/:uploadId",
+    async (req: Request, res: Response, next: NextFunction): Promise<void> => {
+        const upload = getUpload(req.params.uploadId);
+        const offset = Number(req.query.offset);
+        if (!upload || !Number.isSafeInteger(offset)) {
+            const err = new Error(!upload ? "Upload not found" : "A numeric 'offset' query parameter is required");
+            (err as any).status = !upload ? 404 : 400;
+            return next(err);
+        }
 
         try {
-            // Safety Check: ensure the jar is not already watermarked/obfuscated
-            if (
-                await obfuscator.isJarWatermarked(req, res, next, jarFile.path)
-            ) {
-                const err = new Error(
-                    "The provided jar file is already obfuscated."
-                );
+            const received = await writeChunk(upload, offset, String(req.headers["x-chunk-sha256"] || ""), req);
+            res.status(200).json({
+                upload_id: upload.id,
+                size: upload.size,
+                received: received,
+            });
+        } catch (error) {
+            // Tell the client where to resume from, alongside the error
+            res.setHeader("X-Upload-Received", String(upload.received));
+            next(error);
+        }
+    }
+);
+
+// Resumable Upload Endpoint (POST), step 3
+// Once every chunk arrived, the client sends its config, the whole jar is verified against its hash and queued
+router.post(
+    "/uploads/:uploadId/complete",
+    upload.fields([{ name: "config" }]),
+    async (req: Request, res: Response, next: NextFunction): Promise<void> => {
+        const files = (req.files || {}) as RequestFiles;
+        const chunkedUpload = getUpload(req.params.uploadId);
+        if (!chunkedUpload || !files.config) {
+            const err = new Error(
+                !chunkedUpload ? "Upload not found" : `You must provide a 'config' file field (type: xml).`
+            );
+            (err as any).status = !chunkedUpload ? 404 : 400;
+            if (files.config) deleteTemp(files.config[0]);
+            return next(err);
+        }
+        const configFile = files.config[0];
+
+        if (chunkedUpload.received !== chunkedUpload.size) {
+            const err = new Error(`Upload is incomplete (received ${chunkedUpload.received}/${chunkedUpload.size} bytes).`);
+            (err as any).status = 409;
+            deleteTemp(configFile);
+            return next(err);
+        }
+        // Checked before the upload is handed over to a job, so the client can send this request again
+        if (!admitObfuscation(res, next, [{ jarName: chunkedUpload.fileName, jarSize: chunkedUpload.size }])) {
+            deleteTemp(configFile);
+            return;
+        }
+        try {
+            if (!(await verifyUpload(chunkedUpload))) {
+                // Every chunk was verified, so the declared hash was wrong, the upload can't be resumed
+                deleteUpload(chunkedUpload.id);
+                const err = new Error("Upload does not match its SHA-256 hash.");
                 (err as any).status = 400;
+                deleteTemp(configFile);
                 return next(err);
             }
+        } catch (error) {
+            deleteTemp(configFile);
+            return next(error);
+        }
+
+        // Hand the file over to the job, and describe it like a multer upload
+        const jarPath = `${UPLOADS_DIR}${crypto.randomUUID()}`;
+        fs.renameSync(chunkedUpload.path, jarPath);
+        deleteUpload(chunkedUpload.id, false);
+        const jarFile: Express.Multer.File = {
+            ...configFile,
+            fieldname: "jar",
+            originalname: chunkedUpload.fileName,
+            mimetype: "application/java-archive",
+            filename: path.basename(jarPath),
+            path: jarPath,
+            size: chunkedUpload.size,
+            // Verified against the whole file above
+            sha256: chunkedUpload.sha256,
+            // Chunks arrive in separate requests, so the jar is checked here (only its central directory is read)
+            watermarked: await getObfuscator().isJarWatermarked(req, res, next, jarPath),
+        };
+
+        return queueObfuscation(req, res, next, jarFile, configFile);
+    }
+);
+
+// Batch Endpoint (POST)
+// Accepts several jar/config pairs in one request (paired by order), and queues one job per pair
+router.post(
+    "/batch",
+    upload.fields([{ name: "jar", maxCount: MAX_BATCH_SIZE }, { name: "config", maxCount: MAX_BATCH_SIZE }]),
+    async (req: Request, res: Response, next: NextFunction): Promise<void> => {
+        const files = (req.files || {}) as RequestFiles;
+        const jarFiles = files.jar || [];
+        const configFiles = files.config || [];
+        const rejectBatch = (message: string, status: number) => {
+            [...jarFiles, ...configFiles].forEach((file) => deleteTemp(file));
+            const err = new Error(message);
+            (err as any).status = status;
+            next(err);
+        };
 
-            // Create a Unique Request ID that identifies this obfuscation request and its log
-            const requestID = `${Date.now()}-${generateUUIDFragment()}`;
-            const outputPath = `${
-                process.env.ROS_UPLOADS_OBF_STORAGE || "uploads-obf/"
-            }${requestID}.jar`;
-
-            // Create job and store file paths
-            const job = createJob(
-                requestID,
-                jarFile.path,
-                configFile.path,
-                outputPath
+        if (jarFiles.length === 0 || jarFiles.length !== configFiles.length) {
+            return rejectBatch(
+                `You must provide matching 'jar' and 'config' file fields, one config per jar (types: jar & xml).`,
+                400
             );
+        }
 
-            // Add job to queue and get its position and size
-            const queueResult = addToQueue("obfuscate", {
-                id: requestID,
-                type: "obfuscate",
-                process: async () => {
-                    try {
-                        updateJobStatus(requestID, "processing");
-                        await obfuscator.obfuscate(
-                            req,
-                            res,
-                            next,
-                            jarFile,
-                            configFile,
-                            requestID,
-                            requestedBy
-                        );
-                        updateJobStatus(requestID, "completed");
-                    } catch (error) {
-                        console.error(
-                            colors.red(`Error in background obfuscation: ${error}`)
-                        );
-                        updateJobStatus(
-                            requestID,
-                            "failed",
-                            error instanceof Error ? error.message : String(error)
-                        );
-                    }
-                },
-            });
+        // Safety Check: nothing is queued unless every jar in the batch can be obfuscated
+        const watermarked = jarFiles.find((jarFile) => jarFile.watermarked);
+        if (watermarked) {
+            return rejectBatch(`The provided jar file is already obfuscated: ${watermarked.originalname}`, 400);
+        }
+        // Admitted as a whole, each jar waits behind the ones before it in the batch
+        const jars = jarFiles.map((jarFile) => ({ jarName: jarFile.originalname, jarSize: jarFile.size }));
+        if (!admitObfuscation(res, next, jars)) {
+            [...jarFiles, ...configFiles].forEach((file) => deleteTemp(file));
+            return;
+        }
 
-            console.log(colors.gray(`[Obfuscate] Request ${requestID} queued at position ${queueResult.index + 1}/${queueResult.size}`));
+        const jobs: Record<string, any>[] = [];
+        try {
+            jarFiles.forEach((jarFile, i) => jobs.push(enqueueObfuscation(req, res, jarFile, configFiles[i])));
+            console.log(colors.gray(`[Obfuscate] Batch of ${jobs.length} requests queued`));
 
-            // Return immediately with job ID and queue information
             res.status(202).json({
-                message: "Obfuscation job queued",
-                request_id: requestID,
-                status: job.status,
-                queue_index: queueResult.index,
-                total_queue_size: queueResult.size,
+                message: "Obfuscation jobs queued",
+                jobs: jobs,
             });
         } catch (error) {
-            console.error(colors.red(`Error starting obfuscation: ${error}`));
+            // Nothing of the batch is kept, so the client can send the whole batch again without duplicating jobs
+            jobs.forEach((job) => cancelObfuscation(job.request_id));
+            [...jarFiles, ...configFiles].forEach((file) => deleteTemp(file));
+            if (error instanceof QueueFullError) {
+                return rejectOverloaded(res, next, error);
+            }
+            console.error(colors.red(`Error starting batch obfuscation: ${error}`));
             const err = new Error(
                 "Error starting obfuscation. Please check the server logs."
             );
@@ -129,6 +406,134 @@ router.post(
     }
 );
 
+// Queues an obfuscation job for the uploaded jar and config, and replies with its request ID and queue position
+async function queueObfuscation(
+    req: Request,
+    res: Response,
+    next: NextFunction,
+    jarFile: Express.Multer.File,
+    configFile: Express.Multer.File
+): Promise<void> {
+    try {
+        // Safety Check: ensure the jar is not already watermarked/obfuscated (checked when it was received)
+        if (jarFile.watermarked) {
+            deleteTemp(jarFile);
+            deleteTemp(configFile);
+            const err = new Error(
+                "The provided jar file is already obfuscated."
+            );
+            (err as any).status = 400;
+            return next(err);
+        }
+
+        // Return immediately with job ID and queue information
+        res.status(202).json({
+            message: "Obfuscation job queued",
+            ...enqueueObfuscation(req, res, jarFile, configFile),
+        });
+    } catch (error) {
+        if (error instanceof QueueFullError) {
+            return rejectOverloaded(res, next, error);
+        }
+        console.error(colors.red(`Error starting obfuscation: ${error}`));
+        const err = new Error(
+            "Error starting obfuscation. Please check the server logs."
+        );
+        (err as any).status = 500;
+        next(err);
+    }
+}
+
+// Creates and queues the job for a single jar and config
+// Returns the job's request ID, status, and queue position (as sent to the client)
+function enqueueObfuscation(
+    req: Request,
+    res: Response,
+    jarFile: Express.Multer.File,
+    configFile: Express.Multer.File
+): Record<string, any> {
+    // Extract requested_by parameter from query params if it exists
+    const requestedBy = req.query.requested_by as string | undefined;
+
+    // Create a Unique Request ID that identifies this obfuscation request and its log
+    const requestID = `${Date.now()}-${generateUUIDFragment()}`;
+    const outputPath = `${UPLOADS_DIR}${requestID}.jar`;
+
+    // Create the job with everything needed to run it (any replica may), and queue it
+    const { job, index, size } = submitObfuscation(
+        requestID,
+        jarFile.path,
+        configFile.path,
+        outputPath,
+        {
+            jarName: jarFile.originalname,
+            jarSize: jarFile.size,
+            configName: configFile.originalname,
+            owner: res.locals.caller ?? "anonymous",
+            userInfo: res.locals.userInfo,
+            requestedBy,
+            resultKey: getJobResultKey(jarFile, configFile),
+        }
+    );
+
+    console.log(colors.gray(`[Obfuscate] Request ${requestID} queued at position ${index + 1}/${size}`));
+
+    return {
+        request_id: requestID,
+        status: job.status,
+        queue_index: index,
+        total_queue_size: size,
+        estimate: getEstimateBody(job),
+    };
+}
+
+// Turns the jobs (one, or a whole batch) away if the queue is overloaded (503, with a Retry-After), before their uploads are used up
+// Returns whether the jobs were admitted, the rejection has been passed on when they weren't
+function admitObfuscation(
+    res: Response,
+    next: NextFunction,
+    jars: { jarName: string; jarSize?: number }[]
+): boolean {
+    try {
+        checkObfuscationAdmission(res.locals.caller ?? "anonymous", jars);
+        return true;
+    } catch (error) {
+        if (error instanceof QueueFullError) {
+            rejectOverloaded(res, next, error);
+        } else {
+            next(error);
+        }
+        return false;
+    }
+}
+
+function rejectOverloaded(res: Response, next: NextFunction, error: QueueFullError): void {
+    const retryAfter = Math.min(
+        Math.max(Math.ceil(error.retryAfterMs / 1000), MIN_RETRY_AFTER_SECONDS),
+        MAX_RETRY_AFTER_SECONDS
+    );
+    console.log(colors.yellow(`[Obfuscate] Job turned away, retry in ${retryAfter}s: ${error.message}`));
+    res.setHeader("Retry-After", String(retryAfter));
+    next(error);
+}
+
+// Identifies the job's result by the jar's hash and the config's digest, so identical requests share one obfuscation
+function getJobResultKey(
+    jarFile: Express.Multer.File,
+    configFile: Express.Multer.File
+): string | undefined {
+    if (!isResultStoreEnabled() || !jarFile.sha256) {
+        return undefined;
+    }
+    try {
+        const configDigest = getObfuscator().getConfigDigest(configFile.path);
+        return configDigest ? getResultKey(jarFile.sha256, configDigest) : undefined;
+    } catch (error) {
+        // An invalid config fails when the job runs, as it always did
+        return undefined;
+    }
+}
+
 // Status check endpoint
 router.get(
     "/:requestId",
@@ -142,12 +547,6 @@ router.get(
             return next(err);
         }
 
-        // Get queue position if job is still in queue
-        let jobQueueIndex = -1;
-        if (job.status === "pending" || job.status === "processing") {
-            jobQueueIndex = getJobQueueIndex("obfuscate", requestId);
-        }
-
         if (job.status === "failed") {
             const err = new Error(job.error || "Obfuscation failed");
             (err as any).status = 500;
@@ -156,17 +555,75 @@ router.get(
         }
 
         // Return job status and queue information
-        res.status(200).json({
-            message: job.status === "completed" ? "Job completed successfully" : "Job is still processing",
-            request_id: requestId,
-            status: job.status,
-            queue_index: jobQueueIndex,
-            total_queue_size: getQueueLength("obfuscate")
-        });
+        res.status(200).json(getStatusBody(job));
+    }
+);
+
+// Status stream endpoint (Server-Sent Events)
+// Pushes a `status` event immediately, on every status change, and periodically with fresh queue information
+// The stream ends after the job completes or fails
+router.get(
+    "/:requestId/events",
+    async (req: Request, res: Response, next: NextFunction): Promise<void> => {
+        const requestId = req.params.requestId;
+        const job = getJob(requestId);
+
+        if (!job) {
+            const err = new Error("Job not found");
+            (err as any).status = 404;
+            return next(err);
+        }
+
+        res.status(200);
+        res.setHeader("Content-Type", "text/event-stream");
+        res.setHeader("Cache-Control", "no-cache");
+        res.setHeader("Connection", "keep-alive");
+        // Disable response buffering in reverse proxies (nginx), otherwise events arrive late
+        res.setHeader("X-Accel-Buffering", "no");
+        res.flushHeaders();
+
+        let closed = false;
+        let unsubscribe: () => void = () => {};
+        let heartbeat: NodeJS.Timeout | undefined = undefined;
+        const close = () => {
+            if (closed) return;
+            closed = true;
+            unsubscribe();
+            clearInterval(heartbeat);
+            res.end();
+        };
+
+        const sendStatus = (current: Job) => {
+            if (closed) return;
+            res.write(`event: status\ndata: ${JSON.stringify(getStatusBody(current))}\n\n`);
+            if (current.status === "failed") {
+                cleanupJob(requestId);
+            }
+            if (current.status === "completed" || current.status === "failed") {
+                close();
+            }
+        };
+
+        unsubscribe = onJobStatus(requestId, sendStatus);
+        heartbeat = setInterval(() => {
+            const current = getJob(requestId);
+            if (!current) {
+                close();
+                return;
+            }
+            sendStatus(current);
+        }, STATUS_STREAM_HEARTBEAT_MS);
+        req.on("close", close);
+
+        // Send the current state right away, the job may have already finished
+        sendStatus(job);
     }
 );
 
-// New endpoint for downloading the obfuscated jar
+// Download endpoint for the obfuscated jar
+// Supports single `Range: bytes=<start>-[<end>]` requests so interrupted downloads can resume,
+//  and sends the jar's SHA-256 in `X-Content-SHA256` so the client can verify what it received
+// The job is kept until the client acknowledges the download (DELETE), or the job expires
 router.get(
     "/:requestId/download",
     async (req: Request, res: Response, next: NextFunction): Promise<void> => {
@@ -186,32 +643,142 @@ router.get(
         }
 
         try {
+            const size = fs.statSync(job.outputPath).size;
+            if (!job.outputSha256) {
+                job.outputSha256 = await hashFile(job.outputPath);
+                setJobOutputSha256(requestId, job.outputSha256);
+            }
+
             // Set appropriate headers for file download
-            res.setHeader('Content-Type', 'application/java-archive');
-            res.setHeader('Content-Disposition', `attachment; filename="${requestId}.jar"`);
-            
-            // Stream the file
-            const fileStream = fs.createReadStream(job.outputPath);
-            fileStream.pipe(res);
+            res.setHeader("Content-Type", "application/java-archive");
+            res.setHeader("Content-Disposition", `attachment; filename="${requestId}.jar"`);
+            res.setHeader("Accept-Ranges", "bytes");
+            res.setHeader("X-Content-SHA256", job.outputSha256);
+            res.setHeader("ETag", `"${job.outputSha256}"`);
 
-            // Cleanup after streaming is complete
-            fileStream.on('end', () => {
-                cleanupJob(requestId);
-            });
+            let start = 0;
+            let end = size - 1;
+            const range = req.headers.range;
+            if (range) {
+                const match = /^bytes=(\d+)-(\d*)$/.exec(range);
+                const rangeStart = match ? Number(match[1]) : NaN;
+                const rangeEnd = match && match[2] ? Math.min(Number(match[2]), size - 1) : size - 1;
+                if (isNaN(rangeStart) || rangeStart >= size || rangeStart > rangeEnd) {
+                    res.status(416).setHeader("Content-Range", `bytes */${size}`);
+                    res.end();
+                    return;
+                }
+                start = rangeStart;
+                end = rangeEnd;
+                res.status(206).setHeader("Content-Range", `bytes ${start}-${end}/${size}`);
+            } else {
+                res.status(200);
+            }
+            res.setHeader("Content-Length", String(end - start + 1));
 
-            fileStream.on('error', (error) => {
+            // Stream the file
+            const fileStream = fs.createReadStream(job.outputPath, { start, end });
+            fileStream.on("error", (error) => {
                 console.error(colors.red(`Error streaming file: ${error}`));
-                cleanupJob(requestId);
                 next(error);
             });
+            // Counts what was sent, also when the client disconnects part way
+            fileStream.on("close", () => downloadBytes.inc({}, fileStream.bytesRead));
+            fileStream.pipe(res);
         } catch (error) {
             console.error(colors.red(`Error handling download: ${error}`));
-            cleanupJob(requestId);
             next(error);
         }
     }
 );
 
+// Acknowledges a finished job, deleting its files (jobs that are still queued or running can't be deleted)
+router.delete(
+    "/:requestId",
+    async (req: Request, res: Response, next: NextFunction): Promise<void> => {
+        const requestId = req.params.requestId;
+        const job = getJob(requestId);
+
+        if (!job) {
+            const err = new Error("Job not found");
+            (err as any).status = 404;
+            return next(err);
+        }
+        if (job.status === "pending" || job.status === "processing") {
+            const err = new Error("Job is still processing");
+            (err as any).status = 409;
+            return next(err);
+        }
+
+        cleanupJob(requestId);
+        res.status(204).end();
+    }
+);
+
+async function hashFile(filePath: string): Promise<string> {
+    const digest = crypto.createHash("sha256");
+    await pipeline(fs.createReadStream(filePath), digest);
+    return digest.digest("hex");
+}
+
+// Builds the JSON body describing a job's status and queue position
+function getStatusBody(job: Job): Record<string, any> {
+    // Get queue position if job is still in queue
+    let jobQueueIndex = -1;
+    if (job.status === "pending" || job.status === "processing") {
+        // A job attached to an identical one waits for it, so it is where that one is
+        jobQueueIndex = getJobQueueIndex("obfuscate", job.attachedTo ?? job.id);
+    }
+
+    const body: Record<string, any> = {
+        message: job.status === "completed" ? "Job completed successfully" : "Job is still processing",
+        request_id: job.id,
+        status: job.status,
+        queue_index: jobQueueIndex,
+        total_queue_size: getQueueLength("obfuscate"),
+        timings: getTimings(job),
+        estimate: getEstimateBody(job),
+    };
+    if (job.status === "failed") {
+        body.message = "Obfuscation failed";
+        body.error = job.error || "Obfuscation failed";
+    }
+    return body;
+}
+
+// Builds the timestamps of a job, and how long it spent in each phase (so far)
+// Lets clients tell time spent waiting in the queue apart from time spent obfuscating
+function getTimings(job: Job): Record<string, number | null> {
+    const now = Date.now();
+    return {
+        created_at: job.createdAt,
+        started_at: job.startedAt ?? null,
+        finished_at: job.finishedAt ?? null,
+        queue_ms: (job.startedAt ?? job.finishedAt ?? now) - job.createdAt,
+        processing_ms: job.startedAt ? (job.finishedAt ?? now) - job.startedAt : null,
+    };
+}
+
+// When the job is expected to start and finish, from the durations of past jobs (null once it finished, or if unknown)
+// Sent as times (epoch ms), and as delays from now that clients can use regardless of their clock
+function getEstimateBody(job: Job): Record<string, number> | null {
+    if (job.status !== "pending" && job.status !== "processing") {
+        return null;
+    }
+    // A job attached to an identical one finishes with it
+    const estimate = getJobEstimate("obfuscate", job.attachedTo ?? job.id);
+    if (!estimate) {
+        return null;
+    }
+    const now = Date.now();
+    return {
+        start_at: estimate.startAt,
+        finish_at: estimate.finishAt,
+        start_in_ms: Math.max(estimate.startAt - now, 0),
+        finish_in_ms: Math.max(estimate.finishAt - now, 0),
+    };
+}
+
 router.get("/", (_req: Request, res: Response) => {
     res.status(200).json({ message: "Obfuscation API is ready." });
 });
@@ -1,8 +1,12 @@
 import express, { Request, Response, NextFunction } from "express";
 import colors from "colors";
+import fs from "fs";
+import { Readable } from "stream";
 // Services
 import { Obfuscator } from "../services/obfuscators/Obfuscator.js";
 import { getObfuscator } from "../services/obfuscators/ObfuscatorLoader.js";
+import { getTraceCacheStats } from "../services/traceCacheService.js";
+import { openMappingLog } from "../services/mappingLogService.js";
 
 const router = express.Router();
 
@@ -44,9 +48,55 @@ router.post("/", async (req: Request, res: Response, next: NextFunction) => {
     }
 });
 
+// Mapping download endpoint (GET)
+// Lets clients translate stack traces locally, a request's mapping never changes so it only needs to be fetched once
+router.get(
+    "/:requestId/mapping",
+    async (req: Request, res: Response, next: NextFunction): Promise<void> => {
+        const requestId = req.params.requestId;
+        if (!/^[A-Za-z0-9-]+$/.test(requestId)) {
+            const err = new Error("Invalid request ID");
+            (err as any).status = 400;
+            return next(err);
+        }
+
+        // Obtain an obfuscator instance
+        const obfuscator: Obfuscator = getObfuscator();
+        const mapping = obfuscator.getMapping(requestId);
+        if (!mapping) {
+            const err = new Error(`No mapping found for requestID: ${requestId}`);
+            (err as any).status = 404;
+            return next(err);
+        }
+
+        res.setHeader("Content-Type", "application/xml");
+        res.setHeader("Content-Disposition", `attachment; filename="${requestId}.log"`);
+        res.setHeader("X-ROS-Mapping-Format", mapping.format);
+        res.setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        res.setHeader("Vary", "Accept-Encoding");
+
+        // Mappings are stored gzipped, clients that accept gzip get them as stored, others get them decompressed
+        const sendCompressed = mapping.compressed && req.acceptsEncodings("gzip") === "gzip";
+        if (sendCompressed) {
+            res.setHeader("Content-Encoding", "gzip");
+        }
+        const fileStream: Readable = sendCompressed
+            ? fs.createReadStream(mapping.path)
+            : openMappingLog(mapping);
+        fileStream.on("error", (error) => {
+            console.error(colors.red(`Error streaming mapping: ${error}`));
+            next(error);
+        });
+        fileStream.pipe(res);
+    }
+);
+
 // Simple GET endpoint
 router.get("/", (req: Request, res: Response) => {
-    res.status(200).json({ message: "Stack Trace API is ready." });
+    res.status(200).json({
+        message: "Stack Trace API is ready.",
+        cache: getTraceCacheStats(),
+    });
 });
 
 export default router;
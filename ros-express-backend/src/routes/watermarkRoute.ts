@@ -5,6 +5,7 @@ import colors from "colors";
 import { Obfuscator } from "../services/obfuscators/Obfuscator.js";
 import { getObfuscator } from "../services/obfuscators/ObfuscatorLoader.js";
 import deleteTemp from "../services/ioService.js";
+import { timeOperation } from "../services/metricsService.js";
 
 const router = express.Router();
 
@@ -42,11 +43,8 @@ router.post(
 
         try {
             // Attempt watermark extraction on the provided file
-            const data = await obfuscator.extractWatermark(
-                req,
-                res,
-                next,
-                jarFile.path
+            const data = await timeOperation("watermark_extract", () =>
+                obfuscator.extractWatermark(req, res, next, jarFile.path)
             );
             return res.status(200).json(data);
         } catch (error) {
@@ -9,6 +9,7 @@ import validateAuthorization from "./middleware/authorization.js";
 import obfuscateRoute from "./routes/obfuscateRoute.js";
 import watermarkRoute from "./routes/watermarkRoute.js";
 import stacktraceRoute from "./routes/stacktraceRoute.js";
+import metricsRoute from "./routes/metricsRoute.js";
 // Services
 import {
     getRequiredGitOrgs,
@@ -37,6 +38,7 @@ app.use(validateAuthorization);
 app.use("/api/obfuscate", obfuscateRoute);
 app.use("/api/watermark", watermarkRoute);
 app.use("/api/stacktrace", stacktraceRoute);
+app.use("/metrics", metricsRoute);
 app.use(notFound);
 
 // Below Routes (!)
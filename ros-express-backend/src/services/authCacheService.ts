@@ -0,0 +1,128 @@
+import crypto from "crypto";
+import colors from "colors";
+import { UserInfo } from "../middleware/authorization.js";
+import { getAuthCacheTTLSeconds, getAuthRefreshSeconds } from "./envService.js";
+import { getGitHubClient, GitHubTokenRejectedError } from "./github/GitHubClient.js";
+import { LruCache } from "./traceCacheService.js";
+import { authCacheLookups } from "./metricsService.js";
+
+export interface SupplementalPAT {
+    nickname: string | null;
+}
+
+// What GitHub says about a token, everything needed to authorize its requests
+export interface GitHubAuth {
+    organizations: string[];
+    userInfo: UserInfo;
+}
+
+interface CachedGitHubAuth extends GitHubAuth {
+    fetchedAt: number;
+}
+
+const MAX_CACHED_TOKENS = 10000;
+
+// By token hash, so tokens are never kept in memory longer than a request
+const authCache = new LruCache<CachedGitHubAuth>(MAX_CACHED_TOKENS, MAX_CACHED_TOKENS, () => 1);
+// Lookups in progress, so concurrent requests with the same token (i.e. status polls) share one set of GitHub calls
+const pendingLookups = new Map<string, Promise<CachedGitHubAuth>>();
+
+// Supplemental PATs by token hash, parsed once from the environment
+let supplementalPATs: Map<string, SupplementalPAT> | null = null;
+
+function hashToken(token: string): string {
+    return crypto.createHash("sha256").update(token).digest("hex");
+}
+
+function loadSupplementalPATs(): Map<string, SupplementalPAT> {
+    const supplementalPATsVal = process.env.ROS_SUPPLEMENTAL_PATS || "";
+    const stems = supplementalPATsVal
+        .split(",")
+        .map((stem) => stem.trim())
+        .filter((stem) => stem.length > 0);
+
+    const pats = new Map<string, SupplementalPAT>();
+
+    for (const stem of stems) {
+        const patEnvVar = `ROS_SUPPLEMENTAL_${stem}`;
+        const patNameEnvVar = `ROS_SUPPLEMENTAL_${stem}_NAME`;
+
+        const token = process.env[patEnvVar];
+        if (token) {
+            pats.set(hashToken(token), {
+                nickname: process.env[patNameEnvVar] || null
+            });
+        } else {
+            console.log(colors.yellow(`[AUTH] Warning: Supplemental PAT environment variable ${patEnvVar} not found`));
+        }
+    }
+
+    return pats;
+}
+
+/**
+ * @returns the supplemental PAT matching the token, or undefined if it isn't one
+ */
+export function findSupplementalPAT(token: string): SupplementalPAT | undefined {
+    if (!supplementalPATs) {
+        supplementalPATs = loadSupplementalPATs();
+    }
+    return supplementalPATs.get(hashToken(token));
+}
+
+/**
+ * Returns the token's organizations and user, cached for `ROS_AUTH_CACHE_TTL_SECONDS`.
+ * Cached results older than `ROS_AUTH_REFRESH_SECONDS` are still used, while they are refreshed in the background,
+ *  so a token GitHub no longer accepts is dropped from the cache by its next request after that.
+ * @throws {Error} If GitHub rejects the token, or can't be reached (and nothing is cached).
+ */
+export async function getGitHubAuth(token: string): Promise<GitHubAuth> {
+    const key = hashToken(token);
+    const cached = authCache.get(key);
+    const age = cached ? Date.now() - cached.fetchedAt : Infinity;
+
+    if (cached && age < getAuthCacheTTLSeconds() * 1000) {
+        const stale = age >= getAuthRefreshSeconds() * 1000;
+        authCacheLookups.inc({ result: stale ? "stale" : "hit" });
+        if (stale) {
+            lookUp(key, token).catch((error) => {
+                console.log(colors.yellow(`[AUTH] Background refresh of a cached token failed - ${(error as Error).message}`));
+            });
+        }
+        return cached;
+    }
+    authCacheLookups.inc({ result: "miss" });
+    return lookUp(key, token);
+}
+
+function lookUp(key: string, token: string): Promise<CachedGitHubAuth> {
+    let lookup = pendingLookups.get(key);
+    if (!lookup) {
+        lookup = fetchGitHubAuth(key, token).finally(() => pendingLookups.delete(key));
+        pendingLookups.set(key, lookup);
+    }
+    return lookup;
+}
+
+async function fetchGitHubAuth(key: string, token: string): Promise<CachedGitHubAuth> {
+    const client = getGitHubClient();
+    try {
+        const [organizations, user] = await Promise.all([
+            client.getOrganizations(token),
+            client.getUser(token),
+        ]);
+        const auth: CachedGitHubAuth = {
+            organizations,
+            userInfo: { email: user.email, username: user.username },
+            fetchedAt: Date.now(),
+        };
+        authCache.set(key, auth);
+        return auth;
+    } catch (error) {
+        // A revoked token must not keep working from the cache, but GitHub being unavailable shouldn't lock everyone out
+        if (error instanceof GitHubTokenRejectedError) {
+            authCache.delete(key);
+        }
+        throw error;
+    }
+}
@@ -0,0 +1,186 @@
+import fs from "fs";
+import path from "path";
+import crypto from "crypto";
+import colors from "colors";
+import { Readable, Transform } from "stream";
+import { pipeline } from "stream/promises";
+import { createRecordStore } from "./store/RecordStore.js";
+import { uploadBytes } from "./metricsService.js";
+
+// A resumable upload, created by the client before it sends the file in chunks
+export interface ChunkedUpload {
+    id: string;
+    fileName: string;
+    size: number;
+    sha256: string;
+    path: string;
+    // Bytes received (and verified) so far, chunks must be sent in order
+    received: number;
+    createdAt: number;
+    // When the last chunk was received, uploads are removed once they have been inactive for a while (not by their age)
+    lastActivityAt: number;
+}
+
+// Clients are told to send chunks of this size, every chunk is verified on its own
+export const CHUNK_SIZE = 8 * 1024 * 1024;
+const MAX_UPLOAD_SIZE = 4 * 1024 * 1024 * 1024;
+const HASH_REGEX = /^[a-f0-9]{64}$/;
+// Only one chunk may be written at a time, the writer holds the upload's lease (for at most this long)
+const CHUNK_LEASE_MS = 5 * 60 * 1000;
+
+// Kept in this process, or shared by every replica (see RecordStore), chunks may then arrive at any replica
+const uploads = createRecordStore<ChunkedUpload>("uploads");
+
+function createError(message: string, status: number): Error {
+    const err = new Error(message);
+    (err as any).status = status;
+    return err;
+}
+
+/**
+ * Creates a resumable upload for a file of a known size and hash.
+ * @throws {Error} If the size or hash is invalid.
+ */
+export function createUpload(
+    directory: string,
+    fileName: string,
+    size: number,
+    sha256: string
+): ChunkedUpload {
+    if (!Number.isSafeInteger(size) || size <= 0 || size > MAX_UPLOAD_SIZE) {
+        throw createError(`Upload size must be between 1 and ${MAX_UPLOAD_SIZE} bytes.`, 400);
+    }
+    if (!HASH_REGEX.test(sha256)) {
+        throw createError("Upload 'sha256' must be a hex SHA-256 hash.", 400);
+    }
+
+    fs.mkdirSync(directory, { recursive: true });
+    const id = crypto.randomUUID();
+    const upload: ChunkedUpload = {
+        id,
+        fileName,
+        size,
+        sha256,
+        path: path.join(directory, `${id}.part`),
+        received: 0,
+        createdAt: Date.now(),
+        lastActivityAt: Date.now(),
+    };
+    fs.writeFileSync(upload.path, Buffer.alloc(0));
+    uploads.put(upload);
+    return upload;
+}
+
+export function getUpload(uploadID: string): ChunkedUpload | undefined {
+    return uploads.get(uploadID);
+}
+
+/**
+ * Removes the upload session, and deletes its partial file unless it was handed off elsewhere.
+ */
+export function deleteUpload(uploadID: string, deleteFile: boolean = true): void {
+    const upload = uploads.get(uploadID);
+    if (!upload) {
+        return;
+    }
+    uploads.delete(uploadID);
+    if (deleteFile) {
+        fs.rm(upload.path, { force: true }, () => {});
+    }
+}
+
+/**
+ * Appends one chunk at the given offset, hashing it while it streams to disk.
+ * A chunk that does not match its hash (or is cut off) is discarded, so the client can simply re-send it.
+ * @returns the total number of bytes received so far
+ * @throws {Error} If the offset is not where the upload left off, or the chunk is invalid.
+ */
+export async function writeChunk(
+    upload: ChunkedUpload,
+    offset: number,
+    sha256: string,
+    source: Readable
+): Promise<number> {
+    if (!HASH_REGEX.test(sha256)) {
+        throw createError("Chunks require an 'X-Chunk-SHA256' header.", 400);
+    }
+    const writer = crypto.randomUUID();
+    if (!uploads.claim(upload.id, writer, CHUNK_LEASE_MS)) {
+        throw createError("Another chunk is still being written.", 409);
+    }
+    // Read again while holding the lease, a chunk may have been written since (possibly by another replica)
+    const current = uploads.get(upload.id);
+    if (!current) {
+        uploads.release(upload.id, writer);
+        throw createError("Upload not found", 404);
+    }
+    upload.received = current.received;
+    if (offset !== upload.received) {
+        uploads.release(upload.id, writer);
+        throw createError(`Expected a chunk at offset ${upload.received}.`, 409);
+    }
+
+    const digest = crypto.createHash("sha256");
+    let length = 0;
+    const verifier = new Transform({
+        transform(chunk: Buffer, _encoding, callback) {
+            length += chunk.length;
+            if (offset + length > upload.size) {
+                return callback(createError("Chunk exceeds the declared upload size.", 400));
+            }
+            digest.update(chunk);
+            callback(null, chunk);
+        },
+    });
+
+    try {
+        await pipeline(
+            source,
+            verifier,
+            fs.createWriteStream(upload.path, { flags: "r+", start: offset })
+        );
+        if (digest.digest("hex") !== sha256) {
+            throw createError("Chunk does not match its SHA-256 hash.", 400);
+        }
+        upload.received = offset + length;
+        upload.lastActivityAt = Date.now();
+        uploads.put(upload);
+        uploadBytes.inc({ kind: "chunk" }, length);
+        return upload.received;
+    } catch (error) {
+        // Drop whatever part of the chunk was written, the upload resumes from the last verified chunk
+        await fs.promises.truncate(upload.path, upload.received).catch(() => {});
+        throw error;
+    } finally {
+        uploads.release(upload.id, writer);
+    }
+}
+
+/**
+ * Verifies that every byte has been received, and that the whole file matches its declared hash.
+ */
+export async function verifyUpload(upload: ChunkedUpload): Promise<boolean> {
+    if (upload.received !== upload.size) {
+        return false;
+    }
+    const digest = crypto.createHash("sha256");
+    await pipeline(fs.createReadStream(upload.path), digest);
+    return digest.digest("hex") === upload.sha256;
+}
+
+// Cleanup uploads that received no chunk for more than 1 hour, a large upload over a slow link may take longer than that
+setInterval(() => {
+    const oneHourAgo = Date.now() - 60 * 60 * 1000;
+    let removed = 0;
+    for (const upload of uploads.list()) {
+        // Uploads created before activity was tracked only have their creation time
+        const lastActivityAt = upload.lastActivityAt ?? upload.createdAt;
+        if (lastActivityAt < oneHourAgo && !uploads.isClaimed(upload.id)) {
+            deleteUpload(upload.id);
+            removed++;
+        }
+    }
+    if (removed > 0) {
+        console.log(colors.gray(`[Upload] Removed ${removed} abandoned uploads`));
+    }
+}, 15 * 60 * 1000); // Run every 15 minutes
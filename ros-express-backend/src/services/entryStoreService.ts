@@ -0,0 +1,240 @@
+import fs from "fs";
+import path from "path";
+import crypto from "crypto";
+import colors from "colors";
+import { getEntryStoreDir, getEntryStoreTTLDays } from "./envService.js";
+import { ZipWriter } from "./zipService.js";
+import { createRecordStore } from "./store/RecordStore.js";
+
+// A single jar entry, identified by the SHA-256 of its uncompressed content
+export interface ManifestEntry {
+    name: string;
+    hash: string;
+}
+
+// A pending delta upload, created when a client sends its jar manifest
+interface DeltaSession {
+    id: string;
+    jarName: string;
+    entries: ManifestEntry[];
+    createdAt: number;
+}
+
+const HASH_REGEX = /^[a-f0-9]{64}$/;
+// Entry pack record header: 64 hex chars (hash) + 8 byte big-endian content length
+const PACK_HEADER_SIZE = 72;
+
+// Kept in this process, or shared by every replica (see RecordStore), so both steps may go to different replicas
+const sessions = createRecordStore<DeltaSession>("delta-sessions");
+
+function getEntryPath(hash: string): string {
+    // Shard by the first two hash characters, to keep directories small
+    return path.resolve(getEntryStoreDir(), hash.substring(0, 2), hash);
+}
+
+function isDirectoryEntry(entry: ManifestEntry): boolean {
+    return entry.name.endsWith("/");
+}
+
+/**
+ * Parses and validates a jar manifest sent by a client.
+ * @throws {Error} If the manifest is malformed.
+ */
+export function parseManifest(json: string): {
+    jarName: string;
+    entries: ManifestEntry[];
+} {
+    const manifest = JSON.parse(json);
+    if (
+        !manifest ||
+        typeof manifest.jar_name !== "string" ||
+        !Array.isArray(manifest.entries)
+    ) {
+        throw new Error("Manifest must contain 'jar_name' and 'entries'.");
+    }
+
+    const entries: ManifestEntry[] = manifest.entries.map((entry: any) => {
+        if (
+            !entry ||
+            typeof entry.name !== "string" ||
+            entry.name.length === 0 ||
+            typeof entry.hash !== "string" ||
+            !HASH_REGEX.test(entry.hash)
+        ) {
+            throw new Error("Manifest entries must contain a 'name' and a SHA-256 'hash'.");
+        }
+        return { name: entry.name, hash: entry.hash };
+    });
+    return { jarName: manifest.jar_name, entries };
+}
+
+/**
+ * Creates a delta upload session for this manifest.
+ * @returns the session, and the entry hashes the server does not have yet
+ */
+export function createSession(
+    jarName: string,
+    entries: ManifestEntry[]
+): { session: DeltaSession; missing: string[] } {
+    const session: DeltaSession = {
+        id: crypto.randomUUID(),
+        jarName,
+        entries,
+        createdAt: Date.now(),
+    };
+    sessions.put(session);
+
+    const now = new Date();
+    const missing = new Set<string>();
+    for (const entry of entries) {
+        if (isDirectoryEntry(entry) || missing.has(entry.hash)) {
+            continue;
+        }
+        const entryPath = getEntryPath(entry.hash);
+        if (fs.existsSync(entryPath)) {
+            // Touch the entry so that it is not pruned while it is still in use
+            fs.utimesSync(entryPath, now, now);
+        } else {
+            missing.add(entry.hash);
+        }
+    }
+    return { session, missing: [...missing] };
+}
+
+export function getSession(sessionID: string): DeltaSession | undefined {
+    return sessions.get(sessionID);
+}
+
+export function deleteSession(sessionID: string): void {
+    sessions.delete(sessionID);
+}
+
+/**
+ * Stores every entry in an uploaded entry pack, verifying each entry against its hash.
+ * An entry pack is a sequence of records: [hash (64 hex chars)][length (8 bytes, big-endian)][content]
+ * @returns the number of entries stored
+ * @throws {Error} If the pack is truncated, contains unexpected entries, or an entry does not match its hash.
+ */
+export async function storeEntryPack(
+    packPath: string,
+    expected: Set<string>
+): Promise<number> {
+    const handle = await fs.promises.open(packPath, "r");
+    const header = Buffer.alloc(PACK_HEADER_SIZE);
+    const chunk = Buffer.alloc(1024 * 1024);
+    let stored = 0;
+
+    try {
+        const { size } = await handle.stat();
+        let position = 0;
+        while (position < size) {
+            const { bytesRead } = await handle.read(header, 0, PACK_HEADER_SIZE, position);
+            if (bytesRead !== PACK_HEADER_SIZE) {
+                throw new Error("Truncated entry pack header");
+            }
+            position += PACK_HEADER_SIZE;
+
+            const hash = header.toString("ascii", 0, 64);
+            const length = Number(header.readBigUInt64BE(64));
+            if (!expected.has(hash)) {
+                throw new Error(`Unexpected entry in pack: ${hash}`);
+            }
+            if (position + length > size) {
+                throw new Error("Truncated entry pack data");
+            }
+
+            // Copy into a temporary file first, so that a bad entry never lands in the store
+            const dest = getEntryPath(hash);
+            const temp = `${dest}.${crypto.randomUUID()}.tmp`;
+            await fs.promises.mkdir(path.dirname(dest), { recursive: true });
+            const digest = crypto.createHash("sha256");
+            const out = await fs.promises.open(temp, "w");
+            try {
+                let remaining = length;
+                while (remaining > 0) {
+                    const read = (
+                        await handle.read(chunk, 0, Math.min(chunk.length, remaining), position)
+                    ).bytesRead;
+                    if (read <= 0) {
+                        throw new Error("Truncated entry pack data");
+                    }
+                    digest.update(chunk.subarray(0, read));
+                    await out.write(chunk, 0, read);
+                    position += read;
+                    remaining -= read;
+                }
+                await out.close();
+
+                if (digest.digest("hex") !== hash) {
+                    throw new Error(`Entry content does not match its hash: ${hash}`);
+                }
+                await fs.promises.rename(temp, dest);
+            } catch (error) {
+                await out.close().catch(() => {});
+                await fs.promises.rm(temp, { force: true });
+                throw error;
+            }
+            stored++;
+        }
+    } finally {
+        await handle.close();
+    }
+    return stored;
+}
+
+/**
+ * Rebuilds the jar described by a session from the entry store, keeping the original entry order.
+ * @throws {Error} If any entry is missing from the store.
+ */
+export async function assembleJar(
+    session: DeltaSession,
+    outputPath: string
+): Promise<void> {
+    const writer = new ZipWriter(outputPath);
+    try {
+        for (const entry of session.entries) {
+            if (isDirectoryEntry(entry)) {
+                await writer.addEntry(entry.name, Buffer.alloc(0));
+                continue;
+            }
+
+            const entryPath = getEntryPath(entry.hash);
+            if (!fs.existsSync(entryPath)) {
+                throw new Error(`Entry missing from store: ${entry.name} (${entry.hash})`);
+            }
+            await writer.addEntry(entry.name, await fs.promises.readFile(entryPath));
+        }
+    } finally {
+        writer.close();
+    }
+}
+
+// Cleanup sessions older than 1 hour, and entries that haven't been used within the TTL
+setInterval(() => {
+    const oneHourAgo = Date.now() - 60 * 60 * 1000;
+    for (const session of sessions.list()) {
+        if (session.createdAt < oneHourAgo) {
+            sessions.delete(session.id);
+        }
+    }
+
+    const storeDir = path.resolve(getEntryStoreDir());
+    if (!fs.existsSync(storeDir)) {
+        return;
+    }
+    const cutoff = Date.now() - getEntryStoreTTLDays() * 24 * 60 * 60 * 1000;
+    let pruned = 0;
+    for (const shard of fs.readdirSync(storeDir)) {
+        const shardDir = path.join(storeDir, shard);
+        for (const file of fs.readdirSync(shardDir)) {
+            const filePath = path.join(shardDir, file);
+            if (fs.statSync(filePath).mtimeMs < cutoff) {
+                fs.rmSync(filePath, { force: true });
+                pruned++;
+            }
+        }
+    }
+    if (pruned > 0) {
+        console.log(colors.gray(`[EntryStore] Pruned ${pruned} unused entries`));
+    }
+}, 15 * 60 * 1000); // Run every 15 minutes
@@ -1,4 +1,5 @@
 import fs from "fs";
+import os from "os";
 
 export function getRequiredGitOrgs(): string[] {
     const requiredOrgsStr: string = process.env.ROS_REQUIRED_ORGS || "";
@@ -16,6 +17,17 @@ export function getLogsStorageDir(): string {
     return process.env.ROS_LOG_STORAGE;
 }
 
+// Days obfuscation logs (needed to translate stack traces) are kept for, 0 keeps them forever
+export function getLogRetentionDays(): number {
+    const days = parseInt(process.env.ROS_LOG_RETENTION_DAYS || "365");
+    return isNaN(days) || days < 0 ? 365 : days;
+}
+
+// Where uploaded jars and configs (and the obfuscated jars) are kept until their job is cleaned up
+export function getUploadsDir(): string {
+    return process.env.ROS_UPLOADS_OBF_STORAGE || "uploads-obf/";
+}
+
 export function getDefaultObfuscatorPath(): string {
     return "/obfuscator/myObfuscator.jar";
 }
@@ -49,3 +61,132 @@ export function getObfuscatorType(): string {
     }
     return obfType;
 }
+
+export function getEntryStoreDir(): string {
+    if (!process.env.ROS_ENTRY_STORE || process.env.ROS_ENTRY_STORE === "") {
+        return "entry-store/";
+    }
+    return process.env.ROS_ENTRY_STORE;
+}
+
+export function getEntryStoreTTLDays(): number {
+    const days = parseInt(process.env.ROS_ENTRY_STORE_TTL_DAYS || "7");
+    return isNaN(days) || days <= 0 ? 7 : days;
+}
+
+// Heap given to each obfuscator JVM (-Xmx), and reserved for every running job
+export function getJobHeapMB(): number {
+    const heap = parseInt(process.env.ROS_JOB_HEAP_MB || "1024");
+    return isNaN(heap) || heap <= 0 ? 1024 : heap;
+}
+
+// How long a job may run, a job that takes longer is cancelled (its obfuscator JVM is killed) and fails
+export function getJobTimeoutMs(): number {
+    const timeout = parseInt(process.env.ROS_JOB_TIMEOUT_MS || "600000");
+    return isNaN(timeout) || timeout <= 0 ? 600000 : timeout;
+}
+
+// Memory available to running jobs, defaults to 75% of the system memory (the rest is left to node and the OS)
+export function getJobMemoryBudgetMB(): number {
+    const budget = parseInt(process.env.ROS_JOB_MEMORY_MB || "");
+    if (!isNaN(budget) && budget > 0) {
+        return budget;
+    }
+    return Math.floor((os.totalmem() / (1024 * 1024)) * 0.75);
+}
+
+// Concurrent workers of a queue (i.e. `ROS_OBFUSCATE_WORKERS`), defaults to one per core, as far as the memory budget allows
+export function getQueueWorkers(type: string, memoryPerJobMB: number): number {
+    const workers = parseInt(process.env[`ROS_${type.toUpperCase()}_WORKERS`] || "");
+    if (!isNaN(workers) && workers > 0) {
+        return workers;
+    }
+    const byMemory = memoryPerJobMB > 0 ? Math.floor(getJobMemoryBudgetMB() / memoryPerJobMB) : Infinity;
+    return Math.max(1, Math.min(os.availableParallelism(), byMemory));
+}
+
+// The obfuscator daemon jar (see ros-obfuscator-daemon), jobs fork a new JVM each when it isn't set
+export function getDaemonPath(): string | null {
+    const daemonPath = process.env.ROS_DAEMON_PATH || "";
+    if (daemonPath === "" || !fs.existsSync(daemonPath) || !fs.lstatSync(daemonPath).isFile()) {
+        return null;
+    }
+    return daemonPath;
+}
+
+// Jobs a daemon runs before it is replaced, so state left behind by the obfuscator can't build up
+export function getDaemonMaxJobs(): number {
+    const jobs = parseInt(process.env.ROS_DAEMON_MAX_JOBS || "100");
+    return isNaN(jobs) || jobs <= 0 ? 100 : jobs;
+}
+
+// Memory for cached stack trace translations, repeated traces are answered from it
+export function getTraceCacheMB(): number {
+    const size = parseInt(process.env.ROS_TRACE_CACHE_MB || "64");
+    return isNaN(size) || size < 0 ? 64 : size;
+}
+
+// How waiting jobs are ordered: "fair" (shared between users), "sjf" (shortest first), or "fifo"
+export function getQueueSchedulerType(): string {
+    return process.env.ROS_QUEUE_SCHEDULER || "fair";
+}
+
+// Jobs that waited this long are started before any other, whatever the scheduler
+export function getQueueMaxWaitMs(): number {
+    const wait = parseInt(process.env.ROS_QUEUE_MAX_WAIT_MS || "900000");
+    return isNaN(wait) || wait <= 0 ? 900000 : wait;
+}
+
+// New jobs expected to wait longer than this are turned away (503, with a Retry-After), 0 accepts every job until the queue is full
+export function getQueueAdmissionMaxWaitMs(): number {
+    const wait = parseInt(process.env.ROS_QUEUE_ADMISSION_MAX_WAIT_MS || "1800000");
+    return isNaN(wait) || wait < 0 ? 1800000 : wait;
+}
+
+// Where jobs and uploads are kept: "memory" (this process only), or "file" (ROS_STORE_DIR, shared by every replica)
+export function getStoreType(): string {
+    return (process.env.ROS_STORE || "memory").toLowerCase();
+}
+
+export function getStoreDir(): string {
+    if (!process.env.ROS_STORE_DIR || process.env.ROS_STORE_DIR === "") {
+        return "store/";
+    }
+    return process.env.ROS_STORE_DIR;
+}
+
+// The GitHub API that tokens are checked against, i.e. a fake one for local testing
+export function getGitHubApiUrl(): string {
+    return (process.env.ROS_GITHUB_API_URL || "https://api.github.com").replace(/\/+$/, "");
+}
+
+// How long a token's organizations and user stay cached, a revoked token (or one that left an organization) is accepted until then
+export function getAuthCacheTTLSeconds(): number {
+    const ttl = parseInt(process.env.ROS_AUTH_CACHE_TTL_SECONDS || "60");
+    return isNaN(ttl) || ttl < 0 ? 60 : ttl;
+}
+
+// Cached tokens older than this are refreshed in the background, while the cached result is still used
+export function getAuthRefreshSeconds(): number {
+    const refresh = parseInt(process.env.ROS_AUTH_REFRESH_SECONDS || "30");
+    return isNaN(refresh) || refresh < 0 ? 30 : refresh;
+}
+
+// Where results of recent jobs are kept, so identical requests are served without obfuscating again
+export function getResultStoreDir(): string {
+    if (!process.env.ROS_RESULT_STORE || process.env.ROS_RESULT_STORE === "") {
+        return "result-store/";
+    }
+    return process.env.ROS_RESULT_STORE;
+}
+
+// Disk space for stored results (least recently used are removed first), 0 disables deduplication
+export function getResultStoreMB(): number {
+    const size = parseInt(process.env.ROS_RESULT_STORE_MB || "2048");
+    return isNaN(size) || size < 0 ? 2048 : size;
+}
+
+export function getResultStoreTTLHours(): number {
+    const hours = parseInt(process.env.ROS_RESULT_STORE_TTL_HOURS || "24");
+    return isNaN(hours) || hours <= 0 ? 24 : hours;
+}
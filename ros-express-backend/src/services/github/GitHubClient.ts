@@ -0,0 +1,93 @@
+import axios from "axios";
+import { getGitHubApiUrl } from "../envService.js";
+import { gitHubRequests } from "../metricsService.js";
+
+/**
+ * The GitHub API calls used to authorize requests.
+ * Replace it with `setGitHubClient` (i.e. with a fake in local tests), or point it at another server with `ROS_GITHUB_API_URL`.
+ */
+export interface GitHubClient {
+    // Logins of the organizations the token's user is a member of
+    getOrganizations(token: string): Promise<string[]>;
+    // The token user's login and primary email
+    getUser(token: string): Promise<{ username: string; email: string }>;
+}
+
+/**
+ * Thrown when GitHub rejects the token itself (revoked or expired), as opposed to GitHub being unavailable or rate limiting (403).
+ */
+export class GitHubTokenRejectedError extends Error {}
+
+export class HttpGitHubClient implements GitHubClient {
+    constructor(private readonly apiUrl: string) {}
+
+    async getOrganizations(token: string): Promise<string[]> {
+        const data = await this.get("/user/orgs", token);
+
+        // Validate the response data is a JSON array
+        if (!Array.isArray(data)) {
+            throw new Error(`Error: Malformed organizations response data`);
+        }
+
+        // Compose an array of this user's orgs from the 'login' field in each object of the array
+        return data
+            .map((org: { login: string }) => org.login || "")
+            .filter((org) => org.length > 0);
+    }
+
+    async getUser(token: string): Promise<{ username: string; email: string }> {
+        const user = await this.get("/user", token);
+        if (!user || !user.login) {
+            throw new Error(`Error: Could not retrieve GitHub username`);
+        }
+
+        // Fetch email from the emails endpoint
+        const emails = await this.get("/user/emails", token);
+
+        // Validate the response data is a JSON array
+        if (!Array.isArray(emails)) {
+            throw new Error(`Error: Malformed email response data`);
+        }
+
+        // Find the primary email for this user
+        const primary = emails.find(
+            (email: { primary: boolean; email: string }) => email.primary
+        );
+        if (!primary || !primary.email) {
+            throw new Error(`Error: No primary user email found`);
+        }
+        return { username: user.login, email: primary.email };
+    }
+
+    private async get(endpoint: string, token: string): Promise<any> {
+        try {
+            const response = await axios.get(`${this.apiUrl}${endpoint}`, {
+                headers: {
+                    Authorization: `token ${token}`,
+                },
+            });
+            gitHubRequests.inc({ endpoint, status: String(response.status) });
+            return response.data;
+        } catch (error) {
+            const status = axios.isAxiosError(error) ? error.response?.status : undefined;
+            gitHubRequests.inc({ endpoint, status: status ? String(status) : "error" });
+            if (status === 401) {
+                throw new GitHubTokenRejectedError(`GitHub rejected the token on ${endpoint}`);
+            }
+            throw error;
+        }
+    }
+}
+
+let client: GitHubClient | null = null;
+
+export function getGitHubClient(): GitHubClient {
+    if (!client) {
+        client = new HttpGitHubClient(getGitHubApiUrl());
+    }
+    return client;
+}
+
+export function setGitHubClient(replacement: GitHubClient): void {
+    client = replacement;
+}
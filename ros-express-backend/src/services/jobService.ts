@@ -1,23 +1,58 @@
 import fs from "fs";
 import path from "path";
 import colors from "colors";
+import { EventEmitter } from "events";
+import { UserInfo } from "../middleware/authorization.js";
+import { createRecordStore, isSharedStore } from "./store/RecordStore.js";
 
-interface Job {
+export interface Job {
     id: string;
     status: "pending" | "processing" | "completed" | "failed";
     error?: string;
     jarPath?: string;
     configPath?: string;
     outputPath?: string;
+    // SHA-256 of the obfuscated jar, computed on the first download
+    outputSha256?: string;
+    // Timestamps (epoch ms) of when the job was queued, started processing, and completed or failed
+    createdAt: number;
+    startedAt?: number;
+    finishedAt?: number;
+    // Everything needed to run the job, kept with it so any replica can run it
+    details?: JobDetails;
+    // An identical job (same result key) this one waits for, it is served the other job's result once that completes
+    attachedTo?: string;
 }
 
-const jobs = new Map<string, Job>();
+export interface JobDetails {
+    jarName: string;
+    jarSize: number;
+    configName: string;
+    // Who submitted the job (user or supplemental PAT name), and who it is watermarked for
+    owner: string;
+    userInfo: UserInfo;
+    requestedBy?: string;
+    // Identifies the job's result (by jar and config), identical requests share it (see resultStoreService)
+    resultKey?: string;
+}
+
+// Kept in this process, or shared by every replica (see RecordStore)
+const jobs = createRecordStore<Job>("jobs");
+
+// Emits a `status` event (named by request ID) whenever a job's status changes
+const jobEvents = new EventEmitter();
+// Each status stream registers one listener, so don't warn about many concurrent listeners
+jobEvents.setMaxListeners(0);
+// The last status emitted for each job, so changes made by other replicas are only emitted once
+const emittedStatus = new Map<string, Job["status"]>();
 
 export function createJob(
     requestID: string,
     jarPath: string,
     configPath: string,
-    outputPath: string
+    outputPath: string,
+    details?: JobDetails,
+    attachedTo?: string
 ): Job {
     const job: Job = {
         id: requestID,
@@ -25,8 +60,11 @@ export function createJob(
         jarPath,
         configPath,
         outputPath,
+        createdAt: Date.now(),
+        details,
+        attachedTo,
     };
-    jobs.set(requestID, job);
+    jobs.put(job);
     return job;
 }
 
@@ -45,11 +83,76 @@ export function updateJobStatus(
         return;
     }
     job.status = status;
+    if (status === "pending") {
+        // Back in the queue, i.e. after the replica running it was lost
+        job.startedAt = undefined;
+    } else if (status === "processing") {
+        job.startedAt = Date.now();
+    } else if (status === "completed" || status === "failed") {
+        job.finishedAt = Date.now();
+    }
     if (error) {
         job.error = error;
     }
     console.log(colors.gray(`[Job] ${requestID} status updated to ${status}`));
-    jobs.set(requestID, job);
+    jobs.put(job);
+    if (jobEvents.listenerCount(requestID) > 0) {
+        emittedStatus.set(requestID, status);
+    }
+    jobEvents.emit(requestID, job);
+}
+
+export function setJobOutputSha256(requestID: string, sha256: string): void {
+    const job = jobs.get(requestID);
+    if (job) {
+        job.outputSha256 = sha256;
+        jobs.put(job);
+    }
+}
+
+/**
+ * Attaches a pending job to an identical job (or detaches it, when undefined), see Job.attachedTo.
+ */
+export function attachJob(requestID: string, attachedTo: string | undefined): void {
+    const job = jobs.get(requestID);
+    if (job) {
+        job.attachedTo = attachedTo;
+        jobs.put(job);
+    }
+}
+
+export function listJobs(): Job[] {
+    return jobs.list();
+}
+
+/**
+ * Takes (or renews) the lease on a job, only the lease holder may run it.
+ * @returns false if another replica holds the lease
+ */
+export function claimJob(requestID: string, owner: string, leaseMs: number): boolean {
+    return jobs.claim(requestID, owner, leaseMs);
+}
+
+export function releaseJob(requestID: string, owner: string): void {
+    jobs.release(requestID, owner);
+}
+
+export function isJobClaimed(requestID: string): boolean {
+    return jobs.isClaimed(requestID);
+}
+
+/**
+ * Subscribes to status changes of a single job.
+ * @returns a function that removes the listener
+ */
+export function onJobStatus(
+    requestID: string,
+    listener: (job: Job) => void
+): () => void {
+    jobEvents.on(requestID, listener);
+    return () => {
+        jobEvents.off(requestID, listener);
+    };
 }
 
 export function cleanupJob(requestID: string): void {
@@ -80,16 +183,47 @@ export function cleanupJob(requestID: string): void {
         });
     }
 
+    if (job.outputPath) {
+        fs.unlink(job.outputPath, (err) => {
+            if (err && err.code !== "ENOENT") {
+                console.error(
+                    colors.yellow(`Error deleting output file: ${job.outputPath}`)
+                );
+            }
+        });
+    }
+
     jobs.delete(requestID);
 }
 
-// Cleanup jobs older than 1 hour
+// Cleanup jobs that completed or failed over 1 hour ago, jobs still pending or processing are kept (with their files)
 setInterval(() => {
     const oneHourAgo = Date.now() - 60 * 60 * 1000;
-    for (const [requestID, job] of jobs.entries()) {
-        const jobTimestamp = parseInt(requestID.split("-")[0]);
-        if (jobTimestamp < oneHourAgo) {
-            cleanupJob(requestID);
+    for (const job of jobs.list()) {
+        if (job.status !== "completed" && job.status !== "failed") {
+            continue;
+        }
+        if ((job.finishedAt ?? job.createdAt) < oneHourAgo) {
+            cleanupJob(job.id);
         }
     }
 }, 15 * 60 * 1000); // Run every 15 minutes
+
+// Jobs run by other replicas only change in the store, so jobs with status listeners are checked every second
+if (isSharedStore()) {
+    setInterval(() => {
+        for (const requestID of emittedStatus.keys()) {
+            if (jobEvents.listenerCount(requestID) === 0) {
+                emittedStatus.delete(requestID);
+            }
+        }
+        for (const name of jobEvents.eventNames()) {
+            const requestID = String(name);
+            const job = jobs.get(requestID);
+            if (job && job.status !== emittedStatus.get(requestID)) {
+                emittedStatus.set(requestID, job.status);
+                jobEvents.emit(requestID, job);
+            }
+        }
+    }, 1000);
+}
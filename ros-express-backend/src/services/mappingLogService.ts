@@ -0,0 +1,166 @@
+import fs from "fs";
+import path from "path";
+import zlib from "zlib";
+import crypto from "crypto";
+import colors from "colors";
+import stream, { Readable } from "stream";
+import { pipeline } from "stream/promises";
+import { getLogRetentionDays, getLogsStorageDir } from "./envService.js";
+
+/**
+ * Keeps obfuscation logs (the mappings stack traces are translated with) gzipped, in a directory per day (UTC):
+ *  `<ROS_LOG_STORAGE>/YYYY/MM/DD/<requestID>.log.gz`. Request IDs start with the time they were made, so a log is
+ *  found from its request ID alone, and a day's logs are removed together once they are older than ROS_LOG_RETENTION_DAYS.
+ * Logs stored before (uncompressed, directly in ROS_LOG_STORAGE) are still found, and pruned by their age.
+ */
+
+export interface MappingLog {
+    path: string;
+    compressed: boolean;
+}
+
+// `${Date.now()}-${uuidFragment}`
+const REQUEST_ID_REGEX = /^(\d+)-[A-Za-z0-9-]+$/;
+const DAY_MS = 24 * 60 * 60 * 1000;
+
+function getDayDir(requestID: string): string | null {
+    const match = REQUEST_ID_REGEX.exec(requestID);
+    const date = match ? new Date(Number(match[1])) : null;
+    if (!date || isNaN(date.getTime())) {
+        return null;
+    }
+    return path.resolve(
+        getLogsStorageDir(),
+        String(date.getUTCFullYear()),
+        String(date.getUTCMonth() + 1).padStart(2, "0"),
+        String(date.getUTCDate()).padStart(2, "0")
+    );
+}
+
+/**
+ * @returns the request's log, or null if none is stored (or the request ID isn't one of ours)
+ */
+export function findMappingLog(requestID: string): MappingLog | null {
+    const dayDir = getDayDir(requestID);
+    if (!dayDir) {
+        return null;
+    }
+    const logPath = path.join(dayDir, `${requestID}.log.gz`);
+    if (fs.existsSync(logPath)) {
+        return { path: logPath, compressed: true };
+    }
+    const legacyPath = path.resolve(getLogsStorageDir(), `${requestID}.log`);
+    if (fs.existsSync(legacyPath)) {
+        return { path: legacyPath, compressed: false };
+    }
+    return null;
+}
+
+/**
+ * Compresses a request's log into the storage. The log is renamed into place whole, so it is never read half written.
+ * @returns the stored log's path
+ */
+export async function storeMappingLog(requestID: string, logPath: string): Promise<string> {
+    const dayDir = getDayDir(requestID);
+    if (!dayDir) {
+        throw new Error(`Invalid request ID: '${requestID}'`);
+    }
+    await fs.promises.mkdir(dayDir, { recursive: true });
+    const destination = path.join(dayDir, `${requestID}.log.gz`);
+    const tempPath = `${destination}.${crypto.randomUUID()}.tmp`;
+    try {
+        await pipeline(fs.createReadStream(logPath), zlib.createGzip(), fs.createWriteStream(tempPath));
+        await fs.promises.rename(tempPath, destination);
+    } finally {
+        await fs.promises.rm(tempPath, { force: true });
+    }
+    return destination;
+}
+
+/**
+ * Reads a log, decompressed as it is read.
+ */
+export function openMappingLog(log: MappingLog): Readable {
+    const fileStream = fs.createReadStream(log.path);
+    if (!log.compressed) {
+        return fileStream;
+    }
+    // The pipeline destroys the returned stream with an error of either stream, so it is emitted there
+    return stream.pipeline(fileStream, zlib.createGunzip(), () => undefined);
+}
+
+/**
+ * Decompresses a log to a file, for tools that read it from disk (StackTrace2).
+ */
+export async function extractMappingLog(log: MappingLog, destination: string): Promise<void> {
+    if (!log.compressed) {
+        await fs.promises.copyFile(log.path, destination);
+        return;
+    }
+    await pipeline(fs.createReadStream(log.path), zlib.createGunzip(), fs.createWriteStream(destination));
+}
+
+async function listDirs(directory: string, nameRegex: RegExp): Promise<string[]> {
+    const entries = await fs.promises.readdir(directory, { withFileTypes: true }).catch((): fs.Dirent[] => []);
+    return entries.filter((entry) => entry.isDirectory() && nameRegex.test(entry.name)).map((entry) => entry.name);
+}
+
+// Removes a directory only if it is empty (i.e. a month whose days were all pruned)
+async function removeIfEmpty(directory: string): Promise<void> {
+    await fs.promises.rmdir(directory).catch(() => undefined);
+}
+
+/**
+ * Removes the days of logs that ended before ROS_LOG_RETENTION_DAYS, and older uncompressed logs.
+ */
+export async function pruneMappingLogs(): Promise<void> {
+    const retentionDays = getLogRetentionDays();
+    const logsDir = path.resolve(getLogsStorageDir());
+    if (retentionDays === 0 || !fs.existsSync(logsDir)) {
+        return;
+    }
+    const cutoff = Date.now() - retentionDays * DAY_MS;
+    let pruned = 0;
+
+    for (const year of await listDirs(logsDir, /^\d{4}$/)) {
+        const yearDir = path.join(logsDir, year);
+        for (const month of await listDirs(yearDir, /^\d{2}$/)) {
+            const monthDir = path.join(yearDir, month);
+            for (const day of await listDirs(monthDir, /^\d{2}$/)) {
+                const dayEnd = Date.UTC(Number(year), Number(month) - 1, Number(day) + 1);
+                if (dayEnd > cutoff) {
+                    continue;
+                }
+                const dayDir = path.join(monthDir, day);
+                pruned += (await fs.promises.readdir(dayDir).catch((): string[] => [])).length;
+                await fs.promises.rm(dayDir, { recursive: true, force: true });
+            }
+            await removeIfEmpty(monthDir);
+        }
+        await removeIfEmpty(yearDir);
+    }
+
+    // Uncompressed logs stored before logs were sharded, there are none left once they have all expired
+    for (const file of await fs.promises.readdir(logsDir)) {
+        if (!file.endsWith(".log")) {
+            continue;
+        }
+        const filePath = path.join(logsDir, file);
+        const stats = await fs.promises.stat(filePath).catch(() => null);
+        if (stats && stats.isFile() && stats.mtimeMs < cutoff) {
+            await fs.promises.rm(filePath, { force: true });
+            pruned++;
+        }
+    }
+
+    if (pruned > 0) {
+        console.log(colors.gray(`[MappingLogs] Pruned ${pruned} logs older than ${retentionDays} days`));
+    }
+}
+
+// Remove expired logs
+setInterval(() => {
+    pruneMappingLogs().catch((error) => {
+        console.error(colors.red(`[MappingLogs] Error pruning logs: ${error}`));
+    });
+}, 15 * 60 * 1000); // Run every 15 minutes
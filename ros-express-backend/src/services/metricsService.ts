@@ -0,0 +1,257 @@
+import fs from "fs";
+import path from "path";
+import colors from "colors";
+import { getEntryStoreDir, getLogsStorageDir, getUploadsDir } from "./envService.js";
+
+type Labels = Record<string, string>;
+
+interface Metric {
+    render(): string[];
+}
+
+// Every metric, in the order they are exposed
+const metrics: Metric[] = [];
+// Update gauges right before they are exposed (i.e. queue depths)
+const collectors: (() => void | Promise<void>)[] = [];
+
+// Label values are quoted, so backslashes, quotes and line breaks must be escaped
+function formatLabels(labelNames: string[], labels: Labels): string {
+    if (labelNames.length === 0) {
+        return "";
+    }
+    const pairs = labelNames.map((name) => {
+        const value = (labels[name] ?? "").replace(/\\/g, "\\\\").replace(/"/g, '\\"').replace(/\n/g, "\\n");
+        return `${name}="${value}"`;
+    });
+    return `{${pairs.join(",")}}`;
+}
+
+function header(name: string, help: string, type: string): string[] {
+    return [`# HELP ${name} ${help}`, `# TYPE ${name} ${type}`];
+}
+
+/**
+ * A value that only goes up (i.e. bytes uploaded), per combination of label values.
+ */
+export class Counter implements Metric {
+    private values = new Map<string, number>();
+
+    constructor(
+        private readonly name: string,
+        private readonly help: string,
+        private readonly labelNames: string[] = []
+    ) {
+        metrics.push(this);
+    }
+
+    inc(labels: Labels = {}, value: number = 1): void {
+        const key = formatLabels(this.labelNames, labels);
+        this.values.set(key, (this.values.get(key) ?? 0) + value);
+    }
+
+    render(): string[] {
+        const lines = header(this.name, this.help, "counter");
+        for (const [labels, value] of this.values) {
+            lines.push(`${this.name}${labels} ${value}`);
+        }
+        return lines;
+    }
+}
+
+/**
+ * A value that goes up and down (i.e. queue depth), usually set by a collector right before it is exposed.
+ */
+export class Gauge implements Metric {
+    private values = new Map<string, number>();
+
+    constructor(
+        private readonly name: string,
+        private readonly help: string,
+        private readonly labelNames: string[] = []
+    ) {
+        metrics.push(this);
+    }
+
+    set(labels: Labels, value: number): void {
+        this.values.set(formatLabels(this.labelNames, labels), value);
+    }
+
+    render(): string[] {
+        const lines = header(this.name, this.help, "gauge");
+        for (const [labels, value] of this.values) {
+            lines.push(`${this.name}${labels} ${value}`);
+        }
+        return lines;
+    }
+}
+
+/**
+ * Counts observations (i.e. durations) into cumulative buckets, with their sum and count.
+ */
+export class Histogram implements Metric {
+    private series = new Map<string, { labels: Labels; buckets: number[]; sum: number; count: number }>();
+
+    constructor(
+        private readonly name: string,
+        private readonly help: string,
+        private readonly labelNames: string[],
+        private readonly bucketBounds: number[]
+    ) {
+        metrics.push(this);
+    }
+
+    observe(labels: Labels, value: number): void {
+        const key = formatLabels(this.labelNames, labels);
+        let series = this.series.get(key);
+        if (!series) {
+            series = { labels, buckets: this.bucketBounds.map(() => 0), sum: 0, count: 0 };
+            this.series.set(key, series);
+        }
+        for (let i = 0; i < this.bucketBounds.length; i++) {
+            if (value <= this.bucketBounds[i]) {
+                series.buckets[i]++;
+            }
+        }
+        series.sum += value;
+        series.count++;
+    }
+
+    render(): string[] {
+        const lines = header(this.name, this.help, "histogram");
+        const bucketLabels = [...this.labelNames, "le"];
+        for (const series of this.series.values()) {
+            this.bucketBounds.forEach((bound, i) => {
+                const labels = formatLabels(bucketLabels, { ...series.labels, le: String(bound) });
+                lines.push(`${this.name}_bucket${labels} ${series.buckets[i]}`);
+            });
+            const labels = formatLabels(bucketLabels, { ...series.labels, le: "+Inf" });
+            lines.push(`${this.name}_bucket${labels} ${series.count}`);
+            lines.push(`${this.name}_sum${formatLabels(this.labelNames, series.labels)} ${series.sum}`);
+            lines.push(`${this.name}_count${formatLabels(this.labelNames, series.labels)} ${series.count}`);
+        }
+        return lines;
+    }
+}
+
+export function registerCollector(collector: () => void | Promise<void>): void {
+    collectors.push(collector);
+}
+
+/**
+ * Runs the collectors, and renders every metric in the Prometheus text format.
+ */
+export async function renderMetrics(): Promise<string> {
+    for (const collector of collectors) {
+        try {
+            await collector();
+        } catch (error) {
+            console.error(colors.red(`[Metrics] Error collecting metrics: ${error}`));
+        }
+    }
+    return metrics.map((metric) => metric.render().join("\n")).join("\n") + "\n";
+}
+
+// Seconds, from a quick watermark or trace up to an obfuscation near the queue's timeout
+const DURATION_BUCKETS = [0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600];
+
+export const queueWaitSeconds = new Histogram(
+    "ros_queue_wait_seconds",
+    "Time jobs waited in their queue before they started.",
+    ["queue"],
+    DURATION_BUCKETS
+);
+export const queueJobSeconds = new Histogram(
+    "ros_queue_job_seconds",
+    "Time jobs ran for, by how they ended (completed, failed or timeout).",
+    ["queue", "outcome"],
+    DURATION_BUCKETS
+);
+export const operationSeconds = new Histogram(
+    "ros_operation_duration_seconds",
+    "Duration of obfuscations, watermark injections and extractions, and stack trace translations.",
+    ["operation", "outcome"],
+    DURATION_BUCKETS
+);
+export const uploadBytes = new Counter(
+    "ros_upload_bytes_total",
+    "Bytes of uploaded files as stored (after decompression), by upload kind (multipart or chunk).",
+    ["kind"]
+);
+export const downloadBytes = new Counter(
+    "ros_download_bytes_total",
+    "Bytes of obfuscated jars sent to clients."
+);
+export const authCacheLookups = new Counter(
+    "ros_auth_cache_lookups_total",
+    "GitHub token lookups, by result (hit, stale: used while refreshed, or miss).",
+    ["result"]
+);
+export const gitHubRequests = new Counter(
+    "ros_github_requests_total",
+    "Requests made to the GitHub API, by endpoint and HTTP status (or error).",
+    ["endpoint", "status"]
+);
+export const jvmExits = new Counter(
+    "ros_jvm_exits_total",
+    "Exits of obfuscator JVMs, by kind (obfuscate, trace or daemon) and exit code (or signal).",
+    ["kind", "code"]
+);
+export const jvmTimeouts = new Counter(
+    "ros_jvm_timeouts_total",
+    "Obfuscator JVM jobs that timed out (the JVM is killed), by kind.",
+    ["kind"]
+);
+const diskUsageBytes = new Gauge(
+    "ros_disk_usage_bytes",
+    "Size of the files in the backend's directories.",
+    ["directory"]
+);
+
+// Walking directories is slow when they hold many files, so sizes are computed at most once a minute
+const DISK_USAGE_INTERVAL_MS = 60 * 1000;
+let diskUsageCheckedAt = 0;
+
+async function getDirectorySize(directory: string): Promise<number> {
+    let size = 0;
+    let entries: fs.Dirent[];
+    try {
+        entries = await fs.promises.readdir(directory, { withFileTypes: true });
+    } catch (error) {
+        // Not created yet (or removed since it was listed)
+        return 0;
+    }
+    for (const entry of entries) {
+        const entryPath = path.join(directory, entry.name);
+        if (entry.isDirectory()) {
+            size += await getDirectorySize(entryPath);
+        } else if (entry.isFile()) {
+            size += await fs.promises.stat(entryPath).then((stats) => stats.size, () => 0);
+        }
+    }
+    return size;
+}
+
+registerCollector(async () => {
+    if (Date.now() - diskUsageCheckedAt < DISK_USAGE_INTERVAL_MS) {
+        return;
+    }
+    diskUsageCheckedAt = Date.now();
+    diskUsageBytes.set({ directory: "uploads" }, await getDirectorySize(getUploadsDir()));
+    diskUsageBytes.set({ directory: "logs" }, await getDirectorySize(getLogsStorageDir()));
+    diskUsageBytes.set({ directory: "entry_store" }, await getDirectorySize(getEntryStoreDir()));
+});
+
+/**
+ * Runs an operation, observing its duration in `ros_operation_duration_seconds`.
+ */
+export async function timeOperation<T>(operation: string, run: () => Promise<T>): Promise<T> {
+    const startedAt = Date.now();
+    let outcome = "error";
+    try {
+        const result = await run();
+        outcome = "ok";
+        return result;
+    } finally {
+        operationSeconds.observe({ operation, outcome }, (Date.now() - startedAt) / 1000);
+    }
+}
@@ -0,0 +1,243 @@
+import os from "os";
+import crypto from "crypto";
+import colors from "colors";
+import {
+    Job,
+    JobDetails,
+    attachJob,
+    claimJob,
+    cleanupJob,
+    createJob,
+    getJob,
+    isJobClaimed,
+    listJobs,
+    releaseJob,
+    updateJobStatus,
+} from "./jobService.js";
+import {
+    addToQueue,
+    cancelFromQueue,
+    checkAdmission,
+    getJobQueueIndex,
+    getQueueLength,
+    isQueued,
+    removeFromQueue,
+} from "./queueService.js";
+import { getObfuscator } from "./obfuscators/ObfuscatorLoader.js";
+import { isSharedStore } from "./store/RecordStore.js";
+import { timeOperation } from "./metricsService.js";
+import { hasResult } from "./resultStoreService.js";
+
+// Identifies this replica as the holder of job leases
+const REPLICA_ID = `${os.hostname()}-${process.pid}-${crypto.randomUUID().substring(0, 8)}`;
+// Running jobs renew their lease well before it expires, so an expired lease means the replica running it was lost
+const JOB_LEASE_MS = 60 * 1000;
+// How often a shared store is checked for jobs submitted to (or lost by) other replicas
+const STORE_SYNC_INTERVAL_MS = 2000;
+
+/**
+ * Checks that the obfuscation queue can take these jobs of this owner (one, or a batch as a whole), before their uploads
+ *  are consumed by the jobs, so a rejected client can send the same request again once it was told to retry.
+ * @throws {QueueFullError} If the queue is full, or a job would wait longer than ROS_QUEUE_ADMISSION_MAX_WAIT_MS.
+ */
+export function checkObfuscationAdmission(owner: string, jars: { jarName: string; jarSize?: number }[]): void {
+    checkAdmission(
+        "obfuscate",
+        jars.map(({ jarName, jarSize }) => ({ owner, sizeBytes: jarSize, historyKey: `${owner}:${jarName}` }))
+    );
+}
+
+/**
+ * Cancels a submitted job (i.e. the rest of its batch could not be queued), and removes it with its files.
+ * A job that already started is aborted, its obfuscator JVM is killed.
+ */
+export function cancelObfuscation(requestID: string): void {
+    cancelFromQueue("obfuscate", requestID);
+    cleanupJob(requestID);
+}
+
+/**
+ * Creates a job, and queues it on this replica.
+ * With a shared store every replica queues every pending job, and whichever starts it first runs it.
+ * A job identical to one that is still pending or running (same result key) is attached to it instead of queued,
+ *  and is queued to be served its result once it completes.
+ */
+export function submitObfuscation(
+    requestID: string,
+    jarPath: string,
+    configPath: string,
+    outputPath: string,
+    details: JobDetails
+): { job: Job; index: number; size: number } {
+    const resultKey = details.resultKey;
+    const identical = resultKey && !hasResult(resultKey) ? findRunningJob(resultKey) : undefined;
+    const job = createJob(requestID, jarPath, configPath, outputPath, details, identical?.id);
+    if (identical) {
+        console.log(colors.gray(`[Obfuscate] Request ${requestID} attached to identical request ${identical.id}`));
+        return { job, index: getJobQueueIndex("obfuscate", identical.id), size: getQueueLength("obfuscate") };
+    }
+    return { job, ...queueJob(job) };
+}
+
+function queueJob(job: Job): { index: number; size: number } {
+    const details = job.details!;
+    // Served from a stored result, the job only copies and watermarks a jar (no obfuscator JVM)
+    const reused = details.resultKey !== undefined && hasResult(details.resultKey);
+    return addToQueue("obfuscate", {
+        id: job.id,
+        type: "obfuscate",
+        memoryMB: reused ? 0 : undefined,
+        // Jobs are shared fairly between callers, and estimated from the caller's past jobs for the same jar
+        owner: details.owner,
+        sizeBytes: details.jarSize,
+        historyKey: `${details.owner}:${details.jarName}${reused ? ":reused" : ""}`,
+        process: (signal) => runJob(job.id, signal),
+    });
+}
+
+// The pending or running job (not itself attached) that will produce this result
+function findRunningJob(resultKey: string): Job | undefined {
+    return listJobs().find(
+        (job) =>
+            job.details?.resultKey === resultKey &&
+            !job.attachedTo &&
+            (job.status === "pending" || job.status === "processing")
+    );
+}
+
+/**
+ * Queues the jobs attached to a job that finished. If it completed, they are served its stored result.
+ * If it failed, the first of them runs in its place, and the others are attached to that one.
+ */
+function releaseAttachedJobs(requestID: string): void {
+    const completed = getJob(requestID)?.status === "completed";
+    let replacement: string | undefined;
+    for (const job of listJobs()) {
+        if (job.attachedTo !== requestID || job.status !== "pending") {
+            continue;
+        }
+        if (completed || !replacement) {
+            attachJob(job.id, undefined);
+            queueJob(job);
+            replacement = completed ? undefined : job.id;
+        } else {
+            attachJob(job.id, replacement);
+        }
+    }
+}
+
+async function runJob(requestID: string, signal: AbortSignal): Promise<void | "skipped"> {
+    // Another replica may have started the job since it was queued here
+    if (!claimJob(requestID, REPLICA_ID, JOB_LEASE_MS)) {
+        return "skipped";
+    }
+    const renewal = setInterval(() => claimJob(requestID, REPLICA_ID, JOB_LEASE_MS), JOB_LEASE_MS / 3);
+
+    try {
+        // Read after claiming, the job may have finished (or been removed) before we got the lease
+        const job = getJob(requestID);
+        if (!job || job.status !== "pending" || !job.details || !job.jarPath || !job.configPath) {
+            return "skipped";
+        }
+        const details = job.details;
+        const obfuscator = getObfuscator();
+        const jarFile = { path: job.jarPath, originalname: details.jarName };
+        const configFile = { path: job.configPath, originalname: details.configName };
+
+        try {
+            updateJobStatus(requestID, "processing");
+            // An identical request completed recently, this one gets a copy of its result (watermarked for this request)
+            const reused =
+                details.resultKey !== undefined &&
+                (await timeOperation("result_reuse", () =>
+                    obfuscator.obfuscateFromResult(
+                        details.resultKey!,
+                        jarFile,
+                        requestID,
+                        details.userInfo,
+                        details.requestedBy
+                    )
+                ));
+            if (reused) {
+                console.log(colors.gray(`[Obfuscate] Request ${requestID} served from a stored result`));
+            } else {
+                signal.throwIfAborted();
+                await timeOperation("obfuscate", () =>
+                    obfuscator.obfuscate(
+                        jarFile,
+                        configFile,
+                        requestID,
+                        details.userInfo,
+                        details.requestedBy,
+                        details.resultKey,
+                        signal
+                    )
+                );
+            }
+            updateJobStatus(requestID, "completed");
+        } catch (error) {
+            console.error(
+                colors.red(`Error in background obfuscation: ${error}`)
+            );
+            updateJobStatus(
+                requestID,
+                "failed",
+                error instanceof Error ? error.message : String(error)
+            );
+        }
+        releaseAttachedJobs(requestID);
+    } finally {
+        clearInterval(renewal);
+        releaseJob(requestID, REPLICA_ID);
+    }
+}
+
+/**
+ * Queues pending jobs this replica doesn't know about yet (submitted elsewhere, or before a restart), drops queued jobs
+ *  that another replica started, and requeues jobs whose replica was lost while running them.
+ */
+function syncWithStore(): void {
+    for (const job of listJobs()) {
+        if (job.status === "processing" && !isJobClaimed(job.id) && claimJob(job.id, REPLICA_ID, JOB_LEASE_MS)) {
+            // Read again while holding the lease, the job may have finished since it was listed
+            if (getJob(job.id)?.status === "processing") {
+                console.log(colors.yellow(`[Obfuscate] Request ${job.id} was lost while processing, queueing it again`));
+                updateJobStatus(job.id, "pending");
+                job.status = "pending";
+            }
+            releaseJob(job.id, REPLICA_ID);
+        }
+
+        if (job.status === "pending" && job.attachedTo) {
+            const identical = getJob(job.attachedTo);
+            if (identical && (identical.status === "pending" || identical.status === "processing")) {
+                continue;
+            }
+            // The job it waited for finished on a replica that was lost before it released it
+            attachJob(job.id, undefined);
+        }
+
+        // A pending job claimed by another replica is being started there, it isn't dispatched here as well
+        const queued = isQueued("obfuscate", job.id);
+        const claimed = isJobClaimed(job.id);
+        if (job.status === "pending" && !queued && !claimed && job.details) {
+            queueJob(job);
+        } else if ((job.status !== "pending" || claimed) && queued) {
+            // Only removes it while it waits, a job this replica is running is claimed by itself
+            removeFromQueue("obfuscate", job.id);
+        }
+    }
+}
+
+if (isSharedStore()) {
+    console.log(colors.gray(`[Obfuscate] Sharing jobs with other replicas as ${REPLICA_ID}`));
+    const sync = () => {
+        try {
+            syncWithStore();
+        } catch (error) {
+            console.error(colors.red(`[Obfuscate] Error syncing jobs with the store: ${error}`));
+        }
+    };
+    sync();
+    setInterval(sync, STORE_SYNC_INTERVAL_MS);
+}
@@ -1,19 +1,49 @@
 import { Request, Response, NextFunction } from "express";
 import { UserInfo } from "../../middleware/authorization.js";
 
+// An obfuscation input file, as uploaded (only its location and original name are used)
+export type ObfuscationFile = Pick<Express.Multer.File, "path" | "originalname">;
+
 export class Obfuscator {
+    /**
+     * Obfuscates the jar, writing the output next to it as `<requestID>.jar`.
+     * Runs in the background (possibly on another replica than the one that received the upload), so it gets no request.
+     */
     async obfuscate(
-        _req: Request,
-        _res: Response,
-        _next: NextFunction,
-        _jarFile: Express.Multer.File,
-        _configFile: Express.Multer.File,
+        _jarFile: ObfuscationFile,
+        _configFile: ObfuscationFile,
         _requestID: string,
-        _requestedBy?: string
+        _userInfo: UserInfo,
+        _requestedBy?: string,
+        _resultKey?: string,
+        _signal?: AbortSignal
     ): Promise<any | void> {
         throw new Error("Method 'obfuscate()' is not implemented.");
     }
 
+    /**
+     * Digests everything in a config that affects the obfuscated jar, so identical requests can share one obfuscation.
+     * @returns null if this obfuscator's results can't be shared
+     * @throws {Error} If the config is invalid.
+     */
+    getConfigDigest(_configPath: string): string | null {
+        return null;
+    }
+
+    /**
+     * Serves a request from the stored result of an identical one (see resultStoreService), instead of obfuscating.
+     * @returns false if no result is stored for the key, the request must then be obfuscated
+     */
+    async obfuscateFromResult(
+        _resultKey: string,
+        _jarFile: ObfuscationFile,
+        _requestID: string,
+        _userInfo: UserInfo,
+        _requestedBy?: string
+    ): Promise<boolean> {
+        return false;
+    }
+
     async processStacktrace(
         _req: Request,
         _res: Response,
@@ -24,6 +54,22 @@ export class Obfuscator {
         throw new Error("Method 'processStacktrace()' is not implemented.");
     }
 
+    /**
+     * Returns the stored mapping (obfuscated -> original names) for a request, so clients can translate stack traces themselves.
+     * @returns the mapping file, its format and whether it is gzipped, or null if no mapping is available
+     */
+    getMapping(_requestID: string): { path: string; format: string; compressed: boolean } | null {
+        return null;
+    }
+
+    /**
+     * The name of the jar entry the watermark is written to, so uploads can be checked for it as they are received.
+     * @returns null if this obfuscator doesn't watermark jars
+     */
+    getWatermarkEntryName(): string | null {
+        return null;
+    }
+
     async injectWatermark(
         _req: Request,
         _res: Response,
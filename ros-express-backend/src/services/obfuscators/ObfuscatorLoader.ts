@@ -1,12 +1,16 @@
 import { getObfuscatorType } from "../envService.js";
 import { AllatoriObfuscator } from "./allatori/AllatoriObfuscator.js";
 import { Obfuscator } from "./Obfuscator.js";
+import { StubObfuscator } from "./stub/StubObfuscator.js";
 
 export function getObfuscator(): Obfuscator {
     const obfType = getObfuscatorType();
     switch (obfType.toUpperCase()) {
         case "ALLATORI":
             return new AllatoriObfuscator();
+        case "STUB":
+            // Load testing only, jars are copied instead of obfuscated
+            return new StubObfuscator();
         default:
             throw new Error(`Unknown obfuscator type: ${obfType}`);
     }
@@ -78,6 +78,33 @@ export async function updateObfConfig(
     // console.log(colors.green(`Updated XML file: ${configPath}`));
 }
 
+/**
+ * Digests a config without what updateObfConfig replaces for every request (jar paths, log file, random seed and watermark),
+ *  so the same config uploaded by different requests has the same digest.
+ * @throws {Error} If the config is not valid XML.
+ */
+export function digestObfConfig(configPath: string): string {
+    const parser = new XMLParser({ ignoreAttributes: false });
+    const xml = parser.parse(fs.readFileSync(configPath, "utf8"));
+    if (!xml.config) {
+        throw new Error("Invalid XML: <config> root element is missing.");
+    }
+
+    delete xml.config.input;
+    delete xml.config.watermark;
+    if (xml.config.property) {
+        // A single property is parsed as an object, several as an array
+        const properties = Array.isArray(xml.config.property) ? xml.config.property : [xml.config.property];
+        xml.config.property = properties.filter(
+            (prop: any) => prop["@_name"] !== "log-file" && prop["@_name"] !== "random-seed"
+        );
+    }
+
+    // Built without formatting, so whitespace in the uploaded config doesn't change the digest
+    const normalizedXml = new XMLBuilder({ ignoreAttributes: false }).build(xml);
+    return crypto.createHash("sha256").update(normalizedXml).digest("hex");
+}
+
 export async function generateWatermarkConfig(
     configPath: string,
     inputPath: string
@@ -0,0 +1,316 @@
+import { spawn, ChildProcess } from "child_process";
+import readline from "readline";
+import colors from "colors";
+import {
+    getDaemonMaxJobs,
+    getDaemonPath,
+    getJobHeapMB,
+    getJobTimeoutMs,
+    getQueueWorkers,
+} from "../../envService.js";
+import { jvmExits, jvmTimeouts } from "../../metricsService.js";
+import { setIdleDaemons } from "../../queueService.js";
+
+const DAEMON_MAIN_CLASS = "io.github.jake_moore.ros_daemon.ObfuscatorDaemon";
+
+interface RunningCommand {
+    id: string;
+    resolve: (output: string) => void;
+    reject: (error: Error) => void;
+    timer: NodeJS.Timeout;
+}
+
+/**
+ * A resident obfuscator JVM (see ros-obfuscator-daemon), which runs one command at a time.
+ */
+class DaemonProcess {
+    readonly obfuscatorPath: string;
+    jobs = 0;
+    lastUsed = Date.now();
+    private child: ChildProcess;
+    private running: RunningCommand | null = null;
+    private alive = true;
+
+    constructor(daemonPath: string, obfuscatorPath: string) {
+        this.obfuscatorPath = obfuscatorPath;
+        // The security manager is only used to keep the obfuscator's System.exit calls from ending the daemon
+        this.child = spawn(
+            "java",
+            [
+                "-Djava.security.manager=allow",
+                `-Xmx${getJobHeapMB()}m`,
+                "-cp",
+                daemonPath,
+                DAEMON_MAIN_CLASS,
+                obfuscatorPath,
+            ],
+            { stdio: ["pipe", "pipe", "pipe"] }
+        );
+        console.log(colors.gray(`[Daemon:${this.child.pid}] Started`));
+
+        readline
+            .createInterface({ input: this.child.stdout! })
+            .on("line", (line) => this.onResponse(line));
+        readline
+            .createInterface({ input: this.child.stderr! })
+            .on("line", (line) => console.log(colors.gray(`[Daemon:${this.child.pid}] ${line}`)));
+        // Writes fail once the daemon is gone, that is handled by the exit listener
+        this.child.stdin!.on("error", () => {});
+        this.child.on("error", (error) => {
+            this.alive = false;
+            this.fail(error);
+        });
+        this.child.on("exit", (code, signal) => {
+            this.alive = false;
+            jvmExits.inc({ kind: "daemon", code: String(signal ?? code) });
+            console.log(colors.gray(`[Daemon:${this.child.pid}] Exited (${signal ?? code})`));
+            this.fail(new Error(`Obfuscator daemon exited (${signal ?? code}) while running a job`));
+        });
+    }
+
+    isAlive(): boolean {
+        return this.alive;
+    }
+
+    /**
+     * Runs a command, the daemon is killed if the signal aborts (the job was cancelled) before it finishes.
+     */
+    run(command: string, args: string[], signal?: AbortSignal): Promise<string> {
+        if (args.some((arg) => /[\t\r\n]/.test(arg))) {
+            return Promise.reject(new Error("Daemon arguments can't contain tabs or line breaks"));
+        }
+        this.jobs++;
+        this.lastUsed = Date.now();
+        const result = new Promise<string>((resolve, reject) => {
+            const id = String(this.jobs);
+            // Commands that don't run in the queue (stack traces) have no signal, they get the same timeout
+            const timeout = getJobTimeoutMs();
+            const timer = setTimeout(() => {
+                this.cancel(new Error(`Obfuscator daemon job timed out after ${timeout}ms`));
+            }, timeout);
+            this.running = { id, resolve, reject, timer };
+            this.child.stdin!.write([id, command, ...args].join("\t") + "\n");
+        });
+        if (!signal) {
+            return result;
+        }
+        const onAbort = () => this.cancel(signal.reason);
+        signal.addEventListener("abort", onAbort, { once: true });
+        return result.finally(() => signal.removeEventListener("abort", onAbort));
+    }
+
+    // The obfuscator can't be interrupted within the JVM, the daemon is killed (and replaced by the next job)
+    private cancel(error: Error): void {
+        if (!this.running) {
+            return;
+        }
+        jvmTimeouts.inc({ kind: "daemon" });
+        this.fail(error);
+        this.stop();
+    }
+
+    stop(): void {
+        this.alive = false;
+        this.child.kill();
+    }
+
+    private onResponse(line: string): void {
+        const [id, status, output] = line.split("\t");
+        const running = this.running;
+        if (!running || running.id !== id) {
+            console.log(colors.yellow(`[Daemon:${this.child.pid}] Unexpected response: ${line}`));
+            return;
+        }
+        this.running = null;
+        clearTimeout(running.timer);
+        const decoded = Buffer.from(output ?? "", "base64").toString("utf-8");
+        if (status === "ok") {
+            running.resolve(decoded);
+        } else {
+            running.reject(new Error(decoded));
+        }
+    }
+
+    private fail(error: Error): void {
+        const running = this.running;
+        if (!running) {
+            return;
+        }
+        this.running = null;
+        clearTimeout(running.timer);
+        running.reject(error);
+    }
+}
+
+// One daemon per concurrent obfuscation job at most, each holds a job heap
+const idle: DaemonProcess[] = [];
+const waiting: { obfuscatorPath: string; resolve: (daemon: DaemonProcess) => void }[] = [];
+let started = 0;
+
+// Idle daemons keep their heap, so the queues count it against the memory budget
+function updateIdle(): void {
+    setIdleDaemons(idle.length, getJobHeapMB());
+}
+
+function maxDaemons(): number {
+    return getQueueWorkers("obfuscate", getJobHeapMB());
+}
+
+function startDaemon(obfuscatorPath: string): DaemonProcess {
+    started++;
+    return new DaemonProcess(getDaemonPath()!, obfuscatorPath);
+}
+
+function retire(daemon: DaemonProcess): void {
+    started--;
+    daemon.stop();
+}
+
+// An idle daemon, or a new one if there is room for it, null if every daemon is busy
+function acquireFree(obfuscatorPath: string): DaemonProcess | null {
+    // Daemons that died while idle are replaced here
+    while (idle.length > 0) {
+        const daemon = idle.pop()!;
+        updateIdle();
+        if (daemon.isAlive() && daemon.obfuscatorPath === obfuscatorPath) {
+            return daemon;
+        }
+        retire(daemon);
+    }
+    if (started < maxDaemons()) {
+        return startDaemon(obfuscatorPath);
+    }
+    return null;
+}
+
+/**
+ * Waits for a daemon while every daemon is busy, for at most a job's timeout (a daemon is free by then, unless one is stuck).
+ * @throws {Error} If no daemon was free in time, or the signal aborted while waiting.
+ */
+function acquire(obfuscatorPath: string, signal?: AbortSignal): Promise<DaemonProcess> {
+    const daemon = acquireFree(obfuscatorPath);
+    if (daemon) {
+        return Promise.resolve(daemon);
+    }
+    return new Promise((resolve, reject) => {
+        const timeout = getJobTimeoutMs();
+        const entry = {
+            obfuscatorPath,
+            resolve: (daemon: DaemonProcess) => {
+                stopWaiting();
+                resolve(daemon);
+            },
+        };
+        const giveUp = (error: Error) => {
+            stopWaiting();
+            waiting.splice(waiting.indexOf(entry), 1);
+            reject(error);
+        };
+        const timer = setTimeout(() => giveUp(new Error(`No obfuscator daemon was free within ${timeout}ms`)), timeout);
+        const onAbort = () => giveUp(signal!.reason);
+        const stopWaiting = () => {
+            clearTimeout(timer);
+            signal?.removeEventListener("abort", onAbort);
+        };
+        signal?.addEventListener("abort", onAbort, { once: true });
+        waiting.push(entry);
+    });
+}
+
+function release(daemon: DaemonProcess): void {
+    let reusable: DaemonProcess | null = daemon;
+    if (!daemon.isAlive() || daemon.jobs >= getDaemonMaxJobs()) {
+        retire(daemon);
+        reusable = null;
+    }
+
+    const next = waiting.shift();
+    if (!next) {
+        if (reusable) {
+            idle.push(reusable);
+            updateIdle();
+        }
+        return;
+    }
+    if (reusable && reusable.obfuscatorPath === next.obfuscatorPath) {
+        next.resolve(reusable);
+        return;
+    }
+    if (reusable) {
+        retire(reusable);
+    }
+    next.resolve(startDaemon(next.obfuscatorPath));
+}
+
+export function isDaemonEnabled(): boolean {
+    return getDaemonPath() !== null;
+}
+
+/**
+ * Starts a daemon ahead of the first job, so that job doesn't wait for the obfuscator to load.
+ */
+export function warmUpDaemon(obfuscatorPath: string): void {
+    if (isDaemonEnabled() && started === 0) {
+        idle.push(startDaemon(obfuscatorPath));
+        updateIdle();
+    }
+}
+
+/**
+ * Runs an obfuscator command ("obfuscate" or "trace") on a resident daemon.
+ * @returns everything the obfuscator printed
+ * Waits for a daemon if every daemon is busy (see `acquire`).
+ * @param signal cancels the command, the daemon running it is killed
+ * @throws {Error} If the command fails or is cancelled, no daemon was free in time, or the daemon dies while running it
+ *  (the next command gets a new daemon).
+ */
+export async function runDaemonCommand(
+    obfuscatorPath: string,
+    command: "obfuscate" | "trace",
+    args: string[],
+    signal?: AbortSignal
+): Promise<string> {
+    signal?.throwIfAborted();
+    return runOnDaemon(await acquire(obfuscatorPath, signal), command, args, signal);
+}
+
+/**
+ * Runs an obfuscator command on a daemon only if one is free right away (i.e. stack traces, which shouldn't wait for
+ *  obfuscation jobs to finish).
+ * @returns everything the obfuscator printed, or null if every daemon is busy (the command wasn't run)
+ * @throws {Error} If the command fails, or the daemon dies while running it.
+ */
+export async function tryDaemonCommand(
+    obfuscatorPath: string,
+    command: "obfuscate" | "trace",
+    args: string[]
+): Promise<string | null> {
+    const daemon = acquireFree(obfuscatorPath);
+    return daemon ? runOnDaemon(daemon, command, args) : null;
+}
+
+async function runOnDaemon(
+    daemon: DaemonProcess,
+    command: "obfuscate" | "trace",
+    args: string[],
+    signal?: AbortSignal
+): Promise<string> {
+    try {
+        // Cancelled while it waited for a daemon
+        signal?.throwIfAborted();
+        return await daemon.run(command, args, signal);
+    } finally {
+        release(daemon);
+    }
+}
+
+// Stop daemons that were idle for more than 15 minutes, their heap is better left to the OS
+setInterval(() => {
+    const fifteenMinutesAgo = Date.now() - 15 * 60 * 1000;
+    for (let i = idle.length - 1; i >= 0; i--) {
+        if (idle[i].lastUsed < fifteenMinutesAgo) {
+            retire(idle.splice(i, 1)[0]);
+        }
+    }
+    updateIdle();
+}, 15 * 60 * 1000); // Run every 15 minutes
@@ -1,31 +1,61 @@
 import path from "path";
 import { Request, Response, NextFunction } from "express";
-import { updateObfConfig } from "./AllatoriConfigGenerator.js";
+import { digestObfConfig, updateObfConfig } from "./AllatoriConfigGenerator.js";
 import {
-    getLogsStorageDir,
     getObfuscatorPath,
     getDefaultObfuscatorPath,
     getObfuscatorPathEnvVar,
+    getJobHeapMB,
 } from "../../envService.js";
 import deleteTemp from "../../ioService.js";
-import { getUserInfo, UserInfo } from "../../../middleware/authorization.js";
+import { UserInfo } from "../../../middleware/authorization.js";
 import fs from "fs";
+import crypto from "crypto";
+import readline from "readline";
 import colors from "colors";
 import { exec } from "child_process";
-import AdmZip from "adm-zip";
-import { Obfuscator } from "../Obfuscator.js";
+import { Obfuscator, ObfuscationFile } from "../Obfuscator.js";
+import { isDaemonEnabled, runDaemonCommand, tryDaemonCommand, warmUpDaemon } from "./AllatoriDaemon.js";
+import {
+    getTranslationCacheKey,
+    mappingIndexCache,
+    translationCache,
+} from "../../traceCacheService.js";
+import { appendEntry, readCentralDirectory, readEntry } from "../../zipService.js";
+import { jvmExits, jvmTimeouts, timeOperation } from "../../metricsService.js";
+import { copyResult, storeResult } from "../../resultStoreService.js";
+import {
+    MappingLog,
+    extractMappingLog,
+    findMappingLog,
+    openMappingLog,
+    storeMappingLog,
+} from "../../mappingLogService.js";
+
+// Translations in progress, so identical traces sent at the same time share one StackTrace2 run
+const pendingTranslations = new Map<string, Promise<string>>();
 
 export class AllatoriObfuscator extends Obfuscator {
     private watermarkFileName = "obfuscation.json";
+    // A watermark is a few hundred bytes, anything much larger is not one of ours
+    private static readonly MAX_WATERMARK_SIZE = 64 * 1024;
+
+    constructor() {
+        super();
+        const obfuscatorPath = getObfuscatorPath();
+        if (obfuscatorPath !== null) {
+            warmUpDaemon(obfuscatorPath);
+        }
+    }
 
     async obfuscate(
-        req: Request,
-        res: Response,
-        next: NextFunction,
-        jarFile: Express.Multer.File,
-        configFile: Express.Multer.File,
+        jarFile: ObfuscationFile,
+        configFile: ObfuscationFile,
         requestID: string,
-        requestedBy?: string
+        userInfo: UserInfo,
+        requestedBy?: string,
+        resultKey?: string,
+        signal?: AbortSignal
     ): Promise<void> {
         // Validate file extensions
         if (path.extname(jarFile.originalname) !== ".jar") {
@@ -60,17 +90,6 @@ export class AllatoriObfuscator extends Obfuscator {
             throw err;
         }
 
-        // Fetch the user email
-        const authHeader = req.headers.authorization || "";
-        const token = authHeader.split(" ")[1];
-        const userInfo = await getUserInfo(token);
-        if (!userInfo) {
-            const err = new Error("Failed to fetch user information.");
-            (err as any).status = 500; // Internal Server Error
-            console.log(colors.red(err.message));
-            throw err;
-        }
-
         // Calculate paths (absolute) for obfuscation config
         const inputPath = path.resolve(jarFile.path);
         const configPath = path.resolve(configFile.path);
@@ -95,24 +114,22 @@ export class AllatoriObfuscator extends Obfuscator {
         try {
             const output = await this.runAllatoriObfuscate(
                 obfuscatorPath,
-                configPath
+                configPath,
+                signal
             );
-            await this.injectWatermark(
-                req,
-                res,
-                next,
+            // Kept before it is watermarked, so identical requests can be served a copy of it
+            if (resultKey) {
+                await storeResult(resultKey, outputPath, logPath);
+            }
+            await this.writeWatermark(
                 outputPath,
                 requestID,
                 userInfo,
                 requestedBy
             );
 
-            // Copy log file to storage
-            const logDest = path.resolve(
-                getLogsStorageDir(),
-                `${requestID}.log`
-            );
-            fs.copyFileSync(logPath, logDest);
+            // Compress log file into storage
+            const logDest = await storeMappingLog(requestID, logPath);
             console.log(
                 `Log file for request ${requestID} saved to: '${logDest}'`
             );
@@ -126,14 +143,25 @@ export class AllatoriObfuscator extends Obfuscator {
         }
     }
 
+    // The JVM is killed when the signal aborts (the job timed out)
     private runAllatoriObfuscate(
         allatoriPath: string,
-        configPath: string
+        configPath: string,
+        signal?: AbortSignal
     ): Promise<string> {
+        if (isDaemonEnabled()) {
+            return runDaemonCommand(allatoriPath, "obfuscate", [configPath], signal);
+        }
         return new Promise((resolve, reject) => {
-            const command = `java -cp "${allatoriPath}" com.allatori.Obfuscate "${configPath}"`;
+            // Bound the heap, the queue reserves exactly this much memory for every running job
+            const command = `java -Xmx${getJobHeapMB()}m -cp "${allatoriPath}" com.allatori.Obfuscate "${configPath}"`;
 
-            exec(command, (error, stdout, stderr) => {
+            exec(command, { signal }, (error, stdout, stderr) => {
+                jvmExits.inc({ kind: "obfuscate", code: error ? String(error.signal ?? error.code) : "0" });
+                if (signal?.aborted) {
+                    jvmTimeouts.inc({ kind: "obfuscate" });
+                    return reject(signal.reason);
+                }
                 if (error) {
                     console.log(colors.red(`Error: ${stdout}`));
                     return reject(`Error: ${stderr || error.message}`);
@@ -155,9 +183,8 @@ export class AllatoriObfuscator extends Obfuscator {
             "base64"
         ).toString("utf-8");
 
-        const logStorageDir = getLogsStorageDir();
-        const logPath = `${logStorageDir}/${requestID}.log`;
-        if (!fs.existsSync(logPath)) {
+        const mappingLog = findMappingLog(requestID);
+        if (!mappingLog) {
             const err = new Error(
                 `No log file found for requestID: ${requestID}`
             );
@@ -165,6 +192,14 @@ export class AllatoriObfuscator extends Obfuscator {
             return next(err);
         }
 
+        // The same traces tend to be sent over and over (i.e. during an incident), their translation never changes
+        const cacheKey = getTranslationCacheKey(requestID, decodedStackTrace);
+        const cachedTrace = translationCache.get(cacheKey);
+        if (cachedTrace !== undefined) {
+            this.sendTranslatedTrace(res, requestID, cachedTrace);
+            return;
+        }
+
         const obfuscatorPath = getObfuscatorPath();
         if (obfuscatorPath === null) {
             const err = new Error(
@@ -177,53 +212,145 @@ export class AllatoriObfuscator extends Obfuscator {
             return next(err);
         }
 
+        try {
+            let translation = pendingTranslations.get(cacheKey);
+            if (!translation) {
+                translation = timeOperation("trace", () =>
+                    this.translateTrace(obfuscatorPath, requestID, mappingLog, decodedStackTrace)
+                ).finally(() => pendingTranslations.delete(cacheKey));
+                pendingTranslations.set(cacheKey, translation);
+            }
+
+            const traceOutStr = await translation;
+            translationCache.set(cacheKey, traceOutStr);
+            this.sendTranslatedTrace(res, requestID, traceOutStr);
+        } catch (error) {
+            // Pass errors to the error handler middleware
+            console.error(colors.red(`Error calling stacktrace: ${error}`));
+            const err = new Error(
+                "Error calling stacktrace. Please check the server logs."
+            );
+            (err as any).status = 500;
+            return next(err);
+        }
+    }
+
+    private sendTranslatedTrace(res: Response, requestID: string, trace: string): void {
+        res.status(200).json({
+            message: "Stack trace translated successfully",
+            request_id: requestID,
+            output_trace_base64: Buffer.from(trace).toString("base64"),
+        });
+    }
+
+    private async translateTrace(
+        obfuscatorPath: string,
+        requestID: string,
+        mappingLog: MappingLog,
+        trace: string
+    ): Promise<string> {
+        // A trace without any class from this mapping (i.e. one thrown by a library) would come back unchanged
+        const mappedClasses = await this.getMappingIndex(requestID, mappingLog);
+        if (mappedClasses.size > 0 && !this.referencesMapping(trace, mappedClasses)) {
+            return trace;
+        }
+
         const uploadsDir = path.resolve(
             process.env.ROS_UPLOADS_TRACE_STORAGE || "./uploads-trace"
         );
-        const tracePath = `${uploadsDir}/${requestID}.log`;
-        const tracePathOut = `${uploadsDir}/${requestID}-out.log`;
+        // Unique per call, the same request ID can be translated concurrently
+        const traceID = `${requestID}-${crypto.randomUUID()}`;
+        const tracePath = `${uploadsDir}/${traceID}.log`;
+        const tracePathOut = `${uploadsDir}/${traceID}-out.log`;
         fs.mkdirSync(uploadsDir, { recursive: true });
-        fs.writeFileSync(tracePath, decodedStackTrace);
+        fs.writeFileSync(tracePath, trace);
 
+        // StackTrace2 reads the log from disk, it is only decompressed for the translation
+        const logPath = mappingLog.compressed ? `${uploadsDir}/${traceID}-mapping.log` : mappingLog.path;
         try {
+            if (mappingLog.compressed) {
+                await extractMappingLog(mappingLog, logPath);
+            }
             await this.runAllatoriTrace(
                 obfuscatorPath,
                 logPath,
                 tracePath,
                 tracePathOut
             );
-
-            const traceOutStr = fs.readFileSync(tracePathOut, "utf-8");
-            const traceOutBase64 = Buffer.from(traceOutStr).toString("base64");
-            res.status(200).json({
-                message: "Stack trace translated successfully",
-                request_id: requestID,
-                output_trace_base64: traceOutBase64,
-            });
-        } catch (error) {
-            // Pass errors to the error handler middleware
-            console.error(colors.red(`Error calling stacktrace: ${error}`));
-            const err = new Error(
-                "Error calling stacktrace. Please check the server logs."
-            );
-            (err as any).status = 500;
-            return next(err);
+            return fs.readFileSync(tracePathOut, "utf-8");
         } finally {
             deleteTemp({ path: tracePath });
             deleteTemp({ path: tracePathOut });
+            if (mappingLog.compressed) {
+                deleteTemp({ path: logPath });
+            }
         }
     }
 
-    private runAllatoriTrace(
+    /**
+     * Reads the obfuscated class names from the request's Allatori log (`<class old="..." new="...">` elements).
+     */
+    private async getMappingIndex(requestID: string, mappingLog: MappingLog): Promise<Set<string>> {
+        const cached = mappingIndexCache.get(requestID);
+        if (cached) {
+            return cached;
+        }
+
+        const classes = new Set<string>();
+        const lines = readline.createInterface({
+            input: openMappingLog(mappingLog),
+            crlfDelay: Infinity,
+        });
+        for await (const line of lines) {
+            for (const match of line.matchAll(/<class\b[^>]*?\bnew="([^"]+)"/g)) {
+                classes.add(match[1]);
+            }
+        }
+        mappingIndexCache.set(requestID, classes);
+        return classes;
+    }
+
+    private referencesMapping(trace: string, mappedClasses: Set<string>): boolean {
+        for (const match of trace.matchAll(/[\w$]+(?:\.[\w$]+)*/g)) {
+            // Any prefix may be the class, "a.b.c" is either class "a.b.c" or method "c" of class "a.b"
+            const parts = match[0].split(".");
+            for (let i = 1; i <= parts.length; i++) {
+                const name = parts.slice(0, i).join(".");
+                if (mappedClasses.has(name) || mappedClasses.has(name.split("$")[0])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    getMapping(requestID: string): { path: string; format: string; compressed: boolean } | null {
+        // The obfuscation log is the mapping, it is what StackTrace2 reads as well
+        const mappingLog = findMappingLog(requestID);
+        if (!mappingLog) {
+            return null;
+        }
+        return { ...mappingLog, format: "allatori-log" };
+    }
+
+    // Runs on an idle daemon, a trace never waits for obfuscation jobs to free one (it starts a JVM of its own instead)
+    private async runAllatoriTrace(
         allatoriPath: string,
         logPath: string,
         tracePath: string,
         tracePathOut: string
     ): Promise<string> {
+        if (isDaemonEnabled()) {
+            const output = await tryDaemonCommand(allatoriPath, "trace", [logPath, tracePath, tracePathOut]);
+            if (output !== null) {
+                return output;
+            }
+        }
         return new Promise((resolve, reject) => {
             const command = `java -Xms128m -Xmx512m -cp "${allatoriPath}" com.allatori.StackTrace2 "${logPath}" "${tracePath}" "${tracePathOut}"`;
 
             exec(command, (error, stdout, stderr) => {
+                jvmExits.inc({ kind: "trace", code: error ? String(error.signal ?? error.code) : "0" });
                 if (error) {
                     console.log(colors.red(`Error: ${stdout}`));
                     return reject(`Error: ${stderr || error.message}`);
@@ -233,6 +360,45 @@ export class AllatoriObfuscator extends Obfuscator {
         });
     }
 
+    getConfigDigest(configPath: string): string {
+        // Results of another obfuscator (version) can't be shared
+        const obfuscatorPath = getObfuscatorPath();
+        const obfuscator = obfuscatorPath ? fs.statSync(obfuscatorPath) : null;
+        return crypto
+            .createHash("sha256")
+            .update(digestObfConfig(configPath))
+            .update(obfuscator ? `${obfuscatorPath}:${obfuscator.size}:${obfuscator.mtimeMs}` : "")
+            .digest("hex");
+    }
+
+    async obfuscateFromResult(
+        resultKey: string,
+        jarFile: ObfuscationFile,
+        requestID: string,
+        userInfo: UserInfo,
+        requestedBy?: string
+    ): Promise<boolean> {
+        // Written where obfuscate writes the jar and its log
+        const outputPath = path.resolve(path.dirname(jarFile.path), `${requestID}.jar`);
+        const logPath = path.resolve(path.dirname(jarFile.path), `${requestID}.log`);
+        if (!(await copyResult(resultKey, outputPath, logPath))) {
+            return false;
+        }
+        if (fs.existsSync(logPath)) {
+            try {
+                await storeMappingLog(requestID, logPath);
+            } finally {
+                deleteTemp({ path: logPath });
+            }
+        }
+        await this.writeWatermark(outputPath, requestID, userInfo, requestedBy);
+        return true;
+    }
+
+    getWatermarkEntryName(): string {
+        return this.watermarkFileName;
+    }
+
     async injectWatermark(
         _req: Request,
         _res: Response,
@@ -243,23 +409,7 @@ export class AllatoriObfuscator extends Obfuscator {
         requestedBy?: string
     ): Promise<void> {
         try {
-            const zip = new AdmZip(jarPath);
-            const obfData: Record<string, string> = {
-                request_id: requestID,
-                request_user: userInfo.email,
-                request_username: userInfo.username
-            };
-            
-            // Add requested_by field only if it was provided
-            if (requestedBy) {
-                obfData.requested_by = requestedBy;
-            }
-            
-            zip.addFile(
-                this.watermarkFileName,
-                Buffer.from(JSON.stringify(obfData))
-            );
-            zip.writeZip(jarPath);
+            await this.writeWatermark(jarPath, requestID, userInfo, requestedBy);
         } catch (error) {
             const err = new Error(
                 `Failed to inject watermark into JAR file: ${error}`
@@ -269,6 +419,36 @@ export class AllatoriObfuscator extends Obfuscator {
         }
     }
 
+    /**
+     * Adds the watermark file to the jar, in place (only the central directory is rewritten).
+     * @throws {Error} If the jar can't be read or written.
+     */
+    protected async writeWatermark(
+        jarPath: string,
+        requestID: string,
+        userInfo: UserInfo,
+        requestedBy?: string
+    ): Promise<void> {
+        const obfData: Record<string, string> = {
+            request_id: requestID,
+            request_user: userInfo.email,
+            request_username: userInfo.username
+        };
+
+        // Add requested_by field only if it was provided
+        if (requestedBy) {
+            obfData.requested_by = requestedBy;
+        }
+
+        await timeOperation("watermark_inject", () =>
+            appendEntry(
+                jarPath,
+                this.watermarkFileName,
+                Buffer.from(JSON.stringify(obfData))
+            )
+        );
+    }
+
     /**
      * @throws {Error} If watermark file is not found, or file fails to parse.
      */
@@ -279,14 +459,21 @@ export class AllatoriObfuscator extends Obfuscator {
         jarPath: string
     ): Promise<any> {
         // We don't catch any errors here, we want to pass them to the calling function
-        const zip = new AdmZip(jarPath);
-        const obfFile = zip.getEntry(this.watermarkFileName);
+        // Only the central directory and the watermark entry are read
+        const fd = fs.openSync(jarPath, "r");
+        try {
+            const obfFile = readCentralDirectory(fd).entries.find(
+                (entry) => entry.name === this.watermarkFileName
+            );
 
-        if (!obfFile) {
-            throw new Error("Failed to find watermark file in JAR.");
-        }
+            if (!obfFile) {
+                throw new Error("Failed to find watermark file in JAR.");
+            }
 
-        const obfData = obfFile.getData().toString("utf8");
-        return JSON.parse(obfData);
+            const obfData = await readEntry(fd, obfFile, AllatoriObfuscator.MAX_WATERMARK_SIZE);
+            return JSON.parse(obfData.toString("utf8"));
+        } finally {
+            fs.closeSync(fd);
+        }
     }
 }
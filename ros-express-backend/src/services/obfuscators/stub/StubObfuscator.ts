@@ -0,0 +1,38 @@
+import path from "path";
+import fs from "fs";
+import colors from "colors";
+import { setTimeout as sleep } from "timers/promises";
+import { UserInfo } from "../../../middleware/authorization.js";
+import { AllatoriObfuscator } from "../allatori/AllatoriObfuscator.js";
+import { ObfuscationFile } from "../Obfuscator.js";
+import { storeResult } from "../../resultStoreService.js";
+
+/**
+ * Stands in for a real obfuscator when load testing: the jar is copied (after a configurable delay) instead of obfuscated.
+ * Watermarking is inherited, so the server does the same jar and zip work as it does in production, without an obfuscator licence.
+ * Enabled with `ROS_OBFUSCATOR_TYPE=STUB`, never use it for real builds.
+ */
+export class StubObfuscator extends AllatoriObfuscator {
+    // Simulated obfuscation time, defaults to 2 seconds
+    private readonly delayMs = Number(process.env.ROS_STUB_DELAY_MS || 2000);
+
+    async obfuscate(
+        jarFile: ObfuscationFile,
+        _configFile: ObfuscationFile,
+        requestID: string,
+        userInfo: UserInfo,
+        requestedBy?: string,
+        resultKey?: string,
+        signal?: AbortSignal
+    ): Promise<void> {
+        // Written where the real obfuscator writes its output
+        const outputPath = path.resolve(path.dirname(jarFile.path), `${requestID}.jar`);
+        await sleep(this.delayMs, undefined, { signal });
+        await fs.promises.copyFile(jarFile.path, outputPath);
+        if (resultKey) {
+            await storeResult(resultKey, outputPath);
+        }
+        await this.writeWatermark(outputPath, requestID, userInfo, requestedBy);
+        console.log(colors.gray(`[Stub] Request ${requestID} copied after ${this.delayMs}ms`));
+    }
+}
@@ -0,0 +1,175 @@
+// The scheduling view of a queued item
+export interface SchedulableItem {
+    owner: string;
+    enqueuedAt: number;
+    estimatedMs: number;
+}
+
+/**
+ * Decides the order in which waiting items are dispatched.
+ */
+export interface QueueScheduler {
+    /**
+     * @returns the waiting items, in the order they will be dispatched
+     */
+    order<T extends SchedulableItem>(waiting: T[], running: T[], now: number): T[];
+}
+
+/**
+ * Dispatches items in the order they arrived.
+ */
+class FifoScheduler implements QueueScheduler {
+    order<T extends SchedulableItem>(waiting: T[]): T[] {
+        return [...waiting];
+    }
+}
+
+/**
+ * Dispatches the shortest (estimated) items first.
+ * Every millisecond an item waits counts as a millisecond less work, so long items can't be overtaken forever.
+ */
+class ShortestJobFirstScheduler implements QueueScheduler {
+    constructor(private readonly maxWaitMs: number) {}
+
+    order<T extends SchedulableItem>(waiting: T[], _running: T[], now: number): T[] {
+        const [overdue, rest] = splitOverdue(waiting, now, this.maxWaitMs);
+        return [...overdue, ...rest.sort((a, b) => agedEstimate(a, now) - agedEstimate(b, now))];
+    }
+}
+
+/**
+ * Shares the workers between owners: the next item belongs to the owner with the least (estimated) work running or
+ *  dispatched before it, so one owner's burst of jobs is interleaved with everyone else's. Each owner's items go shortest first.
+ */
+class FairScheduler implements QueueScheduler {
+    constructor(private readonly maxWaitMs: number) {}
+
+    order<T extends SchedulableItem>(waiting: T[], running: T[], now: number): T[] {
+        const [overdue, rest] = splitOverdue(waiting, now, this.maxWaitMs);
+        const ordered = [...overdue];
+
+        const load = new Map<string, number>();
+        for (const item of [...running, ...overdue]) {
+            addLoad(load, item);
+        }
+        const byOwner = new Map<string, T[]>();
+        for (const item of rest) {
+            const items = byOwner.get(item.owner) ?? [];
+            items.push(item);
+            byOwner.set(item.owner, items);
+        }
+        byOwner.forEach((items) => items.sort((a, b) => agedEstimate(a, now) - agedEstimate(b, now)));
+
+        // Simulate the dispatches, every dispatched item adds to its owner's load
+        while (byOwner.size > 0) {
+            let next: T[] | null = null;
+            let nextLoad = Infinity;
+            for (const [owner, items] of byOwner) {
+                const ownerLoad = load.get(owner) ?? 0;
+                if (
+                    ownerLoad < nextLoad ||
+                    (ownerLoad === nextLoad && items[0].enqueuedAt < next![0].enqueuedAt)
+                ) {
+                    next = items;
+                    nextLoad = ownerLoad;
+                }
+            }
+            const item = next!.shift()!;
+            ordered.push(item);
+            addLoad(load, item);
+            if (next!.length === 0) {
+                byOwner.delete(item.owner);
+            }
+        }
+        return ordered;
+    }
+}
+
+function addLoad(load: Map<string, number>, item: SchedulableItem): void {
+    // At least 1ms, so owners take turns even when nothing can be estimated
+    load.set(item.owner, (load.get(item.owner) ?? 0) + Math.max(item.estimatedMs, 1));
+}
+
+function agedEstimate(item: SchedulableItem, now: number): number {
+    return item.estimatedMs - (now - item.enqueuedAt);
+}
+
+// Items that waited longer than the limit skip the scheduler, in the order they arrived
+function splitOverdue<T extends SchedulableItem>(waiting: T[], now: number, maxWaitMs: number): [T[], T[]] {
+    const overdue: T[] = [];
+    const rest: T[] = [];
+    for (const item of waiting) {
+        (now - item.enqueuedAt >= maxWaitMs ? overdue : rest).push(item);
+    }
+    return [overdue, rest];
+}
+
+export function createScheduler(name: string, maxWaitMs: number): QueueScheduler {
+    switch (name.toLowerCase()) {
+        case "fifo":
+            return new FifoScheduler();
+        case "sjf":
+            return new ShortestJobFirstScheduler(maxWaitMs);
+        case "fair":
+            return new FairScheduler(maxWaitMs);
+        default:
+            throw new Error(`Unknown queue scheduler: ${name}`);
+    }
+}
+
+/**
+ * Estimates how long an item takes, from the durations of past items.
+ * Items that ran before (same history key, i.e. the same project's jar) use their own recent durations,
+ *  others a linear fit of duration over input size.
+ */
+export class DurationEstimator {
+    private static readonly MAX_SAMPLES = 200;
+    private static readonly MAX_HISTORY_KEYS = 1000;
+    // Until there is history: 5 seconds plus 1 second per MB
+    private static readonly DEFAULT_BASE_MS = 5000;
+    private static readonly DEFAULT_MS_PER_BYTE = 1000 / (1024 * 1024);
+
+    private samples: { sizeBytes: number; durationMs: number }[] = [];
+    private byKey = new Map<string, number>();
+
+    estimate(sizeBytes: number = 0, historyKey?: string): number {
+        const known = historyKey !== undefined ? this.byKey.get(historyKey) : undefined;
+        if (known !== undefined) {
+            return known;
+        }
+
+        let baseMs = DurationEstimator.DEFAULT_BASE_MS;
+        let msPerByte = DurationEstimator.DEFAULT_MS_PER_BYTE;
+        if (this.samples.length >= 5) {
+            const n = this.samples.length;
+            const meanSize = this.samples.reduce((sum, s) => sum + s.sizeBytes, 0) / n;
+            const meanDuration = this.samples.reduce((sum, s) => sum + s.durationMs, 0) / n;
+            let covariance = 0;
+            let variance = 0;
+            for (const sample of this.samples) {
+                covariance += (sample.sizeBytes - meanSize) * (sample.durationMs - meanDuration);
+                variance += (sample.sizeBytes - meanSize) ** 2;
+            }
+            // Same sized (or size independent) jobs are estimated by their mean duration
+            msPerByte = variance > 0 ? Math.max(covariance / variance, 0) : 0;
+            baseMs = meanDuration - msPerByte * meanSize;
+        }
+        return Math.max(Math.round(baseMs + msPerByte * sizeBytes), 0);
+    }
+
+    record(sizeBytes: number = 0, historyKey: string | undefined, durationMs: number): void {
+        this.samples.push({ sizeBytes, durationMs });
+        if (this.samples.length > DurationEstimator.MAX_SAMPLES) {
+            this.samples.shift();
+        }
+        if (historyKey !== undefined) {
+            // Weighted towards recent runs, projects change over time
+            const previous = this.byKey.get(historyKey);
+            this.byKey.delete(historyKey);
+            this.byKey.set(historyKey, previous === undefined ? durationMs : Math.round(previous * 0.7 + durationMs * 0.3));
+            if (this.byKey.size > DurationEstimator.MAX_HISTORY_KEYS) {
+                this.byKey.delete(this.byKey.keys().next().value!);
+            }
+        }
+    }
+}
@@ -1,12 +1,34 @@
 import colors from "colors";
+import {
+    getJobHeapMB,
+    getJobMemoryBudgetMB,
+    getJobTimeoutMs,
+    getQueueAdmissionMaxWaitMs,
+    getQueueMaxWaitMs,
+    getQueueSchedulerType,
+    getQueueWorkers,
+} from "./envService.js";
+import { createScheduler, DurationEstimator, QueueScheduler, SchedulableItem } from "./queueScheduler.js";
+import { Gauge, queueJobSeconds, queueWaitSeconds, registerCollector } from "./metricsService.js";
 
 type QueueType = "obfuscate" | "watermark" | "stacktrace";
 
 interface QueueItem {
     id: string;
     type: QueueType;
-    process: () => Promise<void>;
-    timeout?: number; // Optional timeout in milliseconds
+    // Aborted when the item times out, "skipped" when there was nothing to do (i.e. another replica ran it)
+    process: (signal: AbortSignal) => Promise<void | "skipped">;
+    timeout?: number; // Optional timeout in milliseconds, defaults to ROS_JOB_TIMEOUT_MS
+    memoryMB?: number; // Optional memory reservation, defaults to the queue's
+    owner?: string; // Who queued the item (user or PAT name), workers are shared fairly between owners
+    sizeBytes?: number; // Optional input size, used to estimate the duration
+    historyKey?: string; // Optional key of repeated items (i.e. a project's jar), their past durations are the best estimate
+}
+
+interface ScheduledItem extends SchedulableItem {
+    item: QueueItem;
+    startedAt?: number;
+    controller?: AbortController; // Aborts the running item (it timed out, or was cancelled)
 }
 
 interface QueueAddResult {
@@ -14,117 +36,350 @@ interface QueueAddResult {
     size: number;      // Total queue size at the time of addition
 }
 
+// When an item is expected to start and finish (epoch ms), from the durations of past items
+export interface QueueEstimate {
+    startAt: number;
+    finishAt: number;
+}
+
+/**
+ * Thrown when a queue can't take another item: it is full, or the item would wait longer than ROS_QUEUE_ADMISSION_MAX_WAIT_MS.
+ * Sent as a 503, with the time the queue needs to catch up as its `Retry-After`.
+ */
+export class QueueFullError extends Error {
+    readonly status = 503;
+
+    constructor(message: string, readonly retryAfterMs: number) {
+        super(message);
+    }
+}
+
+// Memory reserved by running jobs (of every queue), each obfuscator JVM needs its own heap
+const memoryBudgetMB = getJobMemoryBudgetMB();
+let reservedMemoryMB = 0;
+// Idle obfuscator daemons (see AllatoriDaemon) keep their heap between jobs, a job of these queues runs on one of them
+const idleDaemons = { count: 0, heapMB: 0 };
+const daemonQueues: QueueType[] = ["obfuscate", "stacktrace"];
+
 class Queue {
     private static readonly MAX_QUEUE_SIZE = 1000;
-    private static readonly DEFAULT_TIMEOUT = 180000; // 180 seconds default timeout
 
-    private items: QueueItem[] = [];
-    private isProcessing = new Int32Array(new SharedArrayBuffer(4)); // Atomic flag
-    private processingPromise: Promise<void> | null = null;
+    // Running items (in the order they started), and the waiting items (in the order they arrived)
+    private running: ScheduledItem[] = [];
+    private waiting: ScheduledItem[] = [];
+    private estimator = new DurationEstimator();
+
+    constructor(
+        private readonly type: QueueType,
+        private readonly workers: number,
+        private readonly memoryPerJobMB: number,
+        private readonly scheduler: QueueScheduler
+    ) {
+        console.log(colors.gray(`[Queue:${type}] ${workers} workers, ${memoryPerJobMB} MB per job`));
+    }
 
     /**
      * Adds an item to the queue and returns immediately with its position and size.
-     * Queue processing is handled asynchronously by the processQueue method.
-     * @throws Error if queue is full
+     * Queue processing is handled asynchronously, by up to `workers` jobs at a time.
+     * @throws QueueFullError if queue is full
      */
     add(item: QueueItem): QueueAddResult {
-        if (this.items.length >= Queue.MAX_QUEUE_SIZE) {
-            throw new Error(`Queue is full (max size: ${Queue.MAX_QUEUE_SIZE})`);
+        if (this.getQueueLength() >= Queue.MAX_QUEUE_SIZE) {
+            throw new QueueFullError(`Queue is full (max size: ${Queue.MAX_QUEUE_SIZE})`, this.getNextFinishMs());
         }
 
-        const position = this.items.length;
-        const size = position + 1; // Size after adding this item
-        this.items.push(item);
-        console.log(colors.gray(`[Queue:${item.type}] Job ${item.id} added at position ${position + 1}/${size}`));
-        
-        // Start processing if not already running
+        this.waiting.push({
+            item,
+            owner: item.owner ?? "anonymous",
+            enqueuedAt: Date.now(),
+            estimatedMs: this.estimator.estimate(item.sizeBytes, item.historyKey),
+        });
+        // Start processing if a worker is free, the item may start right away (or be scheduled ahead of others)
         this.startProcessing();
-        
+
+        const position = this.getJobQueueIndex(item.id);
+        const size = this.getQueueLength(); // Size after adding this item
+        console.log(colors.gray(`[Queue:${item.type}] Job ${item.id} added at position ${position + 1}/${size}`));
+
         return { index: position, size };
     }
 
     /**
-     * Safely starts the queue processing if it's not already running.
-     * Uses atomic operations to prevent race conditions.
+     * Starts waiting items while there are free workers, and enough memory for the next item.
+     * Items start in the scheduler's order, so a large item that is next waits for memory instead of being overtaken.
      */
-    private startProcessing(): void {
-        // Try to set the processing flag from 0 to 1
-        if (Atomics.compareExchange(this.isProcessing, 0, 0, 1) === 0) {
-            // We successfully acquired the lock
-            if (this.items.length > 0) {
-                // Start processing if there are items
-                this.processingPromise = this.processQueue();
-                this.processingPromise.finally(() => {
-                    // Reset the processing flag when done
-                    Atomics.store(this.isProcessing, 0, 0);
-                });
-            } else {
-                // No items to process, release the lock
-                Atomics.store(this.isProcessing, 0, 0);
+    startProcessing(): void {
+        while (this.waiting.length > 0 && this.running.length < this.workers) {
+            const scheduled = this.getDispatchOrder()[0];
+            const item = scheduled.item;
+            const memoryMB = item.memoryMB ?? this.memoryPerJobMB;
+            // A job that takes over an idle daemon doesn't need memory for another JVM on top of it
+            const idleMB = idleDaemons.count * idleDaemons.heapMB;
+            const takenOverMB = daemonQueues.includes(this.type) && idleDaemons.count > 0 ? Math.min(memoryMB, idleDaemons.heapMB) : 0;
+            // A job always runs when nothing else in this queue does, so a job over budget can't wait forever
+            if (this.running.length > 0 && reservedMemoryMB + idleMB - takenOverMB + memoryMB > memoryBudgetMB) {
+                break;
             }
-        }
-    }
 
-    /**
-     * Asynchronously processes the queue items one at a time.
-     * This method runs independently of the add method.
-     */
-    private async processQueue(): Promise<void> {
-        while (this.items.length > 0) {
-            const item = this.items[0];
-            const timeout = item.timeout ?? Queue.DEFAULT_TIMEOUT;
-            
-            try {
-                console.log(colors.gray(`[Queue:${item.type}] Starting job ${item.id} (${this.items.length} remaining)`));
-                
-                // Create a promise that rejects after timeout
-                const timeoutPromise = new Promise((_, reject) => {
-                    setTimeout(() => {
-                        reject(new Error(`Job ${item.id} timed out after ${timeout}ms`));
-                    }, timeout);
-                });
-
-                // Race between the actual process and the timeout
-                await Promise.race([
-                    item.process(),
-                    timeoutPromise
-                ]);
-
-                console.log(colors.gray(`[Queue:${item.type}] Completed job ${item.id}`));
-            } catch (error) {
-                if (error instanceof Error && error.message.includes('timed out')) {
-                    console.error(colors.red(`[Queue:${item.type}] Timeout processing job ${item.id}`));
-                } else {
-                    console.error(colors.red(`[Queue:${item.type}] Error processing job ${item.id}: ${error}`));
+            this.waiting.splice(this.waiting.indexOf(scheduled), 1);
+            this.running.push(scheduled);
+            reservedMemoryMB += memoryMB;
+            const startedAt = Date.now();
+            scheduled.startedAt = startedAt;
+            scheduled.controller = new AbortController();
+            this.processItem(item, scheduled.controller).then((outcome) => {
+                reservedMemoryMB -= memoryMB;
+                this.running.splice(this.running.indexOf(scheduled), 1);
+                // Skipped (and cancelled) items didn't run their course, they would drag the estimates (and the metrics) down
+                if (outcome !== "skipped" && outcome !== "cancelled") {
+                    this.estimator.record(item.sizeBytes, item.historyKey, Date.now() - startedAt);
+                    queueWaitSeconds.observe({ queue: item.type }, (startedAt - scheduled.enqueuedAt) / 1000);
+                    queueJobSeconds.observe({ queue: item.type, outcome }, (Date.now() - startedAt) / 1000);
                 }
-            } finally {
-                this.items.shift(); // Remove the processed item
-                if (this.items.length > 0) {
-                    console.log(colors.gray(`[Queue:${item.type}] ${this.items.length} jobs remaining`));
+                const remaining = this.getQueueLength();
+                if (remaining > 0) {
+                    console.log(colors.gray(`[Queue:${item.type}] ${remaining} jobs remaining`));
                 } else {
                     console.log(colors.gray(`[Queue:${item.type}] Queue is empty`));
                 }
+                // The freed worker (and memory) may let jobs of any queue start
+                startAllQueues();
+            });
+        }
+    }
+
+    /**
+     * Runs a single item, cancelling it (through the signal given to `process`) if it does not finish in time.
+     * The item keeps its worker and memory until it settles, so a cancelled JVM is gone before another one starts.
+     * @param controller aborted on timeout, or when the item is cancelled (see `cancel`)
+     * @returns how the item ended, never rejects
+     */
+    private async processItem(
+        item: QueueItem,
+        controller: AbortController
+    ): Promise<"completed" | "failed" | "timeout" | "cancelled" | "skipped"> {
+        const timeout = item.timeout ?? getJobTimeoutMs();
+        let timedOut = false;
+        const timer = setTimeout(() => {
+            console.error(colors.red(`[Queue:${item.type}] Timeout processing job ${item.id}, cancelling it`));
+            timedOut = true;
+            controller.abort(new Error(`Job ${item.id} timed out after ${timeout}ms`));
+        }, timeout);
+
+        try {
+            console.log(colors.gray(`[Queue:${item.type}] Starting job ${item.id} (${this.running.length}/${this.workers} workers busy, ${this.waiting.length} waiting)`));
+
+            const result = await item.process(controller.signal);
+            if (controller.signal.aborted) {
+                return timedOut ? "timeout" : "cancelled";
+            }
+            if (result === "skipped") {
+                console.log(colors.gray(`[Queue:${item.type}] Skipped job ${item.id}`));
+                return "skipped";
             }
+
+            console.log(colors.gray(`[Queue:${item.type}] Completed job ${item.id}`));
+            return "completed";
+        } catch (error) {
+            if (controller.signal.aborted) {
+                return timedOut ? "timeout" : "cancelled";
+            }
+            console.error(colors.red(`[Queue:${item.type}] Error processing job ${item.id}: ${error}`));
+            return "failed";
+        } finally {
+            clearTimeout(timer);
+        }
+    }
+
+    has(jobId: string): boolean {
+        return [...this.running, ...this.waiting].some(scheduled => scheduled.item.id === jobId);
+    }
+
+    /**
+     * Removes a waiting item (i.e. one that another replica started), running items can't be removed.
+     * @returns whether the item was waiting
+     */
+    remove(jobId: string): boolean {
+        const index = this.waiting.findIndex(scheduled => scheduled.item.id === jobId);
+        if (index === -1) {
+            return false;
         }
+        this.waiting.splice(index, 1);
+        return true;
+    }
+
+    /**
+     * Cancels an item: a waiting item is removed, a running one is aborted (it keeps its worker until it settles).
+     * @returns whether the item was in the queue
+     */
+    cancel(jobId: string): boolean {
+        if (this.remove(jobId)) {
+            return true;
+        }
+        const running = this.running.find(scheduled => scheduled.item.id === jobId);
+        if (!running) {
+            return false;
+        }
+        console.log(colors.gray(`[Queue:${running.item.type}] Cancelling job ${jobId}`));
+        running.controller?.abort(new Error(`Job ${jobId} was cancelled`));
+        return true;
     }
 
     getQueueLength(): number {
-        return this.items.length;
+        return this.running.length + this.waiting.length;
+    }
+
+    getStats(): { running: number; waiting: number; workers: number } {
+        return { running: this.running.length, waiting: this.waiting.length, workers: this.workers };
     }
 
+    // Running jobs come first (by start time), then the waiting ones in dispatch order,
+    //  so a job's index is the number of jobs that start before it
     getJobQueueIndex(jobId: string): number {
-        return this.items.findIndex(item => item.id === jobId);
+        const runningIndex = this.running.findIndex(scheduled => scheduled.item.id === jobId);
+        if (runningIndex !== -1) {
+            return runningIndex;
+        }
+        const waitingIndex = this.getDispatchOrder().findIndex(scheduled => scheduled.item.id === jobId);
+        return waitingIndex === -1 ? -1 : this.running.length + waitingIndex;
+    }
+
+    /**
+     * Checks that items would be taken without waiting too long, where the scheduler would put them.
+     * The items are checked together (i.e. a batch), each of them waits behind the others as well as the queued items.
+     * Items are only checked when they are submitted, items that were already accepted (i.e. requeued) are always added.
+     * @throws QueueFullError if the queue can't take all of them, or one would wait longer than ROS_QUEUE_ADMISSION_MAX_WAIT_MS
+     */
+    checkAdmission(items: Pick<QueueItem, "owner" | "sizeBytes" | "historyKey">[]): void {
+        if (this.getQueueLength() + items.length > Queue.MAX_QUEUE_SIZE) {
+            throw new QueueFullError(`Queue is full (max size: ${Queue.MAX_QUEUE_SIZE})`, this.getNextFinishMs());
+        }
+        const maxWaitMs = getQueueAdmissionMaxWaitMs();
+        if (maxWaitMs === 0) {
+            return;
+        }
+
+        const now = Date.now();
+        const candidates: SchedulableItem[] = items.map(item => ({
+            owner: item.owner ?? "anonymous",
+            enqueuedAt: now,
+            estimatedMs: this.estimator.estimate(item.sizeBytes, item.historyKey),
+        }));
+        const order = this.scheduler.order<SchedulableItem>([...this.waiting, ...candidates], this.running, now);
+        const starts = this.estimateStarts(order, now);
+        const waitMs = Math.max(...candidates.map(candidate => starts.get(candidate)! - now));
+        if (waitMs > maxWaitMs) {
+            // The queue is worked through at the estimated rate, so this is how long until a new item fits again
+            throw new QueueFullError(
+                `Queue is overloaded (estimated wait: ${Math.round(waitMs / 1000)}s)`,
+                waitMs - maxWaitMs
+            );
+        }
+    }
+
+    /**
+     * @returns when the item is expected to start and finish, or null if it isn't in this queue
+     */
+    getEstimate(jobId: string): QueueEstimate | null {
+        const running = this.running.find(scheduled => scheduled.item.id === jobId);
+        if (running) {
+            const startAt = running.startedAt!;
+            // Running past its estimate, it may finish any moment
+            return { startAt, finishAt: Math.max(startAt + running.estimatedMs, Date.now()) };
+        }
+        const now = Date.now();
+        const order = this.getDispatchOrder();
+        const waiting = order.find(scheduled => scheduled.item.id === jobId);
+        if (!waiting) {
+            return null;
+        }
+        const startAt = this.estimateStarts(order, now).get(waiting)!;
+        return { startAt, finishAt: startAt + waiting.estimatedMs };
+    }
+
+    /**
+     * Simulates the workers: running items finish as estimated, and each waiting item (in dispatch order) takes the
+     *  first worker to be free. Memory isn't simulated, so items that wait for memory start later than estimated.
+     * @returns when each waiting item is expected to start
+     */
+    private estimateStarts<T extends SchedulableItem>(order: T[], now: number): Map<T, number> {
+        // When each worker is free, soonest first
+        const freeAt = this.running.map(scheduled => Math.max(scheduled.startedAt! + scheduled.estimatedMs, now));
+        while (freeAt.length < this.workers) {
+            freeAt.push(now);
+        }
+        freeAt.sort((a, b) => a - b);
+
+        const starts = new Map<T, number>();
+        for (const scheduled of order) {
+            const startAt = freeAt.shift()!;
+            starts.set(scheduled, startAt);
+            const finishAt = startAt + scheduled.estimatedMs;
+            const index = freeAt.findIndex(time => time > finishAt);
+            freeAt.splice(index === -1 ? freeAt.length : index, 0, finishAt);
+        }
+        return starts;
+    }
+
+    // How long until a running item is expected to finish (and a place in the queue frees up)
+    private getNextFinishMs(): number {
+        const now = Date.now();
+        const finishes = this.running.map(scheduled => scheduled.startedAt! + scheduled.estimatedMs - now);
+        return finishes.length > 0 ? Math.max(Math.min(...finishes), 0) : 0;
+    }
+
+    private getDispatchOrder(): ScheduledItem[] {
+        return this.scheduler.order(this.waiting, this.running, Date.now());
     }
 }
 
-// Create queues for each route type
+// Create queues for each route type, with the memory each of their jobs needs
 const queues = new Map<QueueType, Queue>();
+const memoryPerJobMB: Record<QueueType, number> = {
+    obfuscate: getJobHeapMB(),
+    watermark: 0, // Runs in process
+    stacktrace: 512, // Matches the -Xmx of the stack trace JVM
+};
 
 // Initialize queues
-["obfuscate", "watermark", "stacktrace"].forEach((type) => {
-    queues.set(type as QueueType, new Queue());
+(["obfuscate", "watermark", "stacktrace"] as QueueType[]).forEach((type) => {
+    const memoryMB = memoryPerJobMB[type];
+    const scheduler = createScheduler(getQueueSchedulerType(), getQueueMaxWaitMs());
+    queues.set(type, new Queue(type, getQueueWorkers(type, memoryMB), memoryMB, scheduler));
+});
+
+const queueJobs = new Gauge("ros_queue_jobs", "Jobs in each queue, by state (running or waiting).", ["queue", "state"]);
+const queueWorkers = new Gauge("ros_queue_workers", "Jobs each queue runs at the same time at most.", ["queue"]);
+const queueMemory = new Gauge("ros_queue_memory_mb", "Memory reserved by running jobs, held by idle daemons, and the budget they share.", ["kind"]);
+registerCollector(() => {
+    queues.forEach((queue, type) => {
+        const stats = queue.getStats();
+        queueJobs.set({ queue: type, state: "running" }, stats.running);
+        queueJobs.set({ queue: type, state: "waiting" }, stats.waiting);
+        queueWorkers.set({ queue: type }, stats.workers);
+    });
+    queueMemory.set({ kind: "reserved" }, reservedMemoryMB);
+    queueMemory.set({ kind: "idle" }, idleDaemons.count * idleDaemons.heapMB);
+    queueMemory.set({ kind: "budget" }, memoryBudgetMB);
 });
 
+function startAllQueues(): void {
+    queues.forEach((queue) => queue.startProcessing());
+}
+
+/**
+ * Updates the idle obfuscator daemons, whose heap counts against the memory budget like running jobs do.
+ */
+export function setIdleDaemons(count: number, heapMB: number): void {
+    const freed = count < idleDaemons.count;
+    idleDaemons.count = count;
+    idleDaemons.heapMB = heapMB;
+    // A retired daemon's memory may let waiting jobs start
+    if (freed) {
+        startAllQueues();
+    }
+}
+
 export function addToQueue(type: QueueType, item: QueueItem): QueueAddResult {
     const queue = queues.get(type);
     if (!queue) {
@@ -133,6 +388,30 @@ export function addToQueue(type: QueueType, item: QueueItem): QueueAddResult {
     return queue.add(item);
 }
 
+export function isQueued(type: QueueType, jobId: string): boolean {
+    const queue = queues.get(type);
+    if (!queue) {
+        throw new Error(`Invalid queue type: ${type}`);
+    }
+    return queue.has(jobId);
+}
+
+export function removeFromQueue(type: QueueType, jobId: string): boolean {
+    const queue = queues.get(type);
+    if (!queue) {
+        throw new Error(`Invalid queue type: ${type}`);
+    }
+    return queue.remove(jobId);
+}
+
+export function cancelFromQueue(type: QueueType, jobId: string): boolean {
+    const queue = queues.get(type);
+    if (!queue) {
+        throw new Error(`Invalid queue type: ${type}`);
+    }
+    return queue.cancel(jobId);
+}
+
 export function getQueueLength(type: QueueType): number {
     const queue = queues.get(type);
     if (!queue) {
@@ -147,4 +426,20 @@ export function getJobQueueIndex(type: QueueType, jobId: string): number {
         throw new Error(`Invalid queue type: ${type}`);
     }
     return queue.getJobQueueIndex(jobId);
-} 
\ No newline at end of file
+}
+
+export function checkAdmission(type: QueueType, items: Pick<QueueItem, "owner" | "sizeBytes" | "historyKey">[]): void {
+    const queue = queues.get(type);
+    if (!queue) {
+        throw new Error(`Invalid queue type: ${type}`);
+    }
+    queue.checkAdmission(items);
+}
+
+export function getJobEstimate(type: QueueType, jobId: string): QueueEstimate | null {
+    const queue = queues.get(type);
+    if (!queue) {
+        throw new Error(`Invalid queue type: ${type}`);
+    }
+    return queue.getEstimate(jobId);
+}
@@ -0,0 +1,152 @@
+import fs from "fs";
+import path from "path";
+import crypto from "crypto";
+import colors from "colors";
+import { getResultStoreDir, getResultStoreMB, getResultStoreTTLHours } from "./envService.js";
+
+/**
+ * Keeps the output of recent jobs (the obfuscated jar before it was watermarked, and its log) by result key, so a request
+ *  with the same jar and config is served a copy of it instead of being obfuscated again. Each copy is then watermarked
+ *  for its own request. Results are plain files, so replicas sharing the directory share the results as well.
+ */
+
+const KEY_REGEX = /^[a-f0-9]{64}$/;
+
+export function isResultStoreEnabled(): boolean {
+    return getResultStoreMB() > 0;
+}
+
+/**
+ * Identifies the result of a job: the same jar obfuscated with the same config (as digested by the obfuscator) has the same key.
+ */
+export function getResultKey(jarSha256: string, configDigest: string): string {
+    return crypto.createHash("sha256").update(`${jarSha256}:${configDigest}`).digest("hex");
+}
+
+function getResultPath(key: string, extension: "jar" | "log"): string {
+    if (!KEY_REGEX.test(key)) {
+        throw new Error(`Invalid result key: '${key}'`);
+    }
+    return path.resolve(getResultStoreDir(), `${key}.${extension}`);
+}
+
+function isExpired(mtimeMs: number): boolean {
+    return mtimeMs < Date.now() - getResultStoreTTLHours() * 60 * 60 * 1000;
+}
+
+export function hasResult(key: string): boolean {
+    try {
+        return !isExpired(fs.statSync(getResultPath(key, "jar")).mtimeMs);
+    } catch (error) {
+        return false;
+    }
+}
+
+/**
+ * Stores a job's output. Failing to store it only costs identical requests an obfuscation, so errors are logged, not thrown.
+ * @param logPath the obfuscation log (the mapping), if the obfuscator writes one
+ */
+export async function storeResult(key: string, jarPath: string, logPath?: string): Promise<void> {
+    if (!isResultStoreEnabled()) {
+        return;
+    }
+    try {
+        await fs.promises.mkdir(getResultStoreDir(), { recursive: true });
+        // The log is stored first, a result is only found once its jar is in place (renamed into it whole)
+        if (logPath && fs.existsSync(logPath)) {
+            await copyAtomically(logPath, getResultPath(key, "log"));
+        }
+        await copyAtomically(jarPath, getResultPath(key, "jar"));
+        await pruneResults();
+    } catch (error) {
+        console.error(colors.yellow(`[ResultStore] Error storing result ${key}: ${error}`));
+    }
+}
+
+/**
+ * Copies a stored result to where a job writes its output, and marks it as recently used.
+ * @param logDest where the job writes its log (the log is copied only if one was stored)
+ * @returns false if no result is stored for the key (i.e. it expired or was removed)
+ */
+export async function copyResult(key: string, jarDest: string, logDest: string): Promise<boolean> {
+    const jarPath = getResultPath(key, "jar");
+    const logPath = getResultPath(key, "log");
+    if (!hasResult(key)) {
+        return false;
+    }
+    try {
+        const now = new Date();
+        await fs.promises.utimes(jarPath, now, now);
+        await fs.promises.copyFile(jarPath, jarDest);
+        if (fs.existsSync(logPath)) {
+            await fs.promises.utimes(logPath, now, now);
+            await fs.promises.copyFile(logPath, logDest);
+        }
+        return true;
+    } catch (error) {
+        if ((error as NodeJS.ErrnoException).code === "ENOENT") {
+            // Removed by a prune (possibly on another replica) since it was found
+            return false;
+        }
+        throw error;
+    }
+}
+
+async function copyAtomically(source: string, destination: string): Promise<void> {
+    const tempPath = `${destination}.${crypto.randomUUID()}.tmp`;
+    try {
+        await fs.promises.copyFile(source, tempPath);
+        await fs.promises.rename(tempPath, destination);
+    } finally {
+        await fs.promises.rm(tempPath, { force: true });
+    }
+}
+
+/**
+ * Removes expired results, then the least recently used ones until the store fits in ROS_RESULT_STORE_MB.
+ */
+async function pruneResults(): Promise<void> {
+    const storeDir = path.resolve(getResultStoreDir());
+    if (!fs.existsSync(storeDir)) {
+        return;
+    }
+
+    const results: { key: string; size: number; usedAt: number }[] = [];
+    for (const file of await fs.promises.readdir(storeDir)) {
+        if (!file.endsWith(".jar") || !KEY_REGEX.test(file.substring(0, file.length - 4))) {
+            continue;
+        }
+        const key = file.substring(0, file.length - 4);
+        try {
+            const jar = await fs.promises.stat(getResultPath(key, "jar"));
+            const log = await fs.promises.stat(getResultPath(key, "log")).catch(() => null);
+            results.push({ key, size: jar.size + (log ? log.size : 0), usedAt: jar.mtimeMs });
+        } catch (error) {
+            // Removed since it was listed
+        }
+    }
+
+    const maxSize = getResultStoreMB() * 1024 * 1024;
+    let totalSize = results.reduce((total, result) => total + result.size, 0);
+    let pruned = 0;
+    results.sort((a, b) => a.usedAt - b.usedAt);
+    for (const result of results) {
+        if (!isExpired(result.usedAt) && totalSize <= maxSize) {
+            break;
+        }
+        await fs.promises.rm(getResultPath(result.key, "jar"), { force: true });
+        await fs.promises.rm(getResultPath(result.key, "log"), { force: true });
+        totalSize -= result.size;
+        pruned++;
+    }
+    if (pruned > 0) {
+        console.log(colors.gray(`[ResultStore] Pruned ${pruned} results`));
+    }
+}
+
+// Remove expired results, even when no new results are stored
+setInterval(() => {
+    pruneResults().catch((error) => {
+        console.error(colors.red(`[ResultStore] Error pruning results: ${error}`));
+    });
+}, 15 * 60 * 1000); // Run every 15 minutes
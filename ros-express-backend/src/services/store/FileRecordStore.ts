@@ -0,0 +1,152 @@
+import fs from "fs";
+import path from "path";
+import crypto from "crypto";
+import { RecordStore, StoredRecord } from "./RecordStore.js";
+
+interface Lease {
+    owner: string;
+    expiresAt: number;
+}
+
+/**
+ * Keeps records as JSON files in a directory, which backend replicas share (i.e. an NFS or other network volume).
+ * Files are replaced atomically (written aside, then renamed), so readers never see a partial record.
+ * A lease is a `<id>.lease` file, created exclusively so only one owner can take it. An expired lease is moved aside
+ *  before it is taken over, so two replicas can't both take it. Replicas' clocks are expected to agree (within a few seconds).
+ */
+export class FileRecordStore<T extends StoredRecord> implements RecordStore<T> {
+    private static readonly ID_REGEX = /^[A-Za-z0-9_-]+$/;
+
+    constructor(private readonly directory: string) {
+        fs.mkdirSync(directory, { recursive: true });
+    }
+
+    get(id: string): T | undefined {
+        if (!FileRecordStore.ID_REGEX.test(id)) {
+            return undefined;
+        }
+        try {
+            return JSON.parse(fs.readFileSync(this.recordPath(id), "utf8")) as T;
+        } catch (error) {
+            if ((error as NodeJS.ErrnoException).code === "ENOENT") {
+                return undefined;
+            }
+            throw error;
+        }
+    }
+
+    put(record: T): void {
+        this.writeAtomically(this.recordPath(record.id), JSON.stringify(record));
+    }
+
+    delete(id: string): void {
+        if (!FileRecordStore.ID_REGEX.test(id)) {
+            return;
+        }
+        fs.rmSync(this.recordPath(id), { force: true });
+        fs.rmSync(this.leasePath(id), { force: true });
+    }
+
+    list(): T[] {
+        const records: T[] = [];
+        for (const file of fs.readdirSync(this.directory)) {
+            if (!file.endsWith(".json")) {
+                continue;
+            }
+            // Deleted by another replica since it was listed
+            const record = this.get(file.substring(0, file.length - 5));
+            if (record) {
+                records.push(record);
+            }
+        }
+        return records;
+    }
+
+    claim(id: string, owner: string, leaseMs: number): boolean {
+        const leasePath = this.leasePath(id);
+        const lease: Lease = { owner, expiresAt: Date.now() + leaseMs };
+
+        const current = this.readLease(leasePath);
+        if (current && current.owner === owner) {
+            this.writeAtomically(leasePath, JSON.stringify(lease));
+            return true;
+        }
+        if (current && current.expiresAt > Date.now()) {
+            return false;
+        }
+        if (current) {
+            // Move the expired lease aside, only one replica can move it (the others see it disappear)
+            const stalePath = `${leasePath}.${crypto.randomUUID()}.stale`;
+            try {
+                fs.renameSync(leasePath, stalePath);
+            } catch (error) {
+                return false;
+            }
+            const moved = this.readLease(stalePath);
+            if (moved && moved.expiresAt > Date.now()) {
+                // Someone renewed or took the lease in between, so we moved theirs, put it back (unless it was replaced)
+                try {
+                    fs.linkSync(stalePath, leasePath);
+                } catch (error) {
+                    // Taken by yet another owner
+                }
+                fs.rmSync(stalePath, { force: true });
+                return false;
+            }
+            fs.rmSync(stalePath, { force: true });
+        }
+
+        try {
+            fs.writeFileSync(leasePath, JSON.stringify(lease), { flag: "wx" });
+            return true;
+        } catch (error) {
+            if ((error as NodeJS.ErrnoException).code === "EEXIST") {
+                return false;
+            }
+            throw error;
+        }
+    }
+
+    release(id: string, owner: string): void {
+        const leasePath = this.leasePath(id);
+        if (this.readLease(leasePath)?.owner === owner) {
+            fs.rmSync(leasePath, { force: true });
+        }
+    }
+
+    isClaimed(id: string): boolean {
+        const lease = this.readLease(this.leasePath(id));
+        return lease !== undefined && lease.expiresAt > Date.now();
+    }
+
+    private readLease(leasePath: string): Lease | undefined {
+        try {
+            return JSON.parse(fs.readFileSync(leasePath, "utf8")) as Lease;
+        } catch (error) {
+            // Missing, or caught while it was created (empty), either way there is no lease to honor yet
+            return undefined;
+        }
+    }
+
+    private writeAtomically(filePath: string, content: string): void {
+        const tempPath = `${filePath}.${crypto.randomUUID()}.tmp`;
+        fs.writeFileSync(tempPath, content);
+        fs.renameSync(tempPath, filePath);
+    }
+
+    private recordPath(id: string): string {
+        return path.join(this.directory, `${this.checkId(id)}.json`);
+    }
+
+    private leasePath(id: string): string {
+        return path.join(this.directory, `${this.checkId(id)}.lease`);
+    }
+
+    // IDs become file names, so they must not be able to point anywhere else
+    private checkId(id: string): string {
+        if (!FileRecordStore.ID_REGEX.test(id)) {
+            throw new Error(`Invalid record ID: '${id}'`);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,47 @@
+import { RecordStore, StoredRecord } from "./RecordStore.js";
+
+/**
+ * Keeps records in this process, they are lost when it stops.
+ */
+export class MemoryRecordStore<T extends StoredRecord> implements RecordStore<T> {
+    private records = new Map<string, T>();
+    private leases = new Map<string, { owner: string; expiresAt: number }>();
+
+    get(id: string): T | undefined {
+        const record = this.records.get(id);
+        return record ? structuredClone(record) : undefined;
+    }
+
+    put(record: T): void {
+        this.records.set(record.id, structuredClone(record));
+    }
+
+    delete(id: string): void {
+        this.records.delete(id);
+        this.leases.delete(id);
+    }
+
+    list(): T[] {
+        return [...this.records.values()].map((record) => structuredClone(record));
+    }
+
+    claim(id: string, owner: string, leaseMs: number): boolean {
+        const lease = this.leases.get(id);
+        if (lease && lease.owner !== owner && lease.expiresAt > Date.now()) {
+            return false;
+        }
+        this.leases.set(id, { owner, expiresAt: Date.now() + leaseMs });
+        return true;
+    }
+
+    release(id: string, owner: string): void {
+        if (this.leases.get(id)?.owner === owner) {
+            this.leases.delete(id);
+        }
+    }
+
+    isClaimed(id: string): boolean {
+        const lease = this.leases.get(id);
+        return lease !== undefined && lease.expiresAt > Date.now();
+    }
+}
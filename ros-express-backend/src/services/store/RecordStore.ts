@@ -0,0 +1,47 @@
+import path from "path";
+import { getStoreDir, getStoreType } from "../envService.js";
+import { MemoryRecordStore } from "./MemoryRecordStore.js";
+import { FileRecordStore } from "./FileRecordStore.js";
+
+// A record kept in a store, identified by its ID
+export interface StoredRecord {
+    id: string;
+}
+
+/**
+ * Keeps the records of one kind (jobs, uploads, ...), either in this process or shared between backend replicas.
+ * Records are copied in and out, so a change is only visible to others once it is put back.
+ * Leases let one replica (or request) work on a record at a time, they expire so a crashed owner can't hold one forever.
+ */
+export interface RecordStore<T extends StoredRecord> {
+    get(id: string): T | undefined;
+    put(record: T): void;
+    delete(id: string): void;
+    list(): T[];
+
+    /**
+     * Takes the lease on a record for the owner, or renews it if the owner already holds it.
+     * @returns false if another owner holds an unexpired lease
+     */
+    claim(id: string, owner: string, leaseMs: number): boolean;
+    release(id: string, owner: string): void;
+    isClaimed(id: string): boolean;
+}
+
+/**
+ * Whether records are shared with other replicas, which then may change them at any time.
+ */
+export function isSharedStore(): boolean {
+    return getStoreType() === "file";
+}
+
+export function createRecordStore<T extends StoredRecord>(collection: string): RecordStore<T> {
+    switch (getStoreType()) {
+        case "memory":
+            return new MemoryRecordStore<T>();
+        case "file":
+            return new FileRecordStore<T>(path.resolve(getStoreDir(), collection));
+        default:
+            throw new Error(`Unknown store type: ${getStoreType()}`);
+    }
+}
@@ -0,0 +1,112 @@
+import crypto from "crypto";
+import colors from "colors";
+import { getTraceCacheMB } from "./envService.js";
+
+export interface CacheStats {
+    entries: number;
+    size: number;
+    hits: number;
+    misses: number;
+}
+
+/**
+ * A least recently used cache, bounded by its number of entries and their total size.
+ */
+export class LruCache<V> {
+    // A Map iterates in insertion order, so re-inserting an entry on access keeps the least recently used one first
+    private entries = new Map<string, { value: V; size: number }>();
+    private totalSize = 0;
+    private hits = 0;
+    private misses = 0;
+
+    constructor(
+        private readonly maxEntries: number,
+        private readonly maxSize: number,
+        private readonly sizeOf: (value: V) => number
+    ) {}
+
+    get(key: string): V | undefined {
+        const entry = this.entries.get(key);
+        if (!entry) {
+            this.misses++;
+            return undefined;
+        }
+        this.hits++;
+        this.entries.delete(key);
+        this.entries.set(key, entry);
+        return entry.value;
+    }
+
+    set(key: string, value: V): void {
+        const size = this.sizeOf(value);
+        this.delete(key);
+        if (size > this.maxSize) {
+            return;
+        }
+        this.entries.set(key, { value, size });
+        this.totalSize += size;
+        while (this.entries.size > this.maxEntries || this.totalSize > this.maxSize) {
+            this.delete(this.entries.keys().next().value!);
+        }
+    }
+
+    delete(key: string): void {
+        const entry = this.entries.get(key);
+        if (entry) {
+            this.entries.delete(key);
+            this.totalSize -= entry.size;
+        }
+    }
+
+    stats(): CacheStats {
+        return {
+            entries: this.entries.size,
+            size: this.totalSize,
+            hits: this.hits,
+            misses: this.misses,
+        };
+    }
+}
+
+// Translated traces by request ID and trace hash, a request's mapping never changes so neither does its translation
+export const translationCache = new LruCache<string>(
+    10000,
+    getTraceCacheMB() * 1024 * 1024,
+    (trace) => Buffer.byteLength(trace)
+);
+
+// Obfuscated class names by request ID, parsed from the request's mapping
+export const mappingIndexCache = new LruCache<Set<string>>(
+    32,
+    Number.MAX_SAFE_INTEGER,
+    (classes) => classes.size
+);
+
+export function getTranslationCacheKey(requestID: string, trace: string): string {
+    const traceHash = crypto.createHash("sha256").update(trace).digest("hex");
+    return `${requestID}:${traceHash}`;
+}
+
+export function getTraceCacheStats(): Record<string, CacheStats> {
+    return {
+        translations: translationCache.stats(),
+        mapping_indexes: mappingIndexCache.stats(),
+    };
+}
+
+// Log the cache statistics every 15 minutes, if the caches were used
+let lastLookups = 0;
+setInterval(() => {
+    const stats = getTraceCacheStats();
+    const lookups = stats.translations.hits + stats.translations.misses;
+    if (lookups === lastLookups) {
+        return;
+    }
+    lastLookups = lookups;
+    console.log(
+        colors.gray(
+            `[TraceCache] Translations: ${stats.translations.hits} hits, ${stats.translations.misses} misses (${stats.translations.entries} cached, ${stats.translations.size} bytes)` +
+                `, mapping indexes: ${stats.mapping_indexes.hits} hits, ${stats.mapping_indexes.misses} misses`
+        )
+    );
+}, 15 * 60 * 1000); // Run every 15 minutes
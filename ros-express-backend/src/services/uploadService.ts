@@ -0,0 +1,91 @@
+import fs from "fs";
+import path from "path";
+import crypto from "crypto";
+import zlib from "zlib";
+import { pipeline, Transform } from "stream";
+import { Request } from "express";
+import multer from "multer";
+import { ZipEntryScanner } from "./zipService.js";
+import { uploadBytes } from "./metricsService.js";
+
+declare global {
+    namespace Express {
+        namespace Multer {
+            interface File {
+                // Whether the (jar) upload already contains a watermark entry, found while it was received
+                watermarked?: boolean;
+                // SHA-256 (hex) of the stored (decompressed) file, computed while it was received
+                sha256?: string;
+            }
+        }
+    }
+}
+
+// Parts sent with this content type are gzip compressed, and are decompressed as they are received
+const GZIP_MIME_TYPE = "application/gzip";
+
+/**
+ * Creates a multer storage engine that writes each uploaded part straight to disk.
+ * Works like multer's disk storage, except that gzip compressed parts are decompressed while streaming,
+ *  and each part's SHA-256 is computed on the way (set as the file's `sha256`).
+ * @param getWatermarkEntry names the watermark entry to look for in a part (or null to not look), the result is
+ *  set as the file's `watermarked`, so it costs no extra read of the file
+ */
+export function createUploadStorage(
+    destination: string,
+    getWatermarkEntry: (file: Express.Multer.File) => string | null = () => null
+): multer.StorageEngine {
+    return {
+        _handleFile(
+            _req: Request,
+            file: Express.Multer.File,
+            callback: (error?: any, info?: Partial<Express.Multer.File>) => void
+        ): void {
+            fs.mkdirSync(destination, { recursive: true });
+            const filename = crypto.randomBytes(16).toString("hex");
+            const filePath = path.join(destination, filename);
+            const out = fs.createWriteStream(filePath);
+            const watermarkEntry = getWatermarkEntry(file);
+            const scanner = watermarkEntry ? new ZipEntryScanner(watermarkEntry) : null;
+            const digest = crypto.createHash("sha256");
+
+            const done = (error?: Error | null) => {
+                if (error) {
+                    fs.unlink(filePath, () => callback(error));
+                    return;
+                }
+                uploadBytes.inc({ kind: "multipart" }, out.bytesWritten);
+                callback(null, {
+                    destination,
+                    filename,
+                    path: filePath,
+                    size: out.bytesWritten,
+                    watermarked: scanner ? scanner.found : undefined,
+                    sha256: digest.digest("hex"),
+                });
+            };
+
+            const streams: (NodeJS.ReadableStream | NodeJS.WritableStream)[] = [file.stream];
+            if (file.mimetype === GZIP_MIME_TYPE) {
+                streams.push(zlib.createGunzip());
+            }
+            // Sees the (decompressed) bytes on their way to disk
+            const inspector = new Transform({
+                transform(chunk: Buffer, _encoding, callback) {
+                    digest.update(chunk);
+                    scanner?.update(chunk);
+                    callback(null, chunk);
+                },
+            });
+            pipeline([...streams, inspector, out], done);
+        },
+
+        _removeFile(
+            _req: Request,
+            file: Express.Multer.File,
+            callback: (error: Error | null) => void
+        ): void {
+            fs.unlink(file.path, (err) => callback(err));
+        },
+    };
+}
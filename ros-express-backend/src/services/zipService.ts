@@ -0,0 +1,409 @@
+import fs from "fs";
+import zlib from "zlib";
+import { promisify } from "util";
+
+const deflateRaw = promisify(zlib.deflateRaw);
+const inflateRaw = promisify(zlib.inflateRaw);
+
+// Zip record signatures
+const LOCAL_FILE_HEADER_SIG = 0x04034b50;
+const CENTRAL_DIRECTORY_SIG = 0x02014b50;
+const END_OF_CENTRAL_DIRECTORY_SIG = 0x06054b50;
+const ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIG = 0x07064b50;
+
+// Fixed record sizes, without names, extra fields and comments
+const LOCAL_FILE_HEADER_SIZE = 30;
+const CENTRAL_DIRECTORY_RECORD_SIZE = 46;
+const END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+const MAX_COMMENT_SIZE = 0xffff;
+
+// Zip limits without zip64 extensions
+const MAX_ENTRIES = 0xffff;
+const MAX_SIZE = 0xffffffff;
+
+const CRC_TABLE = (() => {
+    const table = new Uint32Array(256);
+    for (let n = 0; n < 256; n++) {
+        let c = n;
+        for (let k = 0; k < 8; k++) {
+            c = c & 1 ? 0xedb88320 ^ (c >>> 1) : c >>> 1;
+        }
+        table[n] = c >>> 0;
+    }
+    return table;
+})();
+
+export function crc32(data: Buffer, previous: number = 0): number {
+    let crc = (previous ^ 0xffffffff) >>> 0;
+    for (let i = 0; i < data.length; i++) {
+        crc = CRC_TABLE[(crc ^ data[i]) & 0xff] ^ (crc >>> 8);
+    }
+    return (crc ^ 0xffffffff) >>> 0;
+}
+
+export interface CentralDirectoryEntry {
+    name: string;
+    method: number;
+    crc: number;
+    compressedSize: number;
+    size: number;
+    localHeaderOffset: number;
+    // The raw central directory record, so it can be re-written unchanged
+    record: Buffer;
+}
+
+export interface CentralDirectory {
+    entries: CentralDirectoryEntry[];
+    // Where the central directory starts, i.e. where the entries' data ends
+    offset: number;
+}
+
+/**
+ * Writes a zip archive one entry at a time, so only a single entry is ever held in memory.
+ * Entries are deflated (directories are stored), and the central directory is written on close.
+ */
+export class ZipWriter {
+    private readonly fd: number;
+    private offset = 0;
+    private readonly entries: CentralDirectoryEntry[] = [];
+
+    constructor(private readonly path: string) {
+        this.fd = fs.openSync(path, "w");
+    }
+
+    async addEntry(name: string, data: Buffer): Promise<void> {
+        if (this.entries.length >= MAX_ENTRIES) {
+            throw new Error(`Too many zip entries (max: ${MAX_ENTRIES})`);
+        }
+
+        const { localHeader, compressed, entry } = await buildEntry(name, data, this.offset);
+        this.write(localHeader);
+        this.write(compressed);
+        this.entries.push(entry);
+    }
+
+    close(): void {
+        try {
+            writeCentralDirectory(this.fd, this.offset, this.entries);
+        } finally {
+            fs.closeSync(this.fd);
+        }
+    }
+
+    private write(data: Buffer): void {
+        fs.writeSync(this.fd, data, 0, data.length, this.offset);
+        this.offset += data.length;
+    }
+}
+
+/**
+ * Watches an archive go by (i.e. while it is uploaded) for an entry name, in its local file headers and central
+ * directory records. Only the last few bytes seen are kept, so memory doesn't depend on the size of the archive.
+ */
+export class ZipEntryScanner {
+    private readonly name: Buffer;
+    // Enough of the previous chunks to complete a record split between chunks
+    private readonly keep: number;
+    private tail = Buffer.alloc(0);
+    found = false;
+
+    constructor(name: string) {
+        this.name = Buffer.from(name, "utf8");
+        this.keep = CENTRAL_DIRECTORY_RECORD_SIZE + this.name.length - 1;
+    }
+
+    update(chunk: Buffer): void {
+        if (this.found) {
+            return;
+        }
+        // Records starting in the tail are searched with the start of the chunk, the rest are searched in the chunk itself
+        const boundary = Buffer.concat([this.tail, chunk.subarray(0, this.keep)]);
+        this.found = this.search(boundary) || this.search(chunk);
+
+        this.tail = chunk.length >= this.keep
+            ? Buffer.from(chunk.subarray(chunk.length - this.keep))
+            : boundary.subarray(Math.max(0, boundary.length - this.keep));
+    }
+
+    private search(data: Buffer): boolean {
+        for (let index = data.indexOf(this.name); index >= 0; index = data.indexOf(this.name, index + 1)) {
+            if (
+                this.isRecordName(data, index, LOCAL_FILE_HEADER_SIG, LOCAL_FILE_HEADER_SIZE, 26) ||
+                this.isRecordName(data, index, CENTRAL_DIRECTORY_SIG, CENTRAL_DIRECTORY_RECORD_SIZE, 28)
+            ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the name at this index is the name of a record, rather than a match in some entry's data
+    private isRecordName(
+        data: Buffer,
+        index: number,
+        signature: number,
+        recordSize: number,
+        nameLengthOffset: number
+    ): boolean {
+        const start = index - recordSize;
+        return (
+            start >= 0 &&
+            data.readUInt32LE(start) === signature &&
+            data.readUInt16LE(start + nameLengthOffset) === this.name.length
+        );
+    }
+}
+
+/**
+ * Adds an entry to an existing archive in place: the entry is written where the central directory starts, and the
+ * central directory is written again after it. No other entry is read or moved, so neither memory nor time depends
+ * on the size of the archive. An entry with the same name is replaced (its data is left in the file, unreferenced).
+ * @throws {Error} If the file is not a zip archive, or is a zip64 archive.
+ */
+export async function appendEntry(path: string, name: string, data: Buffer): Promise<void> {
+    const fd = fs.openSync(path, "r+");
+    try {
+        const directory = readCentralDirectory(fd);
+        const entries = directory.entries.filter((entry) => entry.name !== name);
+        if (entries.length >= MAX_ENTRIES) {
+            throw new Error(`Too many zip entries (max: ${MAX_ENTRIES})`);
+        }
+
+        const { localHeader, compressed, entry } = await buildEntry(name, data, directory.offset);
+        const end = directory.offset + localHeader.length + compressed.length;
+        if (end > MAX_SIZE) {
+            throw new Error("Zip archive is too large (zip64 is not supported)");
+        }
+        fs.writeSync(fd, localHeader, 0, localHeader.length, directory.offset);
+        fs.writeSync(fd, compressed, 0, compressed.length, directory.offset + localHeader.length);
+        entries.push(entry);
+        writeCentralDirectory(fd, end, entries);
+    } finally {
+        fs.closeSync(fd);
+    }
+}
+
+/**
+ * Reads only the central directory of an archive, found from the end of central directory record.
+ * @throws {Error} If the file is not a zip archive, or is a zip64 archive.
+ */
+export function readCentralDirectory(fd: number): CentralDirectory {
+    const fileSize = fs.fstatSync(fd).size;
+    // The end of central directory record is last, followed only by the archive comment
+    const tailOffset = Math.max(0, fileSize - END_OF_CENTRAL_DIRECTORY_SIZE - MAX_COMMENT_SIZE);
+    const tail = readAt(fd, tailOffset, fileSize - tailOffset);
+
+    let eocd = -1;
+    for (let i = tail.length - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+        if (
+            tail.readUInt32LE(i) === END_OF_CENTRAL_DIRECTORY_SIG &&
+            i + END_OF_CENTRAL_DIRECTORY_SIZE + tail.readUInt16LE(i + 20) === tail.length
+        ) {
+            eocd = i;
+            break;
+        }
+    }
+    if (eocd < 0) {
+        throw new Error("Not a zip archive (end of central directory not found)");
+    }
+    if (eocd >= 20 && tail.readUInt32LE(eocd - 20) === ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIG) {
+        throw new Error("Zip64 archives are not supported");
+    }
+
+    const count = tail.readUInt16LE(eocd + 10);
+    const size = tail.readUInt32LE(eocd + 12);
+    const offset = tail.readUInt32LE(eocd + 16);
+    if (offset + size > tailOffset + eocd) {
+        throw new Error("Corrupt zip archive (central directory out of bounds)");
+    }
+
+    const records = readAt(fd, offset, size);
+    const entries: CentralDirectoryEntry[] = [];
+    let position = 0;
+    for (let i = 0; i < count; i++) {
+        if (
+            position + CENTRAL_DIRECTORY_RECORD_SIZE > records.length ||
+            records.readUInt32LE(position) !== CENTRAL_DIRECTORY_SIG
+        ) {
+            throw new Error("Corrupt zip archive (invalid central directory record)");
+        }
+        const nameLength = records.readUInt16LE(position + 28);
+        const recordLength =
+            CENTRAL_DIRECTORY_RECORD_SIZE +
+            nameLength +
+            records.readUInt16LE(position + 30) + // Extra field length
+            records.readUInt16LE(position + 32); // Comment length
+        if (position + recordLength > records.length) {
+            throw new Error("Corrupt zip archive (invalid central directory record)");
+        }
+
+        const nameOffset = position + CENTRAL_DIRECTORY_RECORD_SIZE;
+        entries.push({
+            name: records.toString("utf8", nameOffset, nameOffset + nameLength),
+            method: records.readUInt16LE(position + 10),
+            crc: records.readUInt32LE(position + 16),
+            compressedSize: records.readUInt32LE(position + 20),
+            size: records.readUInt32LE(position + 24),
+            localHeaderOffset: records.readUInt32LE(position + 42),
+            record: records.subarray(position, position + recordLength),
+        });
+        position += recordLength;
+    }
+    return { entries, offset };
+}
+
+/**
+ * Reads and inflates a single entry.
+ * @param maxSize the largest entry (compressed or not) to read, so an archive can't make us allocate more
+ * @throws {Error} If the entry is too large, uses an unsupported compression method, or is corrupt.
+ */
+export async function readEntry(
+    fd: number,
+    entry: CentralDirectoryEntry,
+    maxSize: number
+): Promise<Buffer> {
+    if (entry.size > maxSize || entry.compressedSize > maxSize) {
+        throw new Error(`Zip entry is too large: ${entry.name}`);
+    }
+
+    const header = readAt(fd, entry.localHeaderOffset, LOCAL_FILE_HEADER_SIZE);
+    if (header.readUInt32LE(0) !== LOCAL_FILE_HEADER_SIG) {
+        throw new Error(`Corrupt zip entry: ${entry.name}`);
+    }
+    // The local header's name and extra field may differ from the central directory's, only their lengths matter here
+    const dataOffset =
+        entry.localHeaderOffset + LOCAL_FILE_HEADER_SIZE + header.readUInt16LE(26) + header.readUInt16LE(28);
+    const compressed = readAt(fd, dataOffset, entry.compressedSize);
+
+    let data: Buffer;
+    if (entry.method === 0) {
+        data = compressed;
+    } else if (entry.method === 8) {
+        // The declared size is only trusted this far, inflating stops if the entry turns out larger
+        data = await inflateRaw(compressed, { maxOutputLength: Math.max(1, entry.size) });
+    } else {
+        throw new Error(`Unsupported compression method ${entry.method}: ${entry.name}`);
+    }
+    if (data.length !== entry.size || crc32(data) !== entry.crc) {
+        throw new Error(`Corrupt zip entry: ${entry.name}`);
+    }
+    return data;
+}
+
+/**
+ * Writes the central directory records and the end of central directory record at the given offset,
+ * truncating anything in the file after them.
+ */
+export function writeCentralDirectory(
+    fd: number,
+    offset: number,
+    entries: CentralDirectoryEntry[]
+): void {
+    const records = Buffer.concat(entries.map((entry) => entry.record));
+    fs.writeSync(fd, records, 0, records.length, offset);
+
+    const eocd = Buffer.alloc(22);
+    eocd.writeUInt32LE(END_OF_CENTRAL_DIRECTORY_SIG, 0);
+    eocd.writeUInt16LE(0, 4); // Number of this disk
+    eocd.writeUInt16LE(0, 6); // Disk where the central directory starts
+    eocd.writeUInt16LE(entries.length, 8);
+    eocd.writeUInt16LE(entries.length, 10);
+    eocd.writeUInt32LE(records.length, 12);
+    eocd.writeUInt32LE(offset, 16);
+    eocd.writeUInt16LE(0, 20); // Comment length
+    fs.writeSync(fd, eocd, 0, eocd.length, offset + records.length);
+    fs.ftruncateSync(fd, offset + records.length + eocd.length);
+}
+
+async function buildEntry(
+    name: string,
+    data: Buffer,
+    localHeaderOffset: number
+): Promise<{ localHeader: Buffer; compressed: Buffer; entry: CentralDirectoryEntry }> {
+    const isDirectory = name.endsWith("/");
+    const compressed = isDirectory ? data : await deflateRaw(data);
+    const method = isDirectory ? 0 : 8;
+    if (compressed.length > MAX_SIZE || data.length > MAX_SIZE) {
+        throw new Error(`Zip entry is too large: ${name}`);
+    }
+
+    const nameBytes = Buffer.from(name, "utf8");
+    const crc = crc32(data);
+    return {
+        localHeader: buildLocalHeader(nameBytes, method, crc, compressed.length, data.length),
+        compressed,
+        entry: {
+            name,
+            method,
+            crc,
+            compressedSize: compressed.length,
+            size: data.length,
+            localHeaderOffset,
+            record: buildCentralDirectoryRecord(nameBytes, method, crc, compressed.length, data.length, localHeaderOffset),
+        },
+    };
+}
+
+function readAt(fd: number, position: number, length: number): Buffer {
+    const buffer = Buffer.alloc(length);
+    let read = 0;
+    while (read < length) {
+        const bytes = fs.readSync(fd, buffer, read, length - read, position + read);
+        if (bytes === 0) {
+            throw new Error("Unexpected end of zip archive");
+        }
+        read += bytes;
+    }
+    return buffer;
+}
+
+function buildLocalHeader(
+    name: Buffer,
+    method: number,
+    crc: number,
+    compressedSize: number,
+    size: number
+): Buffer {
+    const header = Buffer.alloc(30);
+    header.writeUInt32LE(LOCAL_FILE_HEADER_SIG, 0);
+    header.writeUInt16LE(20, 4); // Version needed to extract
+    header.writeUInt16LE(0x0800, 6); // Flags (UTF-8 names)
+    header.writeUInt16LE(method, 8);
+    header.writeUInt16LE(0, 10); // Modification time
+    header.writeUInt16LE(0x21, 12); // Modification date (1980-01-01)
+    header.writeUInt32LE(crc, 14);
+    header.writeUInt32LE(compressedSize, 18);
+    header.writeUInt32LE(size, 22);
+    header.writeUInt16LE(name.length, 26);
+    header.writeUInt16LE(0, 28); // Extra field length
+    return Buffer.concat([header, name]);
+}
+
+function buildCentralDirectoryRecord(
+    name: Buffer,
+    method: number,
+    crc: number,
+    compressedSize: number,
+    size: number,
+    localHeaderOffset: number
+): Buffer {
+    const record = Buffer.alloc(46);
+    record.writeUInt32LE(CENTRAL_DIRECTORY_SIG, 0);
+    record.writeUInt16LE(20, 4); // Version made by
+    record.writeUInt16LE(20, 6); // Version needed to extract
+    record.writeUInt16LE(0x0800, 8); // Flags (UTF-8 names)
+    record.writeUInt16LE(method, 10);
+    record.writeUInt16LE(0, 12); // Modification time
+    record.writeUInt16LE(0x21, 14); // Modification date (1980-01-01)
+    record.writeUInt32LE(crc, 16);
+    record.writeUInt32LE(compressedSize, 20);
+    record.writeUInt32LE(size, 24);
+    record.writeUInt16LE(name.length, 28);
+    record.writeUInt16LE(0, 30); // Extra field length
+    record.writeUInt16LE(0, 32); // Comment length
+    record.writeUInt16LE(0, 34); // Disk number start
+    record.writeUInt16LE(0, 36); // Internal attributes
+    record.writeUInt32LE(0, 38); // External attributes
+    record.writeUInt32LE(localHeaderOffset, 42);
+    return Buffer.concat([record, name]);
+}
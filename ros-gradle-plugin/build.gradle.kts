@@ -2,6 +2,7 @@ plugins {
     id("java")
     id("com.gradle.plugin-publish") version "1.3.0"
     id("com.gradleup.shadow") version "8.3.5"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "io.github.jake-moore"
@@ -35,6 +36,18 @@ gradlePlugin {
     }
 }
 
+// Benchmarks for the client side hot paths (src/jmh/java), run with: ./gradlew jmh
+// Only run a subset with: ./gradlew jmh -PjmhIncludes=JarDigestBenchmark
+jmh {
+    warmupIterations.set(2)
+    iterations.set(5)
+    fork.set(1)
+    // Reports the allocation rate (bytes allocated per operation) next to the throughput
+    profilers.add("gc")
+    (findProperty("jmhIncludes") as String?)?.let { includes.add(it) }
+    resultFormat.set("JSON")
+}
+
 tasks {
     publish.get().dependsOn(build)
     build.get().dependsOn(shadowJar)
@@ -0,0 +1,88 @@
+package io.github.jake_moore.ros_plugin.benchmark;
+
+import io.github.jake_moore.ros_plugin.util.JarDigest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares ways of streaming a downloaded jar to disk.
+ * The source is a local file stream standing in for the response body, so only the copy strategy is measured.
+ * {@code hashingCopy} is what {@code ObfuscationClient.downloadJar} does (copy loop + SHA-256 verification).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DownloadCopyBenchmark {
+    @Param({"8192", "65536"})
+    public int bufferSize;
+
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        outputFile = SyntheticJar.createOutputFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(outputFile.toPath());
+    }
+
+    @Benchmark
+    public long copyLoop(SyntheticJar jar) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        long bytesRead = 0;
+        try (InputStream inputStream = Files.newInputStream(jar.jarFile.toPath());
+             OutputStream outputStream = new FileOutputStream(outputFile)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+                bytesRead += read;
+            }
+        }
+        return bytesRead;
+    }
+
+    @Benchmark
+    public long hashingCopy(SyntheticJar jar) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        MessageDigest digest = JarDigest.sha256();
+        long bytesRead = 0;
+        try (InputStream inputStream = Files.newInputStream(jar.jarFile.toPath());
+             OutputStream outputStream = new FileOutputStream(outputFile)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                bytesRead += read;
+            }
+        }
+        return bytesRead + digest.digest().length;
+    }
+
+    @Benchmark
+    public long transferTo(SyntheticJar jar) throws IOException {
+        // Does not depend on bufferSize, the JDK picks its own buffer (or a channel transfer)
+        try (InputStream inputStream = Files.newInputStream(jar.jarFile.toPath());
+             OutputStream outputStream = new FileOutputStream(outputFile)) {
+            return inputStream.transferTo(outputStream);
+        }
+    }
+}
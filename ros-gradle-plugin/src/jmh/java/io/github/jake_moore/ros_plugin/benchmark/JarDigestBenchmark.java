@@ -0,0 +1,39 @@
+package io.github.jake_moore.ros_plugin.benchmark;
+
+import io.github.jake_moore.ros_plugin.util.JarDigest;
+import io.github.jake_moore.ros_plugin.util.JarManifestEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content hashing, which runs before every cached, delta, or resumable upload.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JarDigestBenchmark {
+    @Benchmark
+    public String hashJar(SyntheticJar jar) throws IOException {
+        return JarDigest.hashJar(jar.jarFile);
+    }
+
+    @Benchmark
+    public List<JarManifestEntry> entryManifest(SyntheticJar jar) throws IOException {
+        return JarDigest.entryManifest(jar.jarFile);
+    }
+
+    @Benchmark
+    public String hashFile(SyntheticJar jar) throws IOException {
+        return JarDigest.hashFile(jar.jarFile);
+    }
+
+    @Benchmark
+    public String obfuscationKey(SyntheticJar jar) throws IOException {
+        return JarDigest.obfuscationKey(jar.jarFile, jar.configFile);
+    }
+}
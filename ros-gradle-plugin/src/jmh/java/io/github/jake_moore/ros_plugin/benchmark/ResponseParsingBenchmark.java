@@ -0,0 +1,57 @@
+package io.github.jake_moore.ros_plugin.benchmark;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.github.jake_moore.ros_plugin.client.ObfuscationMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the json responses the client handles while waiting for jobs (one per poll or status event).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ResponseParsingBenchmark {
+    private static final String STATUS_RESPONSE = "{\"message\":\"Job is still processing\",\"request_id\":\"1700000000000-abc123\","
+            + "\"status\":\"pending\",\"queue_index\":3,\"total_queue_size\":12,\"timings\":{\"created_at\":1700000000000,"
+            + "\"started_at\":null,\"finished_at\":null,\"queue_ms\":1520,\"processing_ms\":null}}";
+    private static final String BATCH_RESPONSE = createBatchResponse(64);
+
+    @Benchmark
+    public String statusResponse() {
+        JsonObject jsonResponse = JsonParser.parseString(STATUS_RESPONSE).getAsJsonObject();
+        new ObfuscationMetrics("benchmark").recordServerTimings(jsonResponse);
+        return jsonResponse.get("status").getAsString();
+    }
+
+    @Benchmark
+    public int batchResponse() {
+        JsonArray jobs = JsonParser.parseString(BATCH_RESPONSE).getAsJsonObject().getAsJsonArray("jobs");
+        int length = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            length += jobs.get(i).getAsJsonObject().get("request_id").getAsString().length();
+        }
+        return length;
+    }
+
+    private static String createBatchResponse(int jobCount) {
+        JsonArray jobs = new JsonArray();
+        for (int i = 0; i < jobCount; i++) {
+            JsonObject job = new JsonObject();
+            job.addProperty("request_id", "1700000000000-" + Integer.toHexString(0x100000 + i));
+            job.addProperty("status", "pending");
+            job.addProperty("queue_index", i);
+            job.addProperty("total_queue_size", jobCount);
+            jobs.add(job);
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("message", "Obfuscation started");
+        response.add("jobs", jobs);
+        return response.toString();
+    }
+}
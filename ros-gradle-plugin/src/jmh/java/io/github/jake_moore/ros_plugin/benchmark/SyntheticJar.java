@@ -0,0 +1,90 @@
+package io.github.jake_moore.ros_plugin.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A generated jar of roughly {@code sizeMb} (on disk), created once per trial.
+ * Entries alternate between compressible "class-like" content and random "resource" content,
+ *  so the jar behaves like a typical shaded jar rather than a best (or worst) case for deflate.
+ * The jar is watermarked, like the jars the backend returns.
+ */
+@State(Scope.Benchmark)
+public class SyntheticJar {
+    private static final int ENTRY_SIZE = 32 * 1024;
+
+    @Param({"10", "50", "200"})
+    public int sizeMb;
+
+    public File jarFile;
+    public File configFile;
+
+    @Setup(Level.Trial)
+    public void createJar() throws IOException {
+        jarFile = File.createTempFile("ros-benchmark-", ".jar");
+        configFile = File.createTempFile("ros-benchmark-", ".xml");
+        Files.writeString(configFile.toPath(), "<config>\n  <property name=\"log-file\" value=\"log.xml\"/>\n</config>\n");
+
+        final long targetSize = sizeMb * 1024L * 1024L;
+        final Random random = new Random(42);
+        final byte[] content = new byte[ENTRY_SIZE];
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(jarFile.toPath()))) {
+            zip.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zip.write("Manifest-Version: 1.0\r\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            for (int i = 0; jarFile.length() < targetSize; i++) {
+                boolean resource = i % 2 == 1;
+                zip.putNextEntry(new ZipEntry(String.format("com/example/p%d/%s%d.%s",
+                        i / 100, resource ? "Resource" : "Class", i, resource ? "bin" : "class")));
+                fillEntry(content, random, resource);
+                zip.write(content);
+                zip.closeEntry();
+                // Entries are only written to the file as they are finished, flush so the size check is accurate
+                zip.flush();
+            }
+
+            zip.putNextEntry(new ZipEntry("obfuscation.json"));
+            zip.write("{\"request_id\":\"1700000000000-abc123\",\"request_user\":\"benchmark\"}".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteJar() throws IOException {
+        Files.deleteIfExists(jarFile.toPath());
+        Files.deleteIfExists(configFile.toPath());
+    }
+
+    /**
+     * @return a new temporary file, for benchmarks that write output
+     */
+    public static File createOutputFile() throws IOException {
+        File file = File.createTempFile("ros-benchmark-", ".out");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static void fillEntry(byte[] content, Random random, boolean resource) {
+        if (resource) {
+            random.nextBytes(content);
+            return;
+        }
+        // Repetitive, identifier heavy content, which compresses like bytecode does
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ("abcdefghijklmnopqrstuvwxyz;()L/".charAt(random.nextInt(8) + (i % 23)));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.github.jake_moore.ros_plugin.benchmark;
+
+import io.github.jake_moore.ros_plugin.util.CountingRequestBody;
+import io.github.jake_moore.ros_plugin.util.EntryPackRequestBody;
+import io.github.jake_moore.ros_plugin.util.GzipRequestBody;
+import io.github.jake_moore.ros_plugin.util.JarDigest;
+import io.github.jake_moore.ros_plugin.util.JarManifestEntry;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the upload request bodies the way {@code ObfuscationClient} does, and writes them to a discarding sink.
+ * This measures the client side cost of an upload (reading, multipart framing, compression) without the network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UploadBodyBenchmark {
+    private static final MediaType JAR_TYPE = MediaType.parse("application/java-archive");
+    private static final MediaType XML_TYPE = MediaType.parse("application/xml");
+
+    @State(Scope.Benchmark)
+    public static class DeltaState {
+        List<JarManifestEntry> entries;
+        // Every other entry is "missing" on the server
+        Set<String> missing;
+
+        @Setup(Level.Trial)
+        public void setup(SyntheticJar jar) throws IOException {
+            entries = JarDigest.entryManifest(jar.jarFile);
+            missing = new HashSet<>();
+            for (int i = 0; i < entries.size(); i += 2) {
+                missing.add(entries.get(i).getHash());
+            }
+        }
+    }
+
+    @Benchmark
+    public long multipartUpload(SyntheticJar jar) throws IOException {
+        return write(multipart(RequestBody.create(jar.jarFile, JAR_TYPE), jar));
+    }
+
+    @Benchmark
+    public long gzipMultipartUpload(SyntheticJar jar) throws IOException {
+        return write(multipart(new GzipRequestBody(RequestBody.create(jar.jarFile, JAR_TYPE)), jar));
+    }
+
+    @Benchmark
+    public long entryPackUpload(SyntheticJar jar, DeltaState delta) throws IOException {
+        return write(new EntryPackRequestBody(jar.jarFile, delta.entries, delta.missing));
+    }
+
+    private static RequestBody multipart(RequestBody jarBody, SyntheticJar jar) {
+        return new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("jar", jar.jarFile.getName(), jarBody)
+                .addFormDataPart("config", jar.configFile.getName(), RequestBody.create(jar.configFile, XML_TYPE))
+                .build();
+    }
+
+    private static long write(RequestBody body) throws IOException {
+        final long[] written = {0};
+        try (BufferedSink sink = Okio.buffer(Okio.blackhole())) {
+            new CountingRequestBody(body, bytes -> written[0] += bytes).writeTo(sink);
+        }
+        return written[0];
+    }
+}
@@ -0,0 +1,23 @@
+package io.github.jake_moore.ros_plugin.benchmark;
+
+import io.github.jake_moore.ros_plugin.util.WatermarkData;
+import io.github.jake_moore.ros_plugin.util.WatermarkReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The local watermark lookup used by {@code rosGetWatermark}, which should not depend on the jar size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WatermarkBenchmark {
+    @Benchmark
+    public WatermarkData readWatermark(SyntheticJar jar) throws IOException {
+        return WatermarkReader.read(jar.jarFile);
+    }
+}
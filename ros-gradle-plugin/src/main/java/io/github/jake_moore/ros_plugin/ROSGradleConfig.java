@@ -10,28 +10,31 @@ public abstract class ROSGradleConfig {
     public abstract Property<Boolean> getKeepOriginalJar();
     public abstract Property<Integer> getPollMaxAttempts();
     public abstract Property<Integer> getPollIntervalMs();
+    public abstract Property<Boolean> getDeltaUpload();
+    public abstract Property<Boolean> getResumableUpload();
+    public abstract Property<Boolean> getCompressUpload();
+    // Properties for the (opt-in) obfuscation result cache
+    public abstract Property<Boolean> getCacheEnabled();
+    public abstract Property<String> getCacheDirPath();
+    public abstract Property<Integer> getCacheMaxSizeMb();
 
     public @NotNull String getObfuscationEndpoint() {
-        String base = getApiUrl().get();
-        if (!base.endsWith("/")) {
-            base += "/";
-        }
-        return base + "api/obfuscate";
+        return resolveEndpoint(getApiUrl().get(), "api/obfuscate");
     }
 
     public @NotNull String getWatermarkEndpoint() {
-        String base = getApiUrl().get();
-        if (!base.endsWith("/")) {
-            base += "/";
-        }
-        return base + "api/watermark";
+        return resolveEndpoint(getApiUrl().get(), "api/watermark");
     }
 
     public @NotNull String getStackTraceEndpoint() {
-        String base = getApiUrl().get();
+        return resolveEndpoint(getApiUrl().get(), "api/stacktrace");
+    }
+
+    public static @NotNull String resolveEndpoint(@NotNull String apiUrl, @NotNull String path) {
+        String base = apiUrl;
         if (!base.endsWith("/")) {
             base += "/";
         }
-        return base + "api/stacktrace";
+        return base + path;
     }
 }
@@ -1,76 +1,138 @@
 package io.github.jake_moore.ros_plugin;
 
+import io.github.jake_moore.ros_plugin.client.HttpClientService;
+import io.github.jake_moore.ros_plugin.client.MetricsService;
+import io.github.jake_moore.ros_plugin.tasks.ObfuscateBatchTask;
 import io.github.jake_moore.ros_plugin.tasks.ObfuscateJarTask;
+import io.github.jake_moore.ros_plugin.tasks.RemoteTask;
 import io.github.jake_moore.ros_plugin.tasks.StackTraceTask;
 import io.github.jake_moore.ros_plugin.tasks.WatermarkTask;
-import okhttp3.OkHttpClient;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.TaskProvider;
 import org.gradle.api.tasks.bundling.Jar;
 
 import java.io.File;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.stream.Collectors;
 
 @SuppressWarnings("unused")
 public class ROSGradlePlugin implements Plugin<Project> {
-    // Use more forgiving timeouts, in case the obfuscation server takes a while to respond
-    public static final OkHttpClient client = new OkHttpClient.Builder()
-            .connectTimeout(30, TimeUnit.SECONDS) // Timeout for establishing a connection
-            .readTimeout(30, TimeUnit.SECONDS)    // Timeout for reading data
-            .writeTimeout(30, TimeUnit.SECONDS)   // Timeout for writing data
-            .build();
+    private static final String OBFUSCATE_TASK_NAME = "rosObfuscateJar";
+    private static final String BATCH_TASK_NAME = "rosObfuscateBatch";
 
     @Override
     public void apply(Project project) {
         // Register the extension for configuration
         ROSGradleConfig config = project.getExtensions().create("rosConfig", ROSGradleConfig.class);
 
+        // A single http client is shared by every ROS task in the build
+        Provider<HttpClientService> httpClientService = project.getGradle().getSharedServices()
+                .registerIfAbsent(HttpClientService.NAME, HttpClientService.class, spec -> {});
+        // Collects the timings of every obfuscation job in the build
+        Provider<MetricsService> metricsService = project.getGradle().getSharedServices()
+                .registerIfAbsent(MetricsService.NAME, MetricsService.class, spec -> {});
+
         // Have the default `jar` and `shadowJar` task re-run if its output jar file doesn't exist
         // This is because we will sometimes delete the file, and it should be recreated if it doesn't exist
         // Without this, these tasks will not recreate the deleted file, and `rosObfuscateJar` will fail to find the expected file
-        fixJarTasks(project, config);
+        fixJarTasks(project);
+
+        // Every task that talks to the backend gets the api url, and the shared http client
+        project.getTasks().withType(RemoteTask.class).configureEach(task -> configureRemoteTask(task, config, httpClientService));
 
         // Register the obfuscateJar task, which specifically uses the JAR task output, as its input
-        project.getTasks().register("rosObfuscateJar", ObfuscateJarTask.class, task -> {
+        TaskProvider<ObfuscateJarTask> obfuscateTask = project.getTasks().register(OBFUSCATE_TASK_NAME, ObfuscateJarTask.class, task -> {
             task.dependsOn("jar");
-            task.setConfig(config);
+            configureObfuscateTask(project, task, config);
+            configureMetrics(project, task.getName(), task, task.getReportFile(), task.getMetricsService(), metricsService);
         });
 
+        // The root project gets the batch task, which obfuscates every project applying the plugin at once
+        if (project == project.getRootProject()) {
+            registerBatchTask(project, config, metricsService);
+        }
+
         // Register the watermarkJar task
-        project.getTasks().create("rosGetWatermark", WatermarkTask.class, task -> {
-            // Forward configuration to the task
-            task.setConfig(config);
-        });
+        project.getTasks().register("rosGetWatermark", WatermarkTask.class);
 
         // Register the stacktrace task
-        project.getTasks().create("rosGetStackTrace", StackTraceTask.class, task -> {
-            // Forward configuration to the task
-            task.setConfig(config);
-        });
+        project.getTasks().register("rosGetStackTrace", StackTraceTask.class, task ->
+                task.getMappingCacheDir().convention(project.getLayout().dir(project.provider(() ->
+                        new File(project.getGradle().getGradleUserHomeDir(), "caches/ros-mappings")))));
     }
 
-    private void fixJarTasks(Project project, ROSGradleConfig config) {
-        // Add an up-to-date check to the jar task
-        // Here, we ensure that the jar file exists, if not the jar task cannot be up-to-date
-        Jar jarTask = (Jar) project.getTasks().getByName("jar");
-        File jarOutputFile = jarTask.getArchiveFile().get().getAsFile();
-        jarTask.getOutputs().upToDateWhen(task -> jarOutputFile.exists());
-
-        if (project.getTasks().findByName("shadowJar") != null) {
-            // Add an up-to-date check to the shadowJar task
-            // Here, we ensure that the shadowJar file exists, if not the shadowJar task cannot be up-to-date
-            Jar shadowJarTask = (Jar) project.getTasks().getByName("shadowJar");
-            File shadowJarOutputFile = shadowJarTask.getArchiveFile().get().getAsFile();
-            shadowJarTask.getOutputs().upToDateWhen(task -> shadowJarOutputFile.exists());
-        }
+    private void configureRemoteTask(RemoteTask task, ROSGradleConfig config, Provider<HttpClientService> httpClientService) {
+        task.getApiUrl().convention(config.getApiUrl());
+        task.getHttpClientService().convention(httpClientService);
+        task.usesService(httpClientService);
+    }
+
+    private void configureObfuscateTask(Project project, ObfuscateJarTask task, ROSGradleConfig config) {
+        // Obfuscate the jar task output file, or the shadowJar output if that plugin is installed
+        // Both are resolved lazily, the shadow plugin may be applied after this one
+        Provider<RegularFile> jarFile = project.getTasks().named("jar", Jar.class).flatMap(Jar::getArchiveFile);
+        Provider<RegularFile> inputJar = project.provider(() -> project.getTasks().getNames().contains("shadowJar"))
+                .flatMap(hasShadowJar -> hasShadowJar
+                        ? project.getTasks().named("shadowJar", Jar.class).flatMap(Jar::getArchiveFile)
+                        : jarFile);
+        task.getInputJar().convention(inputJar);
+        task.getOriginalJars().from(jarFile, inputJar);
+        task.getConfigFile().convention(project.getLayout().file(config.getConfigFilePath().map(File::new)));
 
-        // Add a lifecycle hook to ensure Jar tasks are up-to-date
-        project.getTasks().whenTaskAdded(task -> {
-            if (!(task instanceof Jar jTask)) { return; }
+        // The output is written next to the other jars, as "<name>-<version>-<classifier>.jar"
+        task.getArchiveClassifier().convention("obf");
+        Provider<String> outputFileName = task.getArchiveClassifier().map(classifier -> String.format("libs/%s-%s%s.jar",
+                project.getName(), project.getVersion(), classifier.isEmpty() ? "" : "-" + classifier));
+        task.getObfuscatedJar().convention(project.getLayout().getBuildDirectory().file(outputFileName));
 
-            // Apply upToDateWhen condition
-            File jTaskOutputFile = jTask.getArchiveFile().get().getAsFile();
-            task.getOutputs().upToDateWhen(t -> jTaskOutputFile.exists());
+        // Forward the remaining configuration to the task
+        task.getKeepOriginalJar().convention(config.getKeepOriginalJar());
+        task.getPollMaxAttempts().convention(config.getPollMaxAttempts());
+        task.getPollIntervalMs().convention(config.getPollIntervalMs());
+        task.getDeltaUpload().convention(config.getDeltaUpload());
+        task.getResumableUpload().convention(config.getResumableUpload());
+        task.getCompressUpload().convention(config.getCompressUpload());
+        task.getCacheEnabled().convention(config.getCacheEnabled());
+        task.getCacheMaxSizeMb().convention(config.getCacheMaxSizeMb());
+        task.getCacheDir().convention(project.getLayout().dir(config.getCacheDirPath().map(File::new)
+                .orElse(new File(project.getGradle().getGradleUserHomeDir(), "caches/ros-obfuscation"))));
+    }
+
+    private void configureMetrics(Project project, String taskName, Task task, RegularFileProperty reportFile, Property<MetricsService> taskService, Provider<MetricsService> metricsService) {
+        // Reports are written to "build/reports/ros/<task name>.json"
+        reportFile.convention(project.getLayout().getBuildDirectory().file("reports/ros/" + taskName + ".json"));
+        taskService.convention(metricsService);
+        task.usesService(metricsService);
+    }
+
+    private void registerBatchTask(Project rootProject, ROSGradleConfig config, Provider<MetricsService> metricsService) {
+        // The api settings of the batch come from the root project's ros config
+        rootProject.getTasks().register(BATCH_TASK_NAME, ObfuscateBatchTask.class, task -> {
+            configureMetrics(rootProject, task.getName(), task, task.getReportFile(), task.getMetricsService(), metricsService);
+            task.getCompressUpload().convention(config.getCompressUpload());
+            // Resolved once the task graph is built, so projects are never configured (or their tasks realized) by the root
+            task.addProjects(rootProject.provider(() -> findObfuscateTasks(rootProject)));
         });
     }
+
+    // The `rosObfuscateJar` task of every project applying the plugin, that has a jar to obfuscate
+    private static List<ObfuscateJarTask> findObfuscateTasks(Project rootProject) {
+        return rootProject.getAllprojects().stream()
+                .filter(project -> project.getPlugins().hasPlugin(ROSGradlePlugin.class) && project.getTasks().getNames().contains("jar"))
+                .map(project -> project.getTasks().named(OBFUSCATE_TASK_NAME, ObfuscateJarTask.class).get())
+                .collect(Collectors.toList());
+    }
+
+    private void fixJarTasks(Project project) {
+        // Add an up-to-date check to every Jar task (including `jar`, `shadowJar`, and any added later)
+        // Here, we ensure that the jar file exists, if not the jar task cannot be up-to-date
+        project.getTasks().withType(Jar.class).configureEach(jarTask ->
+                jarTask.getOutputs().upToDateWhen(task -> ((Jar) task).getArchiveFile().get().getAsFile().exists()));
+    }
 }
@@ -0,0 +1,40 @@
+package io.github.jake_moore.ros_plugin.client;
+
+import okhttp3.OkHttpClient;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the http client shared by every ROS task in the build, so connections are pooled across tasks and projects.
+ * The client is created on first use, and its threads and connections are released when the build finishes.
+ */
+public abstract class HttpClientService implements BuildService<BuildServiceParameters.None>, AutoCloseable {
+    public static final String NAME = "rosHttpClient";
+
+    private @Nullable OkHttpClient client = null;
+
+    @NotNull
+    public synchronized OkHttpClient getClient() {
+        if (client == null) {
+            // Use more forgiving timeouts, in case the obfuscation server takes a while to respond
+            client = new OkHttpClient.Builder()
+                    .connectTimeout(30, TimeUnit.SECONDS) // Timeout for establishing a connection
+                    .readTimeout(30, TimeUnit.SECONDS)    // Timeout for reading data
+                    .writeTimeout(30, TimeUnit.SECONDS)   // Timeout for writing data
+                    .build();
+        }
+        return client;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (client == null) return;
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        client = null;
+    }
+}
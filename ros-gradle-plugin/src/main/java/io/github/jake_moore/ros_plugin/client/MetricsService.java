@@ -0,0 +1,30 @@
+package io.github.jake_moore.ros_plugin.client;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the metrics of every obfuscation job in the build, so that build logic (or other plugins) can read them,
+ *  for example from a build finished hook, via {@code gradle.sharedServices.registrations["rosMetrics"]}.
+ */
+public abstract class MetricsService implements BuildService<BuildServiceParameters.None> {
+    public static final String NAME = "rosMetrics";
+
+    private final List<ObfuscationMetrics> metrics = new ArrayList<>();
+
+    public synchronized void record(@NotNull ObfuscationMetrics jobMetrics) {
+        metrics.add(jobMetrics);
+    }
+
+    /**
+     * @return the metrics of every job recorded so far in this build, in the order they finished
+     */
+    @NotNull
+    public synchronized List<ObfuscationMetrics> getMetrics() {
+        return new ArrayList<>(metrics);
+    }
+}
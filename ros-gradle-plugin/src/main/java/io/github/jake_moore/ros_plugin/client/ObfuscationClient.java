@@ -0,0 +1,841 @@
+package io.github.jake_moore.ros_plugin.client;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.github.jake_moore.ros_plugin.util.CountingRequestBody;
+import io.github.jake_moore.ros_plugin.util.EntryPackRequestBody;
+import io.github.jake_moore.ros_plugin.util.GzipRequestBody;
+import io.github.jake_moore.ros_plugin.util.JarDigest;
+import io.github.jake_moore.ros_plugin.util.JarManifestEntry;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Talks to the obfuscation API: submitting jars, waiting for jobs, and downloading the results.
+ * Has no Gradle dependencies, so it can be shared between tasks (and used from several threads at once).
+ */
+public class ObfuscationClient {
+    public static final int DEFAULT_MAX_ATTEMPTS = 60; // 5 minutes max (60 * 5 seconds)
+    public static final int DEFAULT_POLL_INTERVAL_MS = 5000; // 5 seconds
+    // Interrupted uploads (per chunk) and downloads are resumed up to this many times in a row
+    private static final int MAX_TRANSFER_RETRIES = 5;
+    // Jobs turned away by an overloaded server (503) are submitted again up to this many times, after its Retry-After
+    private static final int MAX_OVERLOAD_RETRIES = 10;
+    // Status is polled when the server expects the job to finish, within these bounds (estimates change as jobs finish)
+    private static final int MIN_POLL_INTERVAL_MS = 1000;
+    private static final int MAX_POLL_INTERVAL_MS = 30000;
+    // The timeout is extended by at most this much queue time, the server's default admission limit (ROS_QUEUE_ADMISSION_MAX_WAIT_MS)
+    private static final long MAX_QUEUE_WAIT_MS = 30 * 60 * 1000;
+
+    private final @NotNull OkHttpClient client;
+    private final @NotNull String requestUrl;
+    private final @NotNull String authToken;
+    private final @NotNull String query;
+    // Prepended to every log line, so that output from concurrent jobs can be told apart
+    private final @NotNull String logPrefix;
+    // Phase timings and transfer sizes are recorded here (if set)
+    private final @Nullable ObfuscationMetrics metrics;
+
+    public ObfuscationClient(@NotNull OkHttpClient client, @NotNull String requestUrl) {
+        this(client, requestUrl, getAuthToken(), getRequestedByQuery(), "", null);
+    }
+
+    private ObfuscationClient(@NotNull OkHttpClient client, @NotNull String requestUrl, @NotNull String authToken, @NotNull String query, @NotNull String logPrefix, @Nullable ObfuscationMetrics metrics) {
+        this.client = client;
+        this.requestUrl = requestUrl;
+        this.authToken = authToken;
+        this.query = query;
+        this.logPrefix = logPrefix;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return a copy of this client that prefixes its log output with the given label
+     */
+    @NotNull
+    public ObfuscationClient withLogPrefix(@NotNull String label) {
+        return new ObfuscationClient(client, requestUrl, authToken, query, "[" + label + "] ", metrics);
+    }
+
+    /**
+     * @return a copy of this client that records the timings and transfer sizes of its requests into the given metrics
+     */
+    @NotNull
+    public ObfuscationClient withMetrics(@NotNull ObfuscationMetrics metrics) {
+        return new ObfuscationClient(client, requestUrl, authToken, query, logPrefix, metrics);
+    }
+
+    /**
+     * Starts an obfuscation job for a single jar.
+     *
+     * @param deltaUpload only upload the jar entries the server is missing (falls back to a full upload if unsupported)
+     * @param resumableUpload upload the jar in verified chunks, resuming after interruptions (falls back to a full upload if unsupported)
+     * @param compress gzip compress the uploaded jar (or entries) on the fly, does not apply to resumable uploads
+     * @return the job response (request ID and queue information)
+     */
+    @NotNull
+    public JsonObject submit(@NotNull File jarFile, @NotNull File configFile, boolean deltaUpload, boolean resumableUpload, boolean compress) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            if (deltaUpload) {
+                @Nullable JsonObject jsonResponse = submitDelta(jarFile, configFile, compress);
+                if (jsonResponse != null) {
+                    setUploadMode("delta");
+                    return jsonResponse;
+                }
+            }
+            if (resumableUpload) {
+                @Nullable JsonObject jsonResponse = submitResumable(jarFile, configFile);
+                if (jsonResponse != null) {
+                    setUploadMode("resumable");
+                    return jsonResponse;
+                }
+            }
+
+            // Create multipart request body
+            RequestBody requestBody = new MultipartBody.Builder()
+                    .setType(MultipartBody.FORM)
+                    .addFormDataPart("jar", jarFile.getName(), jarBody(jarFile, compress))
+                    .addFormDataPart("config", configFile.getName(), configBody(configFile))
+                    .build();
+            setUploadMode("full");
+            return postJob(requestUrl + query, requestBody);
+        } finally {
+            if (metrics != null) {
+                metrics.addUploadMs(elapsedMs(start));
+            }
+        }
+    }
+
+    /**
+     * Starts one obfuscation job per jar with a single request, each jar paired with the config at the same index.
+     *
+     * @param compress gzip compress the uploaded jars on the fly
+     * @return the job responses (in the same order as the jars), or null if the server does not support batches
+     */
+    @Nullable
+    public JsonArray submitBatch(@NotNull List<File> jarFiles, @NotNull List<File> configFiles, boolean compress) throws IOException {
+        if (jarFiles.size() != configFiles.size()) {
+            throw new IllegalArgumentException("Every jar in a batch needs exactly one config file");
+        }
+
+        MultipartBody.Builder requestBody = new MultipartBody.Builder().setType(MultipartBody.FORM);
+        for (int i = 0; i < jarFiles.size(); i++) {
+            File jarFile = jarFiles.get(i);
+            File configFile = configFiles.get(i);
+            requestBody.addFormDataPart("jar", jarFile.getName(), jarBody(jarFile, compress));
+            requestBody.addFormDataPart("config", configFile.getName(), configBody(configFile));
+        }
+
+        final long start = System.nanoTime();
+        try (Response response = executeAdmitted(new Request.Builder()
+                .url(requestUrl + "/batch" + query)
+                .header("Authorization", "Bearer " + authToken)
+                .post(counted(requestBody.build()))
+                .build())) {
+
+            String responseBody = response.body().string();
+            if (response.code() == 404) {
+                log("Batch submissions are not supported by the server, submitting jars individually.");
+                return null;
+            }
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("Unexpected code (" + response.code() + "): " + responseBody);
+            }
+
+            JsonArray jobs = JsonParser.parseString(responseBody).getAsJsonObject().getAsJsonArray("jobs");
+            if (jobs == null || jobs.size() != jarFiles.size()) {
+                throw new RuntimeException("Unexpected batch response: " + responseBody);
+            }
+            setUploadMode("batch");
+            return jobs;
+        } finally {
+            if (metrics != null) {
+                metrics.addUploadMs(elapsedMs(start));
+            }
+        }
+    }
+
+    /**
+     * Starts an obfuscation job with a delta upload.
+     * The server is sent a manifest of the jar's entry hashes, and only the entries it is missing are uploaded.
+     *
+     * @return the job response, or null if the server does not support delta uploads
+     */
+    @Nullable
+    private JsonObject submitDelta(@NotNull File jarFile, @NotNull File configFile, boolean compress) throws IOException {
+        List<JarManifestEntry> entries = JarDigest.entryManifest(jarFile);
+
+        // Build the manifest
+        JsonObject manifest = new JsonObject();
+        manifest.addProperty("jar_name", jarFile.getName());
+        JsonArray manifestEntries = new JsonArray();
+        for (JarManifestEntry entry : entries) {
+            JsonObject manifestEntry = new JsonObject();
+            manifestEntry.addProperty("name", entry.getName());
+            manifestEntry.addProperty("hash", entry.getHash());
+            manifestEntries.add(manifestEntry);
+        }
+        manifest.add("entries", manifestEntries);
+
+        // Negotiate which entries need to be sent
+        String sessionID;
+        Set<String> missing = new HashSet<>();
+        try (Response response = client.newCall(new Request.Builder()
+                .url(requestUrl + "/delta")
+                .header("Authorization", "Bearer " + authToken)
+                .post(counted(new MultipartBody.Builder()
+                        .setType(MultipartBody.FORM)
+                        .addFormDataPart("manifest", "manifest.json",
+                                RequestBody.create(manifest.toString(), MediaType.parse("application/json")))
+                        .build()))
+                .build()).execute()) {
+
+            String responseBody = response.body().string();
+            if (response.code() == 404) {
+                log("Delta uploads are not supported by the server, uploading the full jar.");
+                return null;
+            }
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("Unexpected code (" + response.code() + "): " + responseBody);
+            }
+
+            JsonObject jsonResponse = JsonParser.parseString(responseBody).getAsJsonObject();
+            sessionID = jsonResponse.get("session_id").getAsString();
+            for (JsonElement hash : jsonResponse.getAsJsonArray("missing")) {
+                missing.add(hash.getAsString());
+            }
+        }
+        log("Delta upload: sending " + missing.size() + "/" + entries.size() + " jar entries.");
+
+        // Upload the missing entries, the server rebuilds the jar from its entry store
+        MultipartBody.Builder requestBody = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("config", configFile.getName(), configBody(configFile));
+        if (!missing.isEmpty()) {
+            RequestBody entriesBody = new EntryPackRequestBody(jarFile, entries, missing);
+            requestBody.addFormDataPart("entries", "entries.pack", compress ? new GzipRequestBody(entriesBody) : entriesBody);
+        }
+        return postJob(requestUrl + "/delta/" + sessionID + query, requestBody.build());
+    }
+
+    /**
+     * Starts an obfuscation job with a resumable upload.
+     * The jar is sent in chunks that the server verifies one by one, a failed chunk is re-sent from wherever the server left off.
+     *
+     * @return the job response, or null if the server does not support resumable uploads
+     */
+    @Nullable
+    private JsonObject submitResumable(@NotNull File jarFile, @NotNull File configFile) throws IOException {
+        final long size = jarFile.length();
+        JsonObject declaration = new JsonObject();
+        declaration.addProperty("file_name", jarFile.getName());
+        declaration.addProperty("size", size);
+        declaration.addProperty("sha256", JarDigest.hashFile(jarFile));
+
+        // Create the upload, the server tells us how large each chunk should be
+        String uploadID;
+        int chunkSize;
+        try (Response response = client.newCall(new Request.Builder()
+                .url(requestUrl + "/uploads")
+                .header("Authorization", "Bearer " + authToken)
+                .post(RequestBody.create(declaration.toString(), MediaType.parse("application/json")))
+                .build()).execute()) {
+
+            String responseBody = response.body().string();
+            if (response.code() == 404) {
+                log("Resumable uploads are not supported by the server, uploading the full jar.");
+                return null;
+            }
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("Unexpected code (" + response.code() + "): " + responseBody);
+            }
+
+            JsonObject jsonResponse = JsonParser.parseString(responseBody).getAsJsonObject();
+            uploadID = jsonResponse.get("upload_id").getAsString();
+            chunkSize = jsonResponse.get("chunk_size").getAsInt();
+        }
+        log("Resumable upload: sending " + size + " bytes in chunks of up to " + chunkSize + " bytes.");
+
+        // Send every chunk, re-syncing with the server after a failure (it only keeps verified chunks)
+        byte[] chunk = new byte[(int) Math.min(chunkSize, size)];
+        long offset = 0;
+        int failures = 0;
+        try (RandomAccessFile file = new RandomAccessFile(jarFile, "r")) {
+            while (offset < size) {
+                int length = (int) Math.min(chunk.length, size - offset);
+                file.seek(offset);
+                file.readFully(chunk, 0, length);
+
+                long received;
+                try {
+                    received = putChunk(uploadID, offset, chunk, length);
+                } catch (IOException e) {
+                    log("\tChunk at offset " + offset + " was interrupted (" + e.getMessage() + ").");
+                    received = -1;
+                }
+                if (received >= 0) {
+                    offset = received;
+                    failures = 0;
+                    continue;
+                }
+
+                if (++failures > MAX_TRANSFER_RETRIES) {
+                    throw new RuntimeException("Resumable upload failed after " + MAX_TRANSFER_RETRIES + " retries");
+                }
+                sleep(backoffMs(failures));
+                try {
+                    offset = getUploadOffset(uploadID);
+                } catch (IOException e) {
+                    // Keep the offset, a wrong guess is rejected and re-synced on the next attempt
+                    log("\tFailed to fetch the upload progress (" + e.getMessage() + ").");
+                }
+                log("\tResuming upload at offset " + offset + " (" + failures + "/" + MAX_TRANSFER_RETRIES + ")");
+            }
+        }
+
+        // Every chunk arrived, the server verifies the whole jar against its hash and queues it
+        RequestBody requestBody = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("config", configFile.getName(), configBody(configFile))
+                .build();
+        return postJob(requestUrl + "/uploads/" + uploadID + "/complete" + query, requestBody);
+    }
+
+    /**
+     * Sends a single chunk of a resumable upload.
+     *
+     * @return the number of bytes the server has received, or -1 if the chunk was rejected and the upload should be re-synced
+     */
+    private long putChunk(@NotNull String uploadID, long offset, byte[] chunk, int length) throws IOException {
+        MessageDigest digest = JarDigest.sha256();
+        digest.update(chunk, 0, length);
+
+        try (Response response = client.newCall(new Request.Builder()
+                .url(requestUrl + "/uploads/" + uploadID + "?offset=" + offset)
+                .header("Authorization", "Bearer " + authToken)
+                .header("X-Chunk-SHA256", HexFormat.of().formatHex(digest.digest()))
+                .put(counted(RequestBody.create(chunk, MediaType.parse("application/octet-stream"), 0, length)))
+                .build()).execute()) {
+
+            String responseBody = response.body().string();
+            if (response.code() == 404) {
+                throw new RuntimeException("Resumable upload expired on the server: " + responseBody);
+            }
+            if (!response.isSuccessful()) {
+                log("\tChunk at offset " + offset + " was rejected (" + response.code() + "): " + responseBody);
+                return -1;
+            }
+            return JsonParser.parseString(responseBody).getAsJsonObject().get("received").getAsLong();
+        }
+    }
+
+    /**
+     * @return the number of bytes the server has received for the upload
+     */
+    private long getUploadOffset(@NotNull String uploadID) throws IOException {
+        try (Response response = client.newCall(new Request.Builder()
+                .url(requestUrl + "/uploads/" + uploadID)
+                .header("Authorization", "Bearer " + authToken)
+                .get()
+                .build()).execute()) {
+
+            String responseBody = response.body().string();
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("Unexpected code (" + response.code() + "): " + responseBody);
+            }
+            return JsonParser.parseString(responseBody).getAsJsonObject().get("received").getAsLong();
+        }
+    }
+
+    /**
+     * Sends a request that creates an obfuscation job.
+     *
+     * @return the job response (request ID and queue information)
+     */
+    @NotNull
+    private JsonObject postJob(@NotNull String url, @NotNull RequestBody requestBody) throws IOException {
+        try (Response response = executeAdmitted(new Request.Builder()
+                .url(url)
+                .header("Authorization", "Bearer " + authToken)
+                .post(counted(requestBody))
+                .build())) {
+
+            String responseBody = response.body().string();
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("Unexpected code (" + response.code() + "): " + responseBody);
+            }
+            return JsonParser.parseString(responseBody).getAsJsonObject();
+        }
+    }
+
+    /**
+     * Sends a request that creates jobs. An overloaded server turns jobs away (503) and says when to try again (Retry-After),
+     *  the request is sent again once that time has passed. The server keeps a delta session or resumable upload until then.
+     *
+     * @return the response, the caller closes it
+     */
+    @NotNull
+    private Response executeAdmitted(@NotNull Request request) throws IOException {
+        for (int retries = 0; ; retries++) {
+            Response response = client.newCall(request).execute();
+            if (response.code() != 503 || retries >= MAX_OVERLOAD_RETRIES) {
+                return response;
+            }
+            int retryAfterMs = retryAfterMs(response, retries + 1);
+            response.close();
+            log("The server is overloaded, submitting again in " + (retryAfterMs / 1000) + " seconds (" + (retries + 1) + "/" + MAX_OVERLOAD_RETRIES + ").");
+            sleep(retryAfterMs);
+        }
+    }
+
+    /**
+     * Waits for the job to finish, preferring the status stream so that the download can start the moment the job completes.
+     * Older servers don't provide the stream, in which case we fall back to polling.
+     * The timeout ({@code maxAttempts * pollIntervalMs}) covers running the job, it is extended by the time the server
+     *  expects the job to wait in its queue (up to 30 minutes), so a burst of jobs doesn't time out builds that are still
+     *  waiting their turn.
+     *
+     * @throws RuntimeException if the job failed, or did not finish within the timeout
+     */
+    public void awaitCompletion(@NotNull String requestID, int maxAttempts, int pollIntervalMs) throws IOException {
+        final long start = System.nanoTime();
+        final Deadline deadline = new Deadline((long) maxAttempts * pollIntervalMs);
+        try {
+            if (!awaitStatusStream(requestID, deadline)) {
+                pollStatus(requestID, deadline, pollIntervalMs);
+            }
+        } finally {
+            if (metrics != null) {
+                metrics.setWaitMs(elapsedMs(start));
+            }
+        }
+    }
+
+    /**
+     * Waits for the job to finish using the server's status stream (Server-Sent Events).
+     *
+     * @return true if the job completed, false if the stream is unavailable and polling should be used instead
+     * @throws RuntimeException if the job failed, or did not finish within the timeout
+     */
+    private boolean awaitStatusStream(@NotNull String requestID, @NotNull Deadline deadline) {
+        try (Response response = client.newCall(new Request.Builder()
+                .url(requestUrl + "/" + requestID + "/events")
+                .header("Authorization", "Bearer " + authToken)
+                .header("Accept", "text/event-stream")
+                .get()
+                .build()).execute()) {
+
+            String contentType = response.header("Content-Type", "");
+            if (!response.isSuccessful() || contentType == null || !contentType.startsWith("text/event-stream")) {
+                log("Status stream unavailable (" + response.code() + "), falling back to polling.");
+                return false;
+            }
+
+            BufferedSource source = response.body().source();
+            StringBuilder data = new StringBuilder();
+            String line;
+            while ((line = source.readUtf8Line()) != null) {
+                if (deadline.hasPassed()) {
+                    throw new RuntimeException("Obfuscation timed out after " + deadline.elapsedSeconds() + " seconds");
+                }
+
+                if (line.startsWith("data:")) {
+                    data.append(line.substring(5).trim());
+                    continue;
+                }
+                // Events are terminated by a blank line, anything else (comments, event names) can be ignored
+                if (!line.isEmpty() || data.length() == 0) {
+                    continue;
+                }
+
+                JsonObject jsonResponse = JsonParser.parseString(data.toString()).getAsJsonObject();
+                data.setLength(0);
+                String status = jsonResponse.get("status").getAsString();
+                log("Current Obfuscation status: " + status);
+
+                if ("completed".equals(status) || "failed".equals(status)) {
+                    recordServerTimings(jsonResponse);
+                }
+                if ("completed".equals(status)) {
+                    return true;
+                } else if ("failed".equals(status)) {
+                    throw new RuntimeException("Obfuscation failed: " + jsonResponse.get("error").getAsString());
+                }
+                deadline.extend(jsonResponse);
+                printQueuePosition(jsonResponse);
+            }
+        } catch (IOException e) {
+            // A dropped stream isn't fatal, polling can pick up where we left off
+            log("Status stream interrupted (" + e.getMessage() + "), falling back to polling.");
+            return false;
+        }
+
+        log("Status stream ended early, falling back to polling.");
+        return false;
+    }
+
+    /**
+     * Polls the job status until it completes, around when the server expects it to finish (or at a fixed interval).
+     *
+     * @throws RuntimeException if the job failed, or did not finish within the timeout
+     */
+    private void pollStatus(@NotNull String requestID, @NotNull Deadline deadline, int pollIntervalMs) throws IOException {
+        int attempts = 0;
+        int delayMs = pollIntervalMs;
+
+        // Continue to poll obfuscation status until we have a definite answer, or we run out of time
+        while (!deadline.hasPassed()) {
+            // Still processing
+            log("Waiting for obfuscation to complete... (next check in " + (delayMs / 1000.0) + "s)");
+
+            // Sleep a bit before fetching obfuscation results
+            sleep(delayMs);
+
+            try (Response response = client.newCall(new Request.Builder()
+                    .url(requestUrl + "/" + requestID)
+                    .header("Authorization", "Bearer " + authToken)
+                    .get()
+                    .build()).execute()) {
+
+                String responseBody = response.body().string();
+                if (!response.isSuccessful()) {
+                    throw new RuntimeException("Unexpected code (" + response.code() + "): " + responseBody);
+                }
+
+                JsonObject jsonResponse = JsonParser.parseString(responseBody).getAsJsonObject();
+                String status = jsonResponse.get("status").getAsString();
+
+                // Log Status
+                log("Current Obfuscation status (" + (attempts + 1) + "): " + status);
+
+                if ("completed".equals(status) || "failed".equals(status)) {
+                    recordServerTimings(jsonResponse);
+                }
+                if ("completed".equals(status)) {
+                    return;
+                } else if ("failed".equals(status)) {
+                    throw new RuntimeException("Obfuscation failed: " + jsonResponse.get("error").getAsString());
+                } else {
+                    printQueuePosition(jsonResponse);
+                    deadline.extend(jsonResponse);
+                    delayMs = nextPollDelayMs(jsonResponse, pollIntervalMs);
+                    attempts++;
+                }
+            }
+        }
+
+        throw new RuntimeException("Obfuscation timed out after " + deadline.elapsedSeconds() + " seconds");
+    }
+
+    private static int nextPollDelayMs(@NotNull JsonObject statusResponse, int pollIntervalMs) {
+        @Nullable JsonObject estimate = getEstimate(statusResponse);
+        long finishInMs = estimate != null ? estimate.get("finish_in_ms").getAsLong() : 0;
+        // Without an estimate (or running past it), the job may finish any moment
+        if (finishInMs <= 0) {
+            return pollIntervalMs;
+        }
+        return (int) Math.min(Math.max(finishInMs, MIN_POLL_INTERVAL_MS), MAX_POLL_INTERVAL_MS);
+    }
+
+    /**
+     * @return when the server expects the job to start and finish, or null if it didn't say (older servers, or finished jobs)
+     */
+    @Nullable
+    private static JsonObject getEstimate(@NotNull JsonObject statusResponse) {
+        @Nullable JsonElement estimate = statusResponse.get("estimate");
+        return estimate != null && estimate.isJsonObject() ? estimate.getAsJsonObject() : null;
+    }
+
+    public void printQueuePosition(@NotNull JsonObject jsonResponse) {
+        // Log Queue Position Information
+        @Nullable JsonElement queue_index = jsonResponse.get("queue_index");
+        @Nullable JsonElement total_queue_size = jsonResponse.get("total_queue_size");
+        int queue_index_val = queue_index != null ? queue_index.getAsInt() : -1;
+        if (queue_index == null || queue_index_val < 0 || total_queue_size == null) {
+            log("\tNo queue position information available.");
+        } else {
+            // Print the queue position
+            log("\tCurrent queue position: " + (queue_index_val + 1) + "/" + total_queue_size.getAsInt());
+        }
+
+        @Nullable JsonObject estimate = getEstimate(jsonResponse);
+        if (estimate != null) {
+            log("\tEstimated start in " + (estimate.get("start_in_ms").getAsLong() / 1000) + "s, finish in "
+                    + (estimate.get("finish_in_ms").getAsLong() / 1000) + "s");
+        }
+    }
+
+    /**
+     * Downloads the obfuscated jar, resuming (with a range request) if the connection drops.
+     * The jar is written to a ".part" file next to the output, verified against the server's SHA-256 (when provided),
+     *  and only then moved into place, so the output is never a truncated jar.
+     * Once the jar is in place, the server is told it can delete the job.
+     */
+    public void downloadJar(@NotNull String requestID, @NotNull File outputJar) throws IOException {
+        // Log start of Jar copy
+        log("Obfuscation completed, writing JAR to: " + outputJar.getAbsolutePath());
+
+        final long start = System.nanoTime();
+
+        // A leftover partial file belongs to an older job, it can't be resumed
+        final File partialJar = new File(outputJar.getParentFile(), outputJar.getName() + ".part");
+        Files.deleteIfExists(partialJar.toPath());
+
+        int failures = 0;
+        while (true) {
+            try {
+                if (downloadPart(requestID, partialJar)) {
+                    break;
+                }
+            } catch (IOException e) {
+                if (++failures > MAX_TRANSFER_RETRIES) {
+                    throw e;
+                }
+                log("\tDownload interrupted (" + e.getMessage() + "), resuming at " + partialJar.length() + " bytes (" + failures + "/" + MAX_TRANSFER_RETRIES + ")");
+                sleep(backoffMs(failures));
+            }
+        }
+
+        // Replaces any existing obfuscated jar in a single step
+        Files.move(partialJar.toPath(), outputJar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (metrics != null) {
+            metrics.setDownloadMs(elapsedMs(start));
+            metrics.setDownloadBytes(outputJar.length());
+        }
+        log("\tObfuscated Jar written to: " + outputJar.getAbsolutePath());
+        log("\tRequest ID: " + requestID);
+
+        acknowledgeDownload(requestID);
+    }
+
+    /**
+     * Downloads the rest of the jar into the partial file, continuing after the bytes it already has.
+     *
+     * @return true if the partial file holds the complete (and verified) jar, false if the download should be restarted
+     */
+    private boolean downloadPart(@NotNull String requestID, @NotNull File partialJar) throws IOException {
+        final long existing = partialJar.exists() ? partialJar.length() : 0;
+        Request.Builder request = new Request.Builder()
+                .url(requestUrl + "/" + requestID + "/download")
+                .header("Authorization", "Bearer " + authToken)
+                .get();
+        if (existing > 0) {
+            request.header("Range", "bytes=" + existing + "-");
+        }
+
+        try (Response downloadResponse = client.newCall(request.build()).execute()) {
+            if (downloadResponse.code() == 416) {
+                // The partial file doesn't fit the jar on the server, start over
+                Files.deleteIfExists(partialJar.toPath());
+                return false;
+            }
+            if (!downloadResponse.isSuccessful()) {
+                throw new RuntimeException("Failed to download JAR: " + downloadResponse.code());
+            }
+
+            // Servers without range support send the whole jar again
+            final boolean append = existing > 0 && downloadResponse.code() == 206;
+            MessageDigest digest = JarDigest.sha256();
+            if (append) {
+                try (InputStream partial = Files.newInputStream(partialJar.toPath())) {
+                    updateDigest(digest, partial);
+                }
+            }
+
+            ResponseBody body = downloadResponse.body();
+            try (InputStream inputStream = body.byteStream();
+                 FileOutputStream outputStream = new FileOutputStream(partialJar, append)) {
+
+                byte[] buffer = new byte[8192];
+                int read;
+
+                while ((read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                    digest.update(buffer, 0, read);
+                }
+            }
+
+            @Nullable String expectedHash = downloadResponse.header("X-Content-SHA256");
+            if (expectedHash != null && !expectedHash.equalsIgnoreCase(HexFormat.of().formatHex(digest.digest()))) {
+                Files.deleteIfExists(partialJar.toPath());
+                throw new IOException("Downloaded JAR does not match its SHA-256 hash");
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Tells the server the jar was received, so it can delete the job right away (it expires on its own otherwise).
+     */
+    private void acknowledgeDownload(@NotNull String requestID) {
+        try (Response response = client.newCall(new Request.Builder()
+                .url(requestUrl + "/" + requestID)
+                .header("Authorization", "Bearer " + authToken)
+                .delete()
+                .build()).execute()) {
+
+            if (!response.isSuccessful() && response.code() != 404) {
+                log("\tFailed to release the job on the server (" + response.code() + ").");
+            }
+        } catch (IOException e) {
+            log("\tFailed to release the job on the server (" + e.getMessage() + ").");
+        }
+    }
+
+    @NotNull
+    private RequestBody counted(@NotNull RequestBody requestBody) {
+        final @Nullable ObfuscationMetrics jobMetrics = metrics;
+        return jobMetrics == null ? requestBody : new CountingRequestBody(requestBody, jobMetrics::addUploadBytes);
+    }
+
+    private void setUploadMode(@NotNull String uploadMode) {
+        if (metrics != null) {
+            metrics.setUploadMode(uploadMode);
+        }
+    }
+
+    private void recordServerTimings(@NotNull JsonObject statusResponse) {
+        if (metrics != null) {
+            metrics.recordServerTimings(statusResponse);
+        }
+    }
+
+    private void log(@NotNull String message) {
+        System.out.println(logPrefix + message);
+    }
+
+    @NotNull
+    private static RequestBody jarBody(@NotNull File jarFile, boolean compress) throws IOException {
+        // The jar is streamed straight from the task output (gzip compressed on the fly, if enabled)
+        RequestBody jarBody = RequestBody.create(jarFile, MediaType.parse(Files.probeContentType(jarFile.toPath())));
+        return compress ? new GzipRequestBody(jarBody) : jarBody;
+    }
+
+    @NotNull
+    private static RequestBody configBody(@NotNull File configFile) throws IOException {
+        return RequestBody.create(configFile, MediaType.parse(Files.probeContentType(configFile.toPath())));
+    }
+
+    @NotNull
+    private static String getAuthToken() {
+        // Get auth token from environment variable
+        String authToken = System.getenv("ROS_GITHUB_PAT");
+        if (authToken == null) {
+            throw new RuntimeException("ROS_GITHUB_PAT environment variable not set!");
+        }
+        return authToken;
+    }
+
+    @NotNull
+    private static String getRequestedByQuery() {
+        // Get the username you want to include (e.g., from environment or system properties)
+        @Nullable String githubUser = System.getenv("GITHUB_ACTOR");
+
+        // Create the query parameter for the request
+        if (githubUser != null && !githubUser.isEmpty()) {
+            return "?requested_by=" + URLEncoder.encode(githubUser, StandardCharsets.UTF_8);
+        }
+        return "";
+    }
+
+    private static void updateDigest(@NotNull MessageDigest digest, @NotNull InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    private static int backoffMs(int failures) {
+        // 1s, 2s, 4s, ... capped at 16s
+        return (int) Math.min(1000L << (failures - 1), 16_000L);
+    }
+
+    private static int retryAfterMs(@NotNull Response response, int failures) {
+        // Only the delay in seconds is sent by the server, anything else (i.e. a 503 from a proxy) backs off
+        @Nullable String retryAfter = response.header("Retry-After");
+        try {
+            if (retryAfter != null) {
+                return (int) Math.min(Math.max(Long.parseLong(retryAfter.trim()), 1L) * 1000L, Integer.MAX_VALUE);
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        return backoffMs(failures);
+    }
+
+    private static void sleep(int pollIntervalMs) {
+        try {
+            Thread.sleep(pollIntervalMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for obfuscation", e);
+        }
+    }
+
+    /**
+     * When to stop waiting for a job: the timeout after the job is expected to start, so time spent queued doesn't count
+     *  (up to {@link #MAX_QUEUE_WAIT_MS}, a job that stays queued longer times out).
+     */
+    private static final class Deadline {
+        private final long startedAt = System.currentTimeMillis();
+        private final long timeoutMs;
+        private final long maxAt;
+        private long at;
+
+        private Deadline(long timeoutMs) {
+            this.timeoutMs = timeoutMs;
+            this.at = startedAt + timeoutMs;
+            this.maxAt = at + MAX_QUEUE_WAIT_MS;
+        }
+
+        // Only while the job waits, a running job has the timeout from when it was expected to start
+        private void extend(@NotNull JsonObject statusResponse) {
+            @Nullable JsonObject estimate = getEstimate(statusResponse);
+            if (estimate == null || !"pending".equals(statusResponse.get("status").getAsString())) {
+                return;
+            }
+            long startInMs = estimate.get("start_in_ms").getAsLong();
+            if (startInMs > 0) {
+                at = Math.min(maxAt, Math.max(at, System.currentTimeMillis() + startInMs + timeoutMs));
+            }
+        }
+
+        private boolean hasPassed() {
+            return System.currentTimeMillis() > at;
+        }
+
+        private long elapsedSeconds() {
+            return (System.currentTimeMillis() - startedAt) / 1000;
+        }
+    }
+}
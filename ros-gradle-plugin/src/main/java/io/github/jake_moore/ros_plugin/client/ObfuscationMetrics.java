@@ -0,0 +1,104 @@
+package io.github.jake_moore.ros_plugin.client;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import lombok.Data;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Timings and transfer sizes of a single obfuscation job, split into its phases.
+ * Client side phases (upload, wait, download) are measured by {@link ObfuscationClient},
+ *  the server side phases (queue, processing) are taken from the timestamps in the job status.
+ * Durations are in milliseconds, and are -1 when a phase did not happen (or the server did not report it).
+ */
+@Data
+public class ObfuscationMetrics {
+    private final @NotNull String projectPath;
+    private @Nullable String requestId = null;
+    private @Nullable String status = null;
+    // How the jar reached the server: "full", "delta", "resumable", "batch", or "cache" (no request at all)
+    private @Nullable String uploadMode = null;
+
+    private long uploadBytes = 0;
+    private long uploadMs = -1;
+    // Time spent waiting for the job on the client, this includes the queue and processing time
+    private long waitMs = -1;
+    private long queueMs = -1;
+    private long processingMs = -1;
+    private long downloadBytes = 0;
+    private long downloadMs = -1;
+    private long totalMs = -1;
+
+    public synchronized void addUploadBytes(long bytes) {
+        uploadBytes += bytes;
+    }
+
+    public synchronized void addUploadMs(long ms) {
+        uploadMs = Math.max(uploadMs, 0) + ms;
+    }
+
+    /**
+     * Reads the server's phase durations from a job status response, if it includes them.
+     */
+    public void recordServerTimings(@NotNull JsonObject statusResponse) {
+        @Nullable JsonElement timings = statusResponse.get("timings");
+        if (timings == null || !timings.isJsonObject()) {
+            return;
+        }
+        queueMs = getDuration(timings.getAsJsonObject(), "queue_ms");
+        processingMs = getDuration(timings.getAsJsonObject(), "processing_ms");
+    }
+
+    @NotNull
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("project", projectPath);
+        json.addProperty("request_id", requestId);
+        json.addProperty("status", status);
+        json.addProperty("upload_mode", uploadMode);
+        json.addProperty("upload_bytes", uploadBytes);
+        json.addProperty("upload_ms", uploadMs);
+        json.addProperty("upload_bytes_per_second", throughput(uploadBytes, uploadMs));
+        json.addProperty("wait_ms", waitMs);
+        json.addProperty("queue_ms", queueMs);
+        json.addProperty("processing_ms", processingMs);
+        json.addProperty("download_bytes", downloadBytes);
+        json.addProperty("download_ms", downloadMs);
+        json.addProperty("download_bytes_per_second", throughput(downloadBytes, downloadMs));
+        json.addProperty("total_ms", totalMs);
+        return json;
+    }
+
+    /**
+     * @return a single line summary, such as "upload 1.2s (3.4 MB), queue 0.1s, processing 9.8s, download 0.4s (3.5 MB)"
+     */
+    @NotNull
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        appendPhase(summary, "upload", uploadMs, uploadBytes);
+        appendPhase(summary, "queue", queueMs, 0);
+        appendPhase(summary, "processing", processingMs, 0);
+        appendPhase(summary, "download", downloadMs, downloadBytes);
+        appendPhase(summary, "total", totalMs, 0);
+        return summary.toString();
+    }
+
+    private static void appendPhase(@NotNull StringBuilder summary, @NotNull String phase, long ms, long bytes) {
+        if (ms < 0) return;
+        if (!summary.isEmpty()) summary.append(", ");
+        summary.append(phase).append(' ').append(String.format("%.1fs", ms / 1000.0));
+        if (bytes > 0) {
+            summary.append(String.format(" (%.1f MB)", bytes / (1024.0 * 1024.0)));
+        }
+    }
+
+    private static long throughput(long bytes, long ms) {
+        return ms > 0 ? bytes * 1000 / ms : -1;
+    }
+
+    private static long getDuration(@NotNull JsonObject timings, @NotNull String key) {
+        @Nullable JsonElement value = timings.get(key);
+        return value == null || value.isJsonNull() ? -1 : value.getAsLong();
+    }
+}
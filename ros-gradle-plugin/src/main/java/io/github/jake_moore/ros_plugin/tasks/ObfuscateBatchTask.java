@@ -0,0 +1,191 @@
+package io.github.jake_moore.ros_plugin.tasks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.github.jake_moore.ros_plugin.client.MetricsService;
+import io.github.jake_moore.ros_plugin.client.ObfuscationClient;
+import io.github.jake_moore.ros_plugin.client.ObfuscationMetrics;
+import org.gradle.api.Task;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Obfuscates the jars of every project that applies the plugin, as a single batch.
+ * All jars are uploaded in one request, and the jobs are then awaited (and downloaded) concurrently,
+ *  so a multi-project build waits roughly as long as its slowest job instead of the sum of all jobs.
+ */
+public abstract class ObfuscateBatchTask extends RemoteTask {
+    // Upper bound on the number of jobs awaited at the same time
+    private static final int MAX_PARALLEL_JOBS = 8;
+
+    private final ListProperty<ObfuscationTarget> targets = getProject().getObjects().listProperty(ObfuscationTarget.class);
+
+    public ObfuscateBatchTask() {
+        // Obfuscation is NEVER up-to-date, it can always be re-run to get a new obfuscated JAR
+        getOutputs().upToDateWhen(task -> false);
+    }
+
+    // Uploads are shared by the whole batch, so this is taken from the ros config of the root project
+    @Internal
+    public abstract Property<Boolean> getCompressUpload();
+
+    // Phase timings of the batch upload, and of every job, are written here as json
+    @Internal
+    public abstract RegularFileProperty getReportFile();
+    @Internal
+    public abstract Property<MetricsService> getMetricsService();
+
+    /**
+     * Adds projects' `rosObfuscateJar` tasks to the batch (their jar, config, and output are used, the tasks themselves are not run).
+     * The provider is only resolved when the task graph is built.
+     */
+    public void addProjects(@NotNull Provider<List<ObfuscateJarTask>> obfuscateTasks) {
+        targets.addAll(obfuscateTasks.map(tasks -> tasks.stream().map(ObfuscateJarTask::toBatchTarget).collect(Collectors.toList())));
+        // Build the jars the same way the projects' tasks would, including any dependencies added by the build scripts
+        dependsOn(obfuscateTasks.map(tasks -> tasks.stream().map(Task::getTaskDependencies).collect(Collectors.toList())));
+    }
+
+    @TaskAction
+    public void obfuscateAll() {
+        if (targets.get().isEmpty()) {
+            System.out.println("No projects to obfuscate.");
+            return;
+        }
+
+        try {
+            obfuscate();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to send JARs for obfuscation", e);
+        }
+    }
+
+    private void obfuscate() throws IOException {
+        final List<ObfuscationTarget> targets = this.targets.get();
+        // Collect the inputs of each project
+        List<File> jarFiles = new ArrayList<>();
+        List<File> configFiles = new ArrayList<>();
+        for (ObfuscationTarget target : targets) {
+            if (!target.getConfigFile().isPresent()) {
+                throw new RuntimeException("Please config ros config (configFilePath) in the build file of " + target.getProjectPath());
+            }
+            File jarFile = target.getInputJar().get().getAsFile();
+            File configFile = target.getConfigFile().get().getAsFile();
+            if (!configFile.exists()) {
+                throw new RuntimeException("Config file does not exist: " + configFile.getAbsolutePath());
+            }
+            if (!jarFile.exists()) {
+                throw new RuntimeException("JAR file (from jar task) does not exist: " + jarFile.getAbsolutePath());
+            }
+            jarFiles.add(jarFile);
+            configFiles.add(configFile);
+        }
+
+        final long start = System.nanoTime();
+        final boolean compressUpload = getCompressUpload().getOrElse(false);
+        // The upload is shared by every job, so its size and duration are tracked separately
+        final ObfuscationMetrics uploadMetrics = new ObfuscationMetrics(getPath());
+        final ObfuscationClient obfuscationClient = new ObfuscationClient(httpClient(), resolveEndpoint("api/obfuscate"));
+        final ObfuscationClient uploadClient = obfuscationClient.withMetrics(uploadMetrics);
+
+        // Submit every jar, falling back to one request per jar for servers without batch support
+        List<String> requestIDs = new ArrayList<>();
+        @Nullable JsonArray jobs = uploadClient.submitBatch(jarFiles, configFiles, compressUpload);
+        for (int i = 0; i < targets.size(); i++) {
+            String requestID = jobs != null
+                    ? jobs.get(i).getAsJsonObject().get("request_id").getAsString()
+                    : uploadClient.submit(jarFiles.get(i), configFiles.get(i), false, false, compressUpload).get("request_id").getAsString();
+            requestIDs.add(requestID);
+            System.out.println("Obfuscation job started for " + targets.get(i).getProjectPath() + " with ID: " + requestID);
+        }
+
+        // The server has every jar, so the originals can be deleted (per project, if requested)
+        for (ObfuscationTarget target : targets) {
+            if (!target.getKeepOriginalJar().getOrElse(false)) {
+                ObfuscateJarTask.printDeletedFiles(ObfuscateJarTask.deleteOriginalJars(target.getOriginalJars()));
+            }
+        }
+
+        // Await every job concurrently, the shared http client pools the connections
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(targets.size(), MAX_PARALLEL_JOBS));
+        List<ObfuscationMetrics> jobMetrics = new ArrayList<>();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < targets.size(); i++) {
+                final ObfuscationTarget target = targets.get(i);
+                final String requestID = requestIDs.get(i);
+                final File outputJar = target.getObfuscatedJar().get().getAsFile();
+                final ObfuscationMetrics metrics = new ObfuscationMetrics(target.getProjectPath());
+                metrics.setRequestId(requestID);
+                metrics.setUploadMode(uploadMetrics.getUploadMode());
+                jobMetrics.add(metrics);
+                final ObfuscationClient projectClient = obfuscationClient.withLogPrefix(target.getProjectPath()).withMetrics(metrics);
+                final int maxAttempts = target.getPollMaxAttempts().getOrElse(ObfuscationClient.DEFAULT_MAX_ATTEMPTS);
+                final int pollIntervalMs = target.getPollIntervalMs().getOrElse(ObfuscationClient.DEFAULT_POLL_INTERVAL_MS);
+
+                futures.add(executor.submit(() -> {
+                    try {
+                        projectClient.awaitCompletion(requestID, maxAttempts, pollIntervalMs);
+                        projectClient.downloadJar(requestID, outputJar);
+                        metrics.setStatus("completed");
+                    } catch (Throwable t) {
+                        metrics.setStatus("failed");
+                        throw t;
+                    } finally {
+                        metrics.setTotalMs((System.nanoTime() - start) / 1_000_000);
+                    }
+                    return null;
+                }));
+            }
+
+            // Wait for every job, so that one failure doesn't hide the results of the others
+            List<String> failures = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failures.add(targets.get(i).getProjectPath() + " (" + requestIDs.get(i) + "): " + e.getCause().getMessage());
+                }
+            }
+            if (!failures.isEmpty()) {
+                throw new RuntimeException("Obfuscation failed for " + failures.size() + "/" + targets.size() + " projects:\n\t" + String.join("\n\t", failures));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for obfuscation", e);
+        } finally {
+            executor.shutdownNow();
+            reportMetrics(uploadMetrics, jobMetrics);
+        }
+    }
+
+    private void reportMetrics(@NotNull ObfuscationMetrics uploadMetrics, @NotNull List<ObfuscationMetrics> jobMetrics) {
+        System.out.println("Batch upload timings: " + uploadMetrics.summary());
+        JsonArray jobs = new JsonArray();
+        for (ObfuscationMetrics metrics : jobMetrics) {
+            System.out.println("[" + metrics.getProjectPath() + "] Obfuscation timings: " + metrics.summary());
+            ObfuscateJarTask.recordMetrics(getMetricsService(), metrics);
+            jobs.add(metrics.toJson());
+        }
+
+        JsonObject report = new JsonObject();
+        report.add("upload", uploadMetrics.toJson());
+        report.add("jobs", jobs);
+        ObfuscateJarTask.writeReport(getReportFile(), report);
+    }
+}
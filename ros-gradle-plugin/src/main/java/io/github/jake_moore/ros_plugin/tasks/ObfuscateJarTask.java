@@ -1,318 +1,269 @@
 package io.github.jake_moore.ros_plugin.tasks;
 
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import io.github.jake_moore.ros_plugin.ROSGradleConfig;
-import lombok.Getter;
-import lombok.Setter;
+import io.github.jake_moore.ros_plugin.client.MetricsService;
+import io.github.jake_moore.ros_plugin.client.ObfuscationClient;
+import io.github.jake_moore.ros_plugin.client.ObfuscationMetrics;
+import io.github.jake_moore.ros_plugin.util.JarDigest;
+import io.github.jake_moore.ros_plugin.util.ObfuscationCache;
 import lombok.SneakyThrows;
-import okhttp3.MediaType;
-import okhttp3.MultipartBody;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
-import okhttp3.ResponseBody;
-import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
 import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputFile;
 import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
-import static io.github.jake_moore.ros_plugin.ROSGradlePlugin.client;
+/**
+ * Sends the project's jar (or shadowJar) output to the ROS backend, and writes the obfuscated jar back to the build folder.
+ * Every property is wired lazily by the plugin, so the task never touches the {@link org.gradle.api.Project} while executing.
+ */
+@CacheableTask
+public abstract class ObfuscateJarTask extends RemoteTask {
+    private static final int DEFAULT_CACHE_MAX_SIZE_MB = 1024;
 
-@Setter @Getter
-public class ObfuscateJarTask extends DefaultTask {
-    @Setter @Internal
-    private @Nullable ROSGradleConfig config = null;
+    // Captured while configuring, the project can't be accessed while executing
+    private final @NotNull String projectPath = getProject().getPath();
 
     public ObfuscateJarTask() {
         // Obfuscation is NEVER up-to-date, it can always be re-run to get a new obfuscated JAR
-        getOutputs().upToDateWhen(task -> false);
+        // The exception is when the user opts in to caching, in which case identical inputs may reuse a previous result
+        getOutputs().upToDateWhen(task -> ((ObfuscateJarTask) task).isGradleCacheable());
+        getOutputs().cacheIf("ROS caching is enabled and the original jar is kept", task -> ((ObfuscateJarTask) task).isGradleCacheable());
     }
 
-    @InputFile
-    public File getInputJar() {
-        // Retrieve the jar task output file, or the shadowJar output if that plugin is installed
-        // Check if a shadowJar task exists, and if so, use its output file
-        if (getProject().getTasks().findByName("shadowJar") != null) {
-            return getProject().getTasks().getByName("shadowJar").getOutputs().getFiles().getSingleFile();
-        }
-        // Otherwise, use the default jar task output file
-        return getProject().getTasks().getByName("jar").getOutputs().getFiles().getSingleFile();
-    }
+    // The jar task output file, or the shadowJar output if that plugin is installed
+    // Classpath normalization ignores jar timestamps and entry order, so rebuilt but identical jars keep the same fingerprint
+    @Classpath
+    public abstract RegularFileProperty getInputJar();
+
+    // The `jar` (and `shadowJar`) outputs, deleted once the server has the jar (unless `keepOriginalJar` is set)
+    @Internal
+    public abstract ConfigurableFileCollection getOriginalJars();
+
+    @Optional
+    @InputFile @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getConfigFile();
 
+    // archiveClassifier is "obf" by default, and controls the suffix of the output file
     @Input
-    public final Property<String> archiveClassifier = getProject().getObjects().property(String.class);
+    public abstract Property<String> getArchiveClassifier();
 
     @OutputFile
-    public File getObfuscatedJar() {
-        // Resolve the obfuscated JAR file dynamically
-        String name = getProject().getName();
-        String version = getProject().getVersion().toString();
-        String classifier = archiveClassifier.getOrElse("obf");
-
-        // Set the output file path
-        File buildDir = getProject().getLayout().getBuildDirectory().getAsFile().get();
-        String outputFileName = String.format("%s-%s%s.jar", name, version, classifier.isEmpty() ? "" : "-" + classifier);
-        return new File(buildDir, "libs/" + outputFileName);
-    }
+    public abstract RegularFileProperty getObfuscatedJar();
+
+    // Settings forwarded from the ros config, these don't change the obfuscated jar, so they are not task inputs
+    @Internal
+    public abstract Property<Boolean> getKeepOriginalJar();
+    @Internal
+    public abstract Property<Integer> getPollMaxAttempts();
+    @Internal
+    public abstract Property<Integer> getPollIntervalMs();
+    @Internal
+    public abstract Property<Boolean> getDeltaUpload();
+    @Internal
+    public abstract Property<Boolean> getResumableUpload();
+    @Internal
+    public abstract Property<Boolean> getCompressUpload();
+    @Internal
+    public abstract Property<Boolean> getCacheEnabled();
+    @Internal
+    public abstract DirectoryProperty getCacheDir();
+    @Internal
+    public abstract Property<Integer> getCacheMaxSizeMb();
+
+    // Phase timings of the last run are written here as json (not an output, a cached result has no timings of its own)
+    @Internal
+    public abstract RegularFileProperty getReportFile();
+    @Internal
+    public abstract Property<MetricsService> getMetricsService();
 
     @SneakyThrows
     @TaskAction
     public void sendJar() {
-        ROSGradleConfig config = getProject().getExtensions().findByType(ROSGradleConfig.class);
-        if (config == null) throw new RuntimeException("ROSGradleConfig not found!");
+        final File inputJar = getInputJar().get().getAsFile();
+        final File obfuscatedJar = getObfuscatedJar().get().getAsFile();
+        final long start = System.nanoTime();
+        final ObfuscationMetrics metrics = new ObfuscationMetrics(projectPath);
 
         try {
-            sendRequest(getInputJar(), getObfuscatedJar(), config);
+            @Nullable ObfuscationCache cache = getLocalCache();
+            if (cache == null) {
+                sendRequest(inputJar, obfuscatedJar, metrics);
+                metrics.setStatus("completed");
+                return;
+            }
+
+            // Caching is enabled, so key the result on the jar contents and the obfuscator config
+            final String cacheKey = JarDigest.obfuscationKey(inputJar, getRequiredConfigFile());
+            if (cache.restore(cacheKey, obfuscatedJar)) {
+                System.out.println("Reused cached obfuscation result (" + cacheKey + ")");
+                System.out.println("\tObfuscated Jar written to: " + obfuscatedJar.getAbsolutePath());
+                if (!getKeepOriginalJar().getOrElse(false)) {
+                    printDeletedFiles(deleteOriginalJars(getOriginalJars()));
+                }
+                metrics.setUploadMode("cache");
+                metrics.setStatus("completed");
+                return;
+            }
+
+            sendRequest(inputJar, obfuscatedJar, metrics);
+            cache.store(cacheKey, obfuscatedJar);
+            metrics.setStatus("completed");
         } catch (Throwable t) {
+            metrics.setStatus("failed");
             throw new RuntimeException("Failed to send JAR for obfuscation", t);
+        } finally {
+            metrics.setTotalMs((System.nanoTime() - start) / 1_000_000);
+            System.out.println("Obfuscation timings: " + metrics.summary());
+            recordMetrics(getMetricsService(), metrics);
+            writeReport(getReportFile(), metrics.toJson());
+        }
+    }
+
+    /**
+     * Gradle may only skip this task (up-to-date or build cache) when it would not have deleted the original jars.
+     * Otherwise, the task still executes, and can reuse the local cache instead of the network.
+     */
+    private boolean isGradleCacheable() {
+        return getCacheEnabled().getOrElse(false) && getKeepOriginalJar().getOrElse(false);
+    }
+
+    @Nullable
+    private ObfuscationCache getLocalCache() {
+        if (!getCacheEnabled().getOrElse(false)) {
+            return null;
         }
+
+        long maxSizeBytes = getCacheMaxSizeMb().getOrElse(DEFAULT_CACHE_MAX_SIZE_MB) * 1024L * 1024L;
+        return new ObfuscationCache(getCacheDir().get().getAsFile(), maxSizeBytes);
     }
 
-    @SuppressWarnings("unused")
-    private void sendRequest(@NotNull File inputJar, @NotNull File outputJar, @NotNull ROSGradleConfig config) throws IOException {
-        final String REQUEST_URL = config.getObfuscationEndpoint();
-        final File configFile = new File(config.getConfigFilePath().get());
+    @NotNull
+    private File getRequiredConfigFile() {
+        if (!getConfigFile().isPresent()) {
+            throw new RuntimeException("Please config ros config (configFilePath) in the build file.");
+        }
+        final File configFile = getConfigFile().get().getAsFile();
         if (!configFile.exists()) {
             throw new RuntimeException("Config file does not exist: " + configFile.getAbsolutePath());
         }
+        return configFile;
+    }
+
+    private void sendRequest(@NotNull File inputJar, @NotNull File outputJar, @NotNull ObfuscationMetrics metrics) throws IOException {
+        final File configFile = getRequiredConfigFile();
         if (!inputJar.exists()) {
             throw new RuntimeException("JAR file (from jar task) does not exist: " + inputJar.getAbsolutePath());
         }
 
-        boolean keepOriginalJar = config.getKeepOriginalJar().getOrElse(false); // Delete the original jar by default
-        File uploadFile = keepOriginalJar ? inputJar : null;
+        final boolean keepOriginalJar = getKeepOriginalJar().getOrElse(false); // Delete the original jar by default
+        final ObfuscationClient obfuscationClient = new ObfuscationClient(httpClient(), resolveEndpoint("api/obfuscate")).withMetrics(metrics);
 
-        // Personal Choice: let's copy the `jar` output to a temporary file, so that we can delete the original JAR file if requested
-        // This allows the jar to be removed from /build/libs faster, and reduces the likelihood of it being used by anyone looking for the build jar
-        if (!keepOriginalJar) {
-            File tempJarFile = File.createTempFile(inputJar.getName(), ".jar");
-            Files.copy(inputJar.toPath(), tempJarFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-
-            // We should now delete all input files (from tasks: `jar`, `shadowJar`) to prevent them from being used
-            @NotNull List<File> deletedFiles = deleteInputFiles(inputJar);
-            if (!deletedFiles.isEmpty()) {
-                System.out.println("\n----------------------------------------------------------------");
-                System.out.println("Deleted original JAR files:");
-                for (File deletedFile : deletedFiles) {
-                    System.out.println("\t" + deletedFile.getAbsolutePath());
-                }
-                System.out.println("You can disable this behavior by setting `keepOriginalJar` to true in the ros config.");
-                System.out.println("----------------------------------------------------------------\n");
-            }
+        // Initial request to start obfuscation, only sending the jar entries the server is missing if enabled
+        JsonObject jsonResponse = obfuscationClient.submit(inputJar, configFile,
+                getDeltaUpload().getOrElse(false), getResumableUpload().getOrElse(false), getCompressUpload().getOrElse(false));
 
-            // Replace our jarFile field, so that from now on we use the temporary file instead
-            uploadFile = tempJarFile;
+        // Personal Choice: once the server has the jar, delete the `jar` (and `shadowJar`) outputs if requested
+        // This reduces the likelihood of the un-obfuscated jar being used by anyone looking for the build jar
+        if (!keepOriginalJar) {
+            printDeletedFiles(deleteOriginalJars(getOriginalJars()));
         }
 
-        // Get the username you want to include (e.g., from environment or system properties)
-        @Nullable String githubUser = System.getenv("GITHUB_ACTOR");
+        // Parse the JSON response to get the request ID
+        final String requestID = jsonResponse.get("request_id").getAsString();
+        metrics.setRequestId(requestID);
+        System.out.println("Obfuscation job started with ID: " + requestID);
+        obfuscationClient.printQueuePosition(jsonResponse);
 
-        // Create the URL with the query parameter
-        @NotNull String obfuscateJarURL = REQUEST_URL;
-        if (githubUser != null && !githubUser.isEmpty()) {
-            obfuscateJarURL += "?requested_by=" + URLEncoder.encode(githubUser, StandardCharsets.UTF_8);
-        }
+        // Wait for completion
+        final int maxAttempts = getPollMaxAttempts().getOrElse(ObfuscationClient.DEFAULT_MAX_ATTEMPTS);
+        final int pollIntervalMs = getPollIntervalMs().getOrElse(ObfuscationClient.DEFAULT_POLL_INTERVAL_MS);
+        obfuscationClient.awaitCompletion(requestID, maxAttempts, pollIntervalMs);
 
-        // Create multipart request body
-        RequestBody requestBody = new MultipartBody.Builder()
-                .setType(MultipartBody.FORM)
-                .addFormDataPart("jar", uploadFile.getName(),
-                        RequestBody.create(uploadFile, MediaType.parse(Files.probeContentType(uploadFile.toPath()))))
-                .addFormDataPart("config", configFile.getName(),
-                        RequestBody.create(configFile, MediaType.parse(Files.probeContentType(configFile.toPath()))))
-                .build();
-
-        // Get auth token from environment variable
-        String authToken = System.getenv("ROS_GITHUB_PAT");
-        if (authToken == null) {
-            throw new RuntimeException("ROS_GITHUB_PAT environment variable not set!");
-        }
+        obfuscationClient.downloadJar(requestID, outputJar);
+    }
 
-        String requestID;
-        // Initial request to start obfuscation
-        try (Response response = client.newCall(new Request.Builder()
-                .url(obfuscateJarURL)
-                .header("Authorization", "Bearer " + authToken)
-                .post(requestBody)
-                .build()).execute()) {
-            
-            String responseBody = response.body().string();
-            if (!response.isSuccessful()) {
-                throw new RuntimeException("Unexpected code (" + response.code() + "): " + responseBody);
-            }
+    /**
+     * Captures what {@link ObfuscateBatchTask} needs to obfuscate this project's jar (as lazy providers).
+     */
+    @NotNull
+    ObfuscationTarget toBatchTarget() {
+        return new ObfuscationTarget(
+                projectPath,
+                getInputJar(),
+                getConfigFile(),
+                getObfuscatedJar(),
+                getOriginalJars(),
+                getKeepOriginalJar(),
+                getPollMaxAttempts(),
+                getPollIntervalMs()
+        );
+    }
 
-            // Parse the JSON response to get the request ID
-            JsonObject jsonResponse = JsonParser.parseString(responseBody).getAsJsonObject();
-            requestID = jsonResponse.get("request_id").getAsString();
-            System.out.println("Obfuscation job started with ID: " + requestID);
-            @Nullable JsonElement queue_index = jsonResponse.get("queue_index");
-            @Nullable JsonElement total_queue_size = jsonResponse.get("total_queue_size");
-            int queue_index_val = queue_index != null ? queue_index.getAsInt() : -1;
-            if (queue_index == null || queue_index_val < 0 || total_queue_size == null) {
-                System.out.println("No queue position information available.");
-            } else {
-                // Print the queue position
-                System.out.println("Current queue position: " + (queue_index_val + 1) + "/" + total_queue_size.getAsInt());
-            }
+    static void recordMetrics(@NotNull Property<MetricsService> metricsService, @NotNull ObfuscationMetrics metrics) {
+        if (metricsService.isPresent()) {
+            metricsService.get().record(metrics);
         }
+    }
 
-        // Poll for completion
-        final int DEFAULT_MAX_ATTEMPTS = 60; // 5 minutes max (60 * 5 seconds)
-        final int DEFAULT_POLL_INTERVAL_MS = 5000; // 5 seconds
-
-        final int maxAttempts = config.getPollMaxAttempts().getOrElse(DEFAULT_MAX_ATTEMPTS);
-        final int pollIntervalMs = config.getPollIntervalMs().getOrElse(DEFAULT_POLL_INTERVAL_MS);
-        int attempts = 0;
-
-        // Continue to poll obfuscation status until we have a definite answer, or we run out of attempts
-        while (attempts < maxAttempts) {
-            // Still processing
-            System.out.println("Waiting for obfuscation to complete... " + (attempts + 1) + "/" + maxAttempts);
-
-            // Sleep a bit before fetching obfuscation results
-            sleep(pollIntervalMs);
-
-            try (Response response = client.newCall(new Request.Builder()
-                    .url(REQUEST_URL + "/" + requestID)
-                    .header("Authorization", "Bearer " + authToken)
-                    .get()
-                    .build()).execute()) {
-
-                String responseBody = response.body().string();
-                if (!response.isSuccessful()) {
-                    throw new RuntimeException("Unexpected code (" + response.code() + "): " + responseBody);
-                }
-
-                JsonObject jsonResponse = JsonParser.parseString(responseBody).getAsJsonObject();
-                String status = jsonResponse.get("status").getAsString();
-
-                // Log Status
-                System.out.println("Current Obfuscation status (" + (attempts + 1) + "/" + maxAttempts + "): " + status);
-
-                if ("completed".equals(status)) {
-                    // Log start of Jar copy
-                    System.out.println("\nObfuscation completed, writing JAR to: " + outputJar.getAbsolutePath());
-
-                    // If the file already exists, we should delete it
-                    if (outputJar.exists()) {
-                        if (outputJar.delete()) {
-                            System.out.println("\tDeleted existing obfuscated JAR file: " + outputJar.getAbsolutePath());
-                        } else {
-                            throw new RuntimeException("Failed to delete existing obfuscated JAR file: " + outputJar.getAbsolutePath());
-                        }
-                    }
-
-                    String DOWNLOAD_URL = REQUEST_URL + "/" + requestID + "/download";
-
-                    // Download the obfuscated JAR file
-                    try (Response downloadResponse = client.newCall(new Request.Builder()
-                            .url(DOWNLOAD_URL)
-                            .header("Authorization", "Bearer " + authToken)
-                            .get()
-                            .build()).execute()) {
-
-                        if (!downloadResponse.isSuccessful()) {
-                            throw new RuntimeException("Failed to download JAR: " + downloadResponse.code());
-                        }
-
-                        ResponseBody body = downloadResponse.body();
-
-                        // Get the content length for progress tracking
-                        long bytesRead = 0;
-
-                        try (InputStream inputStream = body.byteStream();
-                             FileOutputStream outputStream = new FileOutputStream(outputJar)) {
-
-                            byte[] buffer = new byte[8192];
-                            int read;
-
-                            while ((read = inputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, read);
-                                bytesRead += read;
-                            }
-                        }
-
-                        System.out.println("\tObfuscated Jar written to: " + outputJar.getAbsolutePath());
-                        System.out.println("\tRequest ID: " + requestID);
-                    }
-                    return;
-                } else if ("failed".equals(status)) {
-                    throw new RuntimeException("Obfuscation failed: " + jsonResponse.get("error").getAsString());
-                } else {
-                    // Log Queue Position Information
-                    @Nullable JsonElement queue_index = jsonResponse.get("queue_index");
-                    @Nullable JsonElement total_queue_size = jsonResponse.get("total_queue_size");
-                    int queue_index_val = queue_index != null ? queue_index.getAsInt() : -1;
-                    if (queue_index == null || queue_index_val < 0 || total_queue_size == null) {
-                        System.out.println("\tNo queue position information available.");
-                    } else {
-                        // Print the queue position
-                        System.out.println("\tCurrent queue position: " + (queue_index_val + 1) + "/" + total_queue_size.getAsInt());
-                    }
-                    attempts++;
-                }
-            }
+    static void writeReport(@NotNull RegularFileProperty reportFile, @NotNull JsonElement report) {
+        if (!reportFile.isPresent()) {
+            return;
+        }
+        final File file = reportFile.get().getAsFile();
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.writeString(file.toPath(), new GsonBuilder().setPrettyPrinting().create().toJson(report), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // The report is informational, it should never fail the build
+            System.out.println("Failed to write obfuscation report to " + file.getAbsolutePath() + ": " + e.getMessage());
         }
-
-        throw new RuntimeException("Obfuscation timed out after " + (maxAttempts * pollIntervalMs / 1000) + " seconds");
     }
 
-    private static void sleep(int pollIntervalMs) {
-        try {
-            Thread.sleep(pollIntervalMs);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Interrupted while waiting for obfuscation", e);
+    static void printDeletedFiles(@NotNull List<File> deletedFiles) {
+        if (deletedFiles.isEmpty()) return;
+        System.out.println("\n----------------------------------------------------------------");
+        System.out.println("Deleted original JAR files:");
+        for (File deletedFile : deletedFiles) {
+            System.out.println("\t" + deletedFile.getAbsolutePath());
         }
+        System.out.println("You can disable this behavior by setting `keepOriginalJar` to true in the ros config.");
+        System.out.println("----------------------------------------------------------------\n");
     }
 
     @NotNull
-    private List<File> deleteInputFiles(@NotNull File inputJar) {
+    static List<File> deleteOriginalJars(@NotNull FileCollection originalJars) {
         List<File> deletedFiles = new ArrayList<>();
-        if (inputJar.exists()) {
-            if (!inputJar.delete()) {
-                throw new RuntimeException("Failed to delete original inputJar file: " + inputJar.getAbsolutePath());
+        for (File originalJar : originalJars.getFiles()) {
+            if (!originalJar.exists()) {
+                continue;
             }
-            deletedFiles.add(inputJar);
-        }
-
-        // Get the output from the `jar` task
-        File jarOutputFile = getProject().getTasks().getByName("jar").getOutputs().getFiles().getSingleFile();
-        if (jarOutputFile.exists()) {
-            if (!jarOutputFile.delete()) {
-                throw new RuntimeException("Failed to delete original `jar` task output file: " + jarOutputFile.getAbsolutePath());
-            }
-            deletedFiles.add(jarOutputFile);
-        }
-
-        // If the shadowJar plugin is installed, delete its output file as well
-        if (getProject().getTasks().findByName("shadowJar") != null) {
-            File shadowJarOutputFile = getProject().getTasks().getByName("shadowJar").getOutputs().getFiles().getSingleFile();
-            if (shadowJarOutputFile.exists()) {
-                if (!shadowJarOutputFile.delete()) {
-                    throw new RuntimeException("Failed to delete original `shadowJar` task output file: " + shadowJarOutputFile.getAbsolutePath());
-                }
-                deletedFiles.add(shadowJarOutputFile);
+            if (!originalJar.delete()) {
+                throw new RuntimeException("Failed to delete original jar file: " + originalJar.getAbsolutePath());
             }
+            deletedFiles.add(originalJar);
         }
-
         return deletedFiles;
     }
 }
@@ -0,0 +1,25 @@
+package io.github.jake_moore.ros_plugin.tasks;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.provider.Provider;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * One project's jar in an {@link ObfuscateBatchTask}, taken from that project's `rosObfuscateJar` task.
+ * Values stay lazy, so they are only resolved when the batch executes.
+ */
+@Getter
+@RequiredArgsConstructor
+class ObfuscationTarget {
+    private final @NotNull String projectPath;
+    private final @NotNull Provider<RegularFile> inputJar;
+    private final @NotNull Provider<RegularFile> configFile;
+    private final @NotNull Provider<RegularFile> obfuscatedJar;
+    private final @NotNull FileCollection originalJars;
+    private final @NotNull Provider<Boolean> keepOriginalJar;
+    private final @NotNull Provider<Integer> pollMaxAttempts;
+    private final @NotNull Provider<Integer> pollIntervalMs;
+}
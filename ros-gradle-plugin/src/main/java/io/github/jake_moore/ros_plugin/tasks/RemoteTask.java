@@ -0,0 +1,34 @@
+package io.github.jake_moore.ros_plugin.tasks;
+
+import io.github.jake_moore.ros_plugin.ROSGradleConfig;
+import io.github.jake_moore.ros_plugin.client.HttpClientService;
+import okhttp3.OkHttpClient;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Internal;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Base class for the tasks that talk to the ROS backend.
+ * Both properties are wired up by the plugin (from the `rosConfig` extension and the shared {@link HttpClientService}).
+ */
+public abstract class RemoteTask extends DefaultTask {
+    @Internal
+    public abstract Property<String> getApiUrl();
+
+    @Internal
+    public abstract Property<HttpClientService> getHttpClientService();
+
+    @NotNull
+    protected String resolveEndpoint(@NotNull String path) {
+        if (!getApiUrl().isPresent()) {
+            throw new RuntimeException("Please config ros config (apiUrl) in the build file.");
+        }
+        return ROSGradleConfig.resolveEndpoint(getApiUrl().get(), path);
+    }
+
+    @NotNull
+    protected OkHttpClient httpClient() {
+        return getHttpClientService().get().getClient();
+    }
+}
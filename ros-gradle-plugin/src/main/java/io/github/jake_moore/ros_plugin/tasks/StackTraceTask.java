@@ -2,15 +2,16 @@ package io.github.jake_moore.ros_plugin.tasks;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import io.github.jake_moore.ros_plugin.ROSGradleConfig;
 import io.github.jake_moore.ros_plugin.util.Either;
+import io.github.jake_moore.ros_plugin.util.StackTraceMapping;
+import io.github.jake_moore.ros_plugin.util.TraceLogTranslator;
 import io.github.jake_moore.ros_plugin.util.WatermarkData;
-import lombok.Setter;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
-import org.gradle.api.DefaultTask;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.api.tasks.options.Option;
 import org.jetbrains.annotations.NotNull;
@@ -18,23 +19,43 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-
-import static io.github.jake_moore.ros_plugin.ROSGradlePlugin.client;
+import java.util.List;
 
 @SuppressWarnings("unused")
-public class StackTraceTask extends DefaultTask {
+public abstract class StackTraceTask extends RemoteTask {
     private static final String JAR_OPTION_NAME = "jar";
     private static final String REQUEST_ID_OPTION_NAME = "requestId";
     private static final String STACK_TRACE_OPTION_NAME = "trace";
     private static final String OUTPUT_OPTION_NAME = "output";
+    private static final String REMOTE_OPTION_NAME = "remote";
+    private static final String BULK_OPTION_NAME = "bulk";
+    private static final String FOLLOW_OPTION_NAME = "follow";
+    // Separates the lines of a bulk batch sent to the server, it contains nothing that looks like a class name
+    private static final String BATCH_SEPARATOR = "ROS-TRACE-BATCH-SEPARATOR";
+    // Lines sent to the server per request (UTF-8), base64 adds a third, which keeps the body under the server's 100 kB json limit
+    private static final int MAX_REMOTE_BATCH_BYTES = 64 * 1024;
+    // The only mapping format we can translate locally, anything else is translated by the server
+    private static final String MAPPING_FORMAT = "allatori-log";
 
-    @Setter
-    private @Nullable ROSGradleConfig config = null;
     private @Nullable Either<File, String> either; // Either a File (obfuscated jar) or a String (requestID)
     private @Nullable String stackTracePath = null;
     private @Nullable String outputFilePath = null;
+    private boolean remote = false;
+    private boolean bulk = false;
+    private boolean follow = false;
+
+    // Downloaded mappings, shared by every build (a request's mapping never changes)
+    @Internal
+    public abstract DirectoryProperty getMappingCacheDir();
 
     @Option(option = REQUEST_ID_OPTION_NAME, description = "The request ID of the obfuscated jar that produced the stack trace.")
     public void setRequestId(String requestId) {
@@ -68,29 +89,38 @@ public class StackTraceTask extends DefaultTask {
         this.outputFilePath = outputFilePath;
     }
 
+    @Option(option = REMOTE_OPTION_NAME, description = "Translate the stack trace on the server, instead of locally with a cached mapping.")
+    public void setRemote(boolean remote) {
+        this.remote = remote;
+    }
+
+    @Option(option = BULK_OPTION_NAME, description = "Translate every stack trace in a (large) log file, streaming it instead of reading it at once.")
+    public void setBulk(boolean bulk) {
+        this.bulk = bulk;
+    }
+
+    @Option(option = FOLLOW_OPTION_NAME, description = "Keep translating the log file as it grows, until the build is cancelled (implies --" + BULK_OPTION_NAME + ").")
+    public void setFollow(boolean follow) {
+        this.follow = follow;
+    }
+
     @TaskAction
     public void readWatermark() {
         if (either == null) {
             throw new RuntimeException("Please specify either --" + REQUEST_ID_OPTION_NAME + " or --" + JAR_OPTION_NAME + " in the task invocation.");
         }
-        if (config == null) {
-            throw new RuntimeException("Please config ros config (apiUrl) in the build file.");
-        }
         if (stackTracePath == null) {
             throw new RuntimeException("Please specify the stack trace file path using --" + STACK_TRACE_OPTION_NAME + "=<path> in the task invocation.");
         }
 
-        // Get auth token from environment variable
-        String authToken = System.getenv("ROS_GITHUB_PAT");
-        if (authToken == null) {
-            throw new RuntimeException("ROS_GITHUB_PAT environment variable not set!");
-        }
-
         @NotNull final String requestId = either.right().orElseGet(() -> {
             assert either.left().isPresent();
             File jarFile = either.left().get();
             try {
-                @NotNull WatermarkData watermark = WatermarkTask.getWatermarkFromFile(config, jarFile);
+                @Nullable WatermarkData watermark = WatermarkTask.getWatermarkFromFile(jarFile);
+                if (watermark == null) {
+                    throw new RuntimeException("No watermark found in the jar, please specify the request ID using --" + REQUEST_ID_OPTION_NAME + "=<id> instead.");
+                }
                 System.out.println("Watermark Extracted from Input Jar!");
                 System.out.println("\tRequest ID: " + watermark.getRequestId());
                 System.out.println("\tRequest User: " + watermark.getRequestUser() + "\n");
@@ -109,18 +139,168 @@ public class StackTraceTask extends DefaultTask {
             throw new RuntimeException("The specified stack trace file path is a directory, not a file: " + stackTraceFile.getAbsolutePath());
         }
 
+        if (bulk || follow) {
+            try {
+                translateLog(requestId, stackTraceFile);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
         try {
-            translateStackTrace(config, stackTraceFile, requestId, authToken);
-        }catch (IOException e) {
+            // Read the stack trace file content
+            System.out.println("Reading stack trace from " + stackTraceFile.getAbsolutePath());
+            String stacktrace = Files.readString(stackTraceFile.toPath());
+
+            // Prefer translating locally with the (cached) mapping, the server is only needed when no mapping is available
+            @Nullable String outputTrace = remote ? null : translateLocally(requestId, stacktrace);
+            if (outputTrace == null) {
+                outputTrace = translateRemotely(requestId, stacktrace);
+            }
+            printTranslatedTrace(outputTrace);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void translateStackTrace(ROSGradleConfig config, File stackTraceFile, String requestId, String token) throws IOException {
-        // Read the stack trace file content
-        System.out.println("Reading stack trace from " + stackTraceFile.getAbsolutePath());
-        String stacktrace = Files.readString(stackTraceFile.toPath());
+    /**
+     * Streams the log file through the translator, writing the translated log as it goes.
+     * Uses the local mapping when available, otherwise each batch of distinct trace lines is one request to the server.
+     */
+    private void translateLog(@NotNull String requestId, @NotNull File logFile) throws IOException {
+        @Nullable File mappingFile = remote ? null : getMappingFile(requestId);
+        TraceLogTranslator translator;
+        if (mappingFile != null) {
+            StackTraceMapping mapping = StackTraceMapping.load(mappingFile);
+            System.out.println("Translating locally with the mapping for " + requestId + " (" + mapping.size() + " classes)");
+            translator = new TraceLogTranslator(lines -> {
+                List<String> translated = new ArrayList<>(lines.size());
+                for (String line : lines) {
+                    translated.add(mapping.translate(line));
+                }
+                return translated;
+            });
+        } else {
+            translator = new TraceLogTranslator(lines -> translateBatchRemotely(requestId, lines));
+        }
+
+        System.out.println((follow ? "Following " : "Reading ") + logFile.getAbsolutePath());
+        if (outputFilePath != null) {
+            File outputFile = new File(outputFilePath);
+            try (Writer out = Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8)) {
+                translator.translate(logFile, out, follow);
+            }
+            System.out.println("Output trace written to " + outputFile.getAbsolutePath());
+        } else {
+            // Written to the console as it is translated, System.out is not ours to close
+            Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            translator.translate(logFile, out, follow);
+            out.flush();
+        }
+        System.out.println("Translated " + translator.summary());
+    }
+
+    /**
+     * Translates the lines on the server, in as many requests as it takes to keep each one under {@link #MAX_REMOTE_BATCH_BYTES}.
+     */
+    @NotNull
+    private List<String> translateBatchRemotely(@NotNull String requestId, @NotNull List<String> lines) throws IOException {
+        final int separatorBytes = BATCH_SEPARATOR.length() + 2;
+        List<String> translated = new ArrayList<>(lines.size());
+        List<String> chunk = new ArrayList<>();
+        int chunkBytes = 0;
+        for (String line : lines) {
+            int lineBytes = line.getBytes(StandardCharsets.UTF_8).length + separatorBytes;
+            // A line over the limit on its own is still sent, alone
+            if (!chunk.isEmpty() && chunkBytes + lineBytes > MAX_REMOTE_BATCH_BYTES) {
+                translated.addAll(translateChunkRemotely(requestId, chunk));
+                chunk.clear();
+                chunkBytes = 0;
+            }
+            chunk.add(line);
+            chunkBytes += lineBytes;
+        }
+        if (!chunk.isEmpty()) {
+            translated.addAll(translateChunkRemotely(requestId, chunk));
+        }
+        return translated;
+    }
+
+    @NotNull
+    private List<String> translateChunkRemotely(@NotNull String requestId, @NotNull List<String> lines) throws IOException {
+        String output = translateRemotely(requestId, String.join("\n" + BATCH_SEPARATOR + "\n", lines));
+        List<String> translated = new ArrayList<>(Arrays.asList(output.split("\r?\n" + BATCH_SEPARATOR + "\r?\n", -1)));
+        // The server may end its output with a line break
+        int last = translated.size() - 1;
+        translated.set(last, translated.get(last).replaceAll("\r?\n$", ""));
+        return translated;
+    }
 
+    @Nullable
+    private String translateLocally(@NotNull String requestId, @NotNull String stacktrace) throws IOException {
+        @Nullable File mappingFile = getMappingFile(requestId);
+        if (mappingFile == null) {
+            return null;
+        }
+
+        StackTraceMapping mapping = StackTraceMapping.load(mappingFile);
+        System.out.println("Translating locally with the mapping for " + requestId + " (" + mapping.size() + " classes)");
+        return mapping.translate(stacktrace);
+    }
+
+    /**
+     * Returns the mapping for this request from the local cache, downloading it once if it isn't cached yet.
+     *
+     * @return the mapping file, or null if the server can't provide a mapping we understand
+     */
+    @Nullable
+    private File getMappingFile(@NotNull String requestId) throws IOException {
+        // The request ID becomes a file name, so only accept the format the server generates
+        if (!requestId.matches("[A-Za-z0-9-]+")) {
+            return null;
+        }
+
+        File cacheDir = getMappingCacheDir().get().getAsFile();
+        File cached = new File(cacheDir, requestId + ".log");
+        if (cached.isFile()) {
+            return cached;
+        }
+
+        Request request = new Request.Builder()
+                .url(resolveEndpoint("api/stacktrace/" + requestId + "/mapping"))
+                .get()
+                .addHeader("Authorization", "Bearer " + getAuthToken())
+                .build();
+
+        try (Response response = httpClient().newCall(request).execute()) {
+            if (response.code() == 404) {
+                System.out.println("No mapping available for local translation, translating on the server.");
+                return null;
+            }
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("Unexpected code (" + response.code() + "): " + response.body().string());
+            }
+            @Nullable String format = response.header("X-ROS-Mapping-Format");
+            if (!MAPPING_FORMAT.equals(format)) {
+                System.out.println("Unsupported mapping format (" + format + "), translating on the server.");
+                return null;
+            }
+
+            // Download next to the cache entry first, so an interrupted download is never mistaken for a mapping
+            Files.createDirectories(cacheDir.toPath());
+            File temp = new File(cacheDir, requestId + ".log.part");
+            try (InputStream in = response.body().byteStream()) {
+                Files.copy(in, temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Mapping for " + requestId + " cached at " + cached.getAbsolutePath());
+        }
+        return cached;
+    }
+
+    @NotNull
+    private String translateRemotely(@NotNull String requestId, @NotNull String stacktrace) throws IOException {
         // Encode stacktrace to base64
         String encodedTrace = Base64.getEncoder().encodeToString(stacktrace.getBytes());
 
@@ -136,33 +316,44 @@ public class StackTraceTask extends DefaultTask {
         );
 
         Request request = new Request.Builder()
-                .url(config.getStackTraceEndpoint())
+                .url(resolveEndpoint("api/stacktrace"))
                 .post(requestBody)
-                .addHeader("Authorization", "Bearer " + token)
+                .addHeader("Authorization", "Bearer " + getAuthToken())
                 .build();
 
         // Execute the request
-        try (Response response = client.newCall(request).execute()) {
+        try (Response response = httpClient().newCall(request).execute()) {
             String responseBody = response.body().string();
             if (!response.isSuccessful()) {
                 throw new RuntimeException("Unexpected code (" + response.code() + "): " + responseBody);
             }
             JsonObject jsonObject = JsonParser.parseString(responseBody).getAsJsonObject();
             String outputBase64 = jsonObject.get("output_trace_base64").getAsString();
-            String outputTrace = new String(Base64.getDecoder().decode(outputBase64));
-
-            System.out.println("Stack Trace Translated Successfully!");
-            System.out.println("Stack Trace: ");
-            System.out.println("----------------------------------------------------------------");
-            System.out.println(outputTrace);
-            System.out.println("----------------------------------------------------------------");
-
-            if (outputFilePath != null) {
-                File outputFile = new File(outputFilePath);
-                Files.writeString(outputFile.toPath(), outputTrace);
-                System.out.println("\nOutput trace written to " + outputFile.getAbsolutePath());
-            }
+            return new String(Base64.getDecoder().decode(outputBase64));
+        }
+    }
+
+    private void printTranslatedTrace(@NotNull String outputTrace) throws IOException {
+        System.out.println("Stack Trace Translated Successfully!");
+        System.out.println("Stack Trace: ");
+        System.out.println("----------------------------------------------------------------");
+        System.out.println(outputTrace);
+        System.out.println("----------------------------------------------------------------");
+
+        if (outputFilePath != null) {
+            File outputFile = new File(outputFilePath);
+            Files.writeString(outputFile.toPath(), outputTrace);
+            System.out.println("\nOutput trace written to " + outputFile.getAbsolutePath());
         }
     }
 
+    @NotNull
+    private static String getAuthToken() {
+        // Get auth token from environment variable
+        String authToken = System.getenv("ROS_GITHUB_PAT");
+        if (authToken == null) {
+            throw new RuntimeException("ROS_GITHUB_PAT environment variable not set!");
+        }
+        return authToken;
+    }
 }
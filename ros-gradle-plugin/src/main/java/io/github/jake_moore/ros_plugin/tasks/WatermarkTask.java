@@ -1,11 +1,7 @@
 package io.github.jake_moore.ros_plugin.tasks;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import io.github.jake_moore.ros_plugin.ROSGradleConfig;
 import io.github.jake_moore.ros_plugin.util.WatermarkData;
-import lombok.Setter;
-import okhttp3.*;
+import io.github.jake_moore.ros_plugin.util.WatermarkReader;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.api.tasks.options.Option;
@@ -15,31 +11,47 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-
-import static io.github.jake_moore.ros_plugin.ROSGradlePlugin.client;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @SuppressWarnings("unused")
-public class WatermarkTask extends DefaultTask {
+public abstract class WatermarkTask extends DefaultTask {
     private @Nullable String jarFilePath = null;
-    @Setter
-    private @Nullable ROSGradleConfig config = null;
+    private @Nullable String directoryPath = null;
 
     @Option(option = "jar", description = "The file path for the jar to read the watermark from.")
     public void setJarFilePath(@Nullable String jarFilePath) {
         this.jarFilePath = jarFilePath;
     }
 
+    @Option(option = "dir", description = "A directory to scan (recursively) for jars, reading the watermark of each one.")
+    public void setDirectoryPath(@Nullable String directoryPath) {
+        this.directoryPath = directoryPath;
+    }
+
     @TaskAction
     public void readWatermark() {
-        if (jarFilePath == null) {
-            throw new RuntimeException("Please specify the jar file path using --jar=<path> in the task invocation.");
+        if (jarFilePath != null && directoryPath != null) {
+            throw new RuntimeException("Cannot specify both --jar and --dir in the task invocation.");
         }
-        if (config == null) {
-            throw new RuntimeException("Please config ros config (apiUrl) in the build file.");
+        if (jarFilePath == null && directoryPath == null) {
+            throw new RuntimeException("Please specify the jar file path using --jar=<path> (or a directory using --dir=<path>) in the task invocation.");
         }
 
         try {
-            WatermarkData watermark = getWatermarkFromFile(config, new File(jarFilePath));
+            if (directoryPath != null) {
+                scanDirectory(new File(directoryPath));
+                return;
+            }
+
+            @Nullable WatermarkData watermark = getWatermarkFromFile(new File(jarFilePath));
+            if (watermark == null) {
+                System.out.println("No watermark found in the jar.");
+                return;
+            }
             System.out.println("Watermark Successfully Extracted!");
             System.out.println("\tRequest ID: " + watermark.getRequestId());
             System.out.println("\tRequest User: " + watermark.getRequestUser());
@@ -49,14 +61,70 @@ public class WatermarkTask extends DefaultTask {
         }
     }
 
-    @NotNull
-    public static WatermarkData getWatermarkFromFile(@NotNull ROSGradleConfig config, @NotNull File file) throws IOException {
-        // Get auth token from environment variable
-        String authToken = System.getenv("ROS_GITHUB_PAT");
-        if (authToken == null) {
-            throw new RuntimeException("ROS_GITHUB_PAT environment variable not set!");
+    /**
+     * Reads the watermark of every jar in the directory (in parallel, locally only), and prints them as a table.
+     */
+    private void scanDirectory(@NotNull File directory) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new RuntimeException("The specified directory does not exist: " + directory.getAbsolutePath());
+        }
+
+        List<Path> jars;
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            jars = files.filter(path -> Files.isRegularFile(path) && path.getFileName().toString().endsWith(".jar"))
+                    .sorted(Comparator.naturalOrder())
+                    .collect(Collectors.toList());
+        }
+        if (jars.isEmpty()) {
+            System.out.println("No jar files found in " + directory.getAbsolutePath());
+            return;
+        }
+
+        // Each jar only needs its central directory and one small entry read, so this is disk bound, not cpu bound
+        List<String[]> rows = jars.parallelStream().map(jar -> {
+            String name = directory.toPath().relativize(jar).toString();
+            try {
+                @Nullable WatermarkData watermark = WatermarkReader.read(jar.toFile());
+                if (watermark == null) {
+                    return new String[]{name, "-", "(no watermark)"};
+                }
+                return new String[]{name, watermark.getRequestId(), watermark.getRequestUser()};
+            } catch (IOException e) {
+                return new String[]{name, "-", "(unreadable: " + e.getMessage() + ")"};
+            }
+        }).collect(Collectors.toList());
+
+        printTable(new String[]{"Jar", "Request ID", "Request User"}, rows);
+        long watermarked = rows.stream().filter(row -> !"-".equals(row[1])).count();
+        System.out.println("\n" + watermarked + "/" + rows.size() + " jars are watermarked.");
+    }
+
+    private static void printTable(@NotNull String[] header, @NotNull List<String[]> rows) {
+        int[] widths = new int[header.length];
+        for (int i = 0; i < header.length; i++) {
+            widths[i] = header[i].length();
+            for (String[] row : rows) {
+                widths[i] = Math.max(widths[i], row[i].length());
+            }
         }
 
+        StringBuilder format = new StringBuilder();
+        for (int i = 0; i < widths.length; i++) {
+            format.append(i == widths.length - 1 ? "%s" : "%-" + widths[i] + "s  ");
+        }
+        System.out.println(String.format(format.toString(), (Object[]) header));
+        for (String[] row : rows) {
+            System.out.println(String.format(format.toString(), (Object[]) row));
+        }
+    }
+
+    /**
+     * Reads the watermark from the jar locally, the jar is never uploaded.
+     *
+     * @return the watermark, or null if the jar has no watermark entry
+     */
+    @Nullable
+    public static WatermarkData getWatermarkFromFile(@NotNull File file) throws IOException {
         if (!file.exists()) {
             throw new RuntimeException("The specified jar file does not exist.");
         }
@@ -64,30 +132,6 @@ public class WatermarkTask extends DefaultTask {
             throw new RuntimeException("The specified jar file path is a directory, not a file.");
         }
 
-        // Create multipart request body
-        RequestBody requestBody = new MultipartBody.Builder()
-                .setType(MultipartBody.FORM)
-                .addFormDataPart("jar", file.getName(),
-                        RequestBody.create(file, MediaType.parse(Files.probeContentType(file.toPath()))))
-                .build();
-
-        // Build the request
-        Request request = new Request.Builder()
-                .url(config.getWatermarkEndpoint())
-                .post(requestBody)
-                .addHeader("Authorization", "Bearer " + authToken)
-                .build();
-
-        // Execute the request
-        try (Response response = client.newCall(request).execute()) {
-            String responseBody = response.body().string();
-            if (!response.isSuccessful()) {
-                throw new RuntimeException("Unexpected code (" + response.code() + "): " + responseBody);
-            }
-            JsonObject jsonObject = JsonParser.parseString(responseBody).getAsJsonObject();
-            String requestId = jsonObject.get("request_id").getAsString();
-            String requestUser = jsonObject.get("request_user").getAsString();
-            return new WatermarkData(requestId, requestUser);
-        }
+        return WatermarkReader.read(file);
     }
 }
@@ -0,0 +1,49 @@
+package io.github.jake_moore.ros_plugin.util;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.function.LongConsumer;
+
+/**
+ * Reports the number of bytes another request body writes to the wire (after any compression).
+ */
+public class CountingRequestBody extends RequestBody {
+    private final @NotNull RequestBody delegate;
+    private final @NotNull LongConsumer onBytesWritten;
+
+    public CountingRequestBody(@NotNull RequestBody delegate, @NotNull LongConsumer onBytesWritten) {
+        this.delegate = delegate;
+        this.onBytesWritten = onBytesWritten;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return delegate.contentLength();
+    }
+
+    @Override
+    public void writeTo(@NotNull BufferedSink sink) throws IOException {
+        BufferedSink countingSink = Okio.buffer(new ForwardingSink(sink) {
+            @Override
+            public void write(@NotNull Buffer source, long byteCount) throws IOException {
+                super.write(source, byteCount);
+                onBytesWritten.accept(byteCount);
+            }
+        });
+        delegate.writeTo(countingSink);
+        // Flush (not close) the counting sink, the underlying sink is owned by OkHttp
+        countingSink.flush();
+    }
+}
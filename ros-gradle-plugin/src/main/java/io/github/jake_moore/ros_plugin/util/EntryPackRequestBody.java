@@ -0,0 +1,87 @@
+package io.github.jake_moore.ros_plugin.util;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Streams selected jar entries as an entry pack, without buffering them in memory.
+ * An entry pack is a sequence of records: [hash (64 hex chars)][length (8 bytes, big-endian)][content]
+ */
+public class EntryPackRequestBody extends RequestBody {
+    private final @NotNull File jarFile;
+    private final @NotNull List<JarManifestEntry> entries;
+    private final @NotNull Set<String> hashes;
+
+    /**
+     * @param jarFile the jar to read entries from
+     * @param entries the manifest of the jar
+     * @param hashes the content hashes of the entries to send (each is sent once)
+     */
+    public EntryPackRequestBody(@NotNull File jarFile, @NotNull List<JarManifestEntry> entries, @NotNull Set<String> hashes) {
+        this.jarFile = jarFile;
+        this.entries = entries;
+        this.hashes = hashes;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return MediaType.parse("application/octet-stream");
+    }
+
+    @Override
+    public void writeTo(@NotNull BufferedSink sink) throws IOException {
+        OutputStream out = sink.outputStream();
+        Set<String> written = new HashSet<>();
+        byte[] buffer = new byte[8192];
+
+        try (ZipFile zip = new ZipFile(jarFile)) {
+            for (JarManifestEntry manifestEntry : entries) {
+                if (!hashes.contains(manifestEntry.getHash()) || !written.add(manifestEntry.getHash())) {
+                    continue;
+                }
+                ZipEntry entry = zip.getEntry(manifestEntry.getName());
+                if (entry == null) {
+                    throw new IOException("Jar entry disappeared while uploading: " + manifestEntry.getName());
+                }
+
+                // The central directory almost always records the size, otherwise read the entry up front
+                long size = entry.getSize();
+                byte[] content = null;
+                if (size < 0) {
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        content = in.readAllBytes();
+                    }
+                    size = content.length;
+                }
+
+                out.write(manifestEntry.getHash().getBytes(StandardCharsets.US_ASCII));
+                out.write(ByteBuffer.allocate(Long.BYTES).putLong(size).array());
+                if (content != null) {
+                    out.write(content);
+                    continue;
+                }
+                try (InputStream in = zip.getInputStream(entry)) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,45 @@
+package io.github.jake_moore.ros_plugin.util;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compresses another request body while it is being written, so the compressed form never touches the disk.
+ * The backend recognizes the {@code application/gzip} content type and decompresses the part as it arrives.
+ */
+public class GzipRequestBody extends RequestBody {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final @NotNull RequestBody delegate;
+
+    public GzipRequestBody(@NotNull RequestBody delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return MediaType.parse("application/gzip");
+    }
+
+    @Override
+    public long contentLength() {
+        // Unknown until compressed, the request is sent using chunked transfer encoding
+        return -1;
+    }
+
+    @Override
+    public void writeTo(@NotNull BufferedSink sink) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(sink.outputStream(), BUFFER_SIZE);
+        BufferedSink gzipSink = Okio.buffer(Okio.sink(gzip));
+        delegate.writeTo(gzipSink);
+        gzipSink.flush();
+        // Finish (not close) the gzip stream, the underlying sink is owned by OkHttp
+        gzip.finish();
+    }
+}
@@ -0,0 +1,125 @@
+package io.github.jake_moore.ros_plugin.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Content hashing helpers for jar files.
+ * Hashes only depend on entry names and entry contents, so timestamps and entry order do not affect the result.
+ */
+public final class JarDigest {
+    private JarDigest() {}
+
+    /**
+     * Hashes every entry in the jar, in the order the entries appear in the jar.
+     *
+     * @return the name and hex SHA-256 (of the uncompressed content) for each entry
+     */
+    @NotNull
+    public static List<JarManifestEntry> entryManifest(@NotNull File jarFile) throws IOException {
+        List<JarManifestEntry> manifest = new ArrayList<>();
+        byte[] buffer = new byte[8192];
+        try (ZipFile zip = new ZipFile(jarFile)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                MessageDigest digest = sha256();
+                try (InputStream in = zip.getInputStream(entry)) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+                manifest.add(new JarManifestEntry(entry.getName(), HexFormat.of().formatHex(digest.digest())));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Hashes every entry in the jar, keyed by entry name (sorted).
+     *
+     * @return a map of entry name to the hex SHA-256 of that entry's uncompressed content
+     */
+    @NotNull
+    public static Map<String, String> hashEntries(@NotNull File jarFile) throws IOException {
+        Map<String, String> hashes = new TreeMap<>();
+        for (JarManifestEntry entry : entryManifest(jarFile)) {
+            hashes.put(entry.getName(), entry.getHash());
+        }
+        return hashes;
+    }
+
+    /**
+     * Computes a single hash for the jar contents, ignoring entry timestamps and ordering.
+     *
+     * @return the hex SHA-256 of the jar contents
+     */
+    @NotNull
+    public static String hashJar(@NotNull File jarFile) throws IOException {
+        MessageDigest digest = sha256();
+        for (Map.Entry<String, String> entry : hashEntries(jarFile).entrySet()) {
+            digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Hashes the raw bytes of a file, as sent over the wire.
+     *
+     * @return the hex SHA-256 of the file
+     */
+    @NotNull
+    public static String hashFile(@NotNull File file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Computes the cache key for an obfuscation request (the jar contents plus the raw obfuscator config).
+     *
+     * @return the hex SHA-256 cache key
+     */
+    @NotNull
+    public static String obfuscationKey(@NotNull File jarFile, @NotNull File configFile) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(hashJar(jarFile).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+        digest.update(Files.readAllBytes(configFile.toPath()));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    @NotNull
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available in this JVM", e);
+        }
+    }
+}
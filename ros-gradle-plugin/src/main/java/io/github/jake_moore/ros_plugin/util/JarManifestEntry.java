@@ -0,0 +1,15 @@
+package io.github.jake_moore.ros_plugin.util;
+
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A single jar entry, identified by the SHA-256 of its uncompressed content.
+ */
+@Data
+@RequiredArgsConstructor
+public class JarManifestEntry {
+    private final @NotNull String name;
+    private final @NotNull String hash;
+}
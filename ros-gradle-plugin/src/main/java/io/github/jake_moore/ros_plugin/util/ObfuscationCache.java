@@ -0,0 +1,89 @@
+package io.github.jake_moore.ros_plugin.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A local, content-addressed store of previously obfuscated jars.
+ * Entries are keyed by {@link JarDigest#obfuscationKey(File, File)} and evicted least-recently-used first
+ *  once the directory grows beyond its size limit.
+ */
+public class ObfuscationCache {
+    private final @NotNull File directory;
+    private final long maxSizeBytes;
+
+    public ObfuscationCache(@NotNull File directory, long maxSizeBytes) {
+        this.directory = directory;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Copies the cached jar for this key to the destination, if one exists.
+     *
+     * @return true if the cache contained the key
+     */
+    public synchronized boolean restore(@NotNull String key, @NotNull File destination) throws IOException {
+        File cached = getEntryFile(key);
+        if (!cached.isFile()) {
+            return false;
+        }
+
+        Files.copy(cached.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        // Touch the entry so that eviction treats it as recently used
+        if (!cached.setLastModified(System.currentTimeMillis())) {
+            System.out.println("\tUnable to update cache entry timestamp: " + cached.getAbsolutePath());
+        }
+        return true;
+    }
+
+    /**
+     * Stores a copy of the obfuscated jar under this key, then evicts old entries if the cache is too large.
+     */
+    public synchronized void store(@NotNull String key, @NotNull File obfuscatedJar) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create cache directory: " + directory.getAbsolutePath());
+        }
+
+        // Write to a temporary file first, so that a partially written entry is never used
+        File temp = File.createTempFile(key, ".tmp", directory);
+        try {
+            Files.copy(obfuscatedJar.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), getEntryFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+
+        evict();
+    }
+
+    private void evict() {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(".jar"));
+        if (entries == null) return;
+
+        long totalSize = Arrays.stream(entries).mapToLong(File::length).sum();
+        if (totalSize <= maxSizeBytes) return;
+
+        // Delete the least recently used entries until we are back under the limit
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (totalSize <= maxSizeBytes) break;
+            long size = entry.length();
+            if (entry.delete()) {
+                totalSize -= size;
+            } else {
+                System.out.println("\tUnable to evict cache entry: " + entry.getAbsolutePath());
+            }
+        }
+    }
+
+    @NotNull
+    private File getEntryFile(@NotNull String key) {
+        return new File(directory, key + ".jar");
+    }
+}
@@ -0,0 +1,241 @@
+package io.github.jake_moore.ros_plugin.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory index of obfuscated to original class and method names, built from an Allatori obfuscation log.
+ * Used to translate obfuscated stack traces locally, without sending them to the backend.
+ */
+public class StackTraceMapping {
+    // Parsed mappings are kept for the lifetime of the Gradle daemon, so repeated translations skip parsing
+    private static final int MAX_LOADED_MAPPINGS = 16;
+    private static final Map<String, StackTraceMapping> LOADED = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StackTraceMapping> eldest) {
+            return size() > MAX_LOADED_MAPPINGS;
+        }
+    };
+
+    // A stack frame: "at [module/]class.method(source)"
+    private static final Pattern FRAME = Pattern.compile("^(\\s*at\\s+)((?:[^\\s/(]*/)*)([\\w$.]+)\\.([\\w$<>]+)\\(([^)]*)\\)(.*)$");
+    // A (possibly) fully qualified class name anywhere else, such as the exception type of "Caused by: a.b: message"
+    private static final Pattern CLASS_NAME = Pattern.compile("[\\w$]+(?:\\.[\\w$]+)+");
+
+    private final Map<String, ClassMapping> classes = new HashMap<>();
+
+    private StackTraceMapping() {}
+
+    /**
+     * Loads (and indexes) the mapping file, reusing the index if this file was loaded before.
+     */
+    @NotNull
+    public static StackTraceMapping load(@NotNull File mappingFile) throws IOException {
+        final String key = mappingFile.getAbsolutePath() + ":" + mappingFile.lastModified() + ":" + mappingFile.length();
+        synchronized (LOADED) {
+            @Nullable StackTraceMapping mapping = LOADED.get(key);
+            if (mapping != null) {
+                return mapping;
+            }
+        }
+
+        StackTraceMapping mapping = parseAllatoriLog(mappingFile);
+        synchronized (LOADED) {
+            LOADED.put(key, mapping);
+        }
+        return mapping;
+    }
+
+    /**
+     * Parses the `mapping` section of an Allatori log, streaming it (the log can be large for big jars).
+     * Classes look like {@code <class old="com.example.Foo" new="a.b">}, with nested {@code method} and {@code source} elements.
+     */
+    @NotNull
+    public static StackTraceMapping parseAllatoriLog(@NotNull File logFile) throws IOException {
+        StackTraceMapping mapping = new StackTraceMapping();
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        // The log is only ever read, never trusted to reference anything else
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        try (InputStream in = Files.newInputStream(logFile.toPath())) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                @Nullable ClassMapping current = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.END_ELEMENT && "class".equals(reader.getLocalName())) {
+                        current = null;
+                        continue;
+                    }
+                    if (event != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+
+                    @Nullable String oldName = reader.getAttributeValue(null, "old");
+                    @Nullable String newName = reader.getAttributeValue(null, "new");
+                    if (oldName == null || newName == null) {
+                        continue;
+                    }
+
+                    switch (reader.getLocalName()) {
+                        case "class" -> {
+                            current = new ClassMapping(oldName);
+                            mapping.classes.put(newName, current);
+                        }
+                        case "method" -> {
+                            if (current != null) {
+                                current.methods.computeIfAbsent(newName, k -> new LinkedHashSet<>()).add(getMethodName(oldName));
+                            }
+                        }
+                        case "source" -> {
+                            if (current != null) {
+                                current.sources.put(newName, oldName);
+                            }
+                        }
+                        default -> {
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse mapping file: " + logFile.getAbsolutePath(), e);
+        }
+        return mapping;
+    }
+
+    /**
+     * @return the number of mapped classes
+     */
+    public int size() {
+        return classes.size();
+    }
+
+    /**
+     * Translates every obfuscated class, method, and source file name in the trace.
+     * Overloaded methods that share an obfuscated name are listed as alternatives ("first|second").
+     */
+    @NotNull
+    public String translate(@NotNull String trace) {
+        StringBuilder output = new StringBuilder(trace.length());
+        String[] lines = trace.split("\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                output.append('\n');
+            }
+            output.append(translateLine(lines[i]));
+        }
+        return output.toString();
+    }
+
+    @NotNull
+    private String translateLine(@NotNull String line) {
+        Matcher frame = FRAME.matcher(line);
+        if (!frame.matches()) {
+            return translateClassNames(line);
+        }
+
+        final String className = frame.group(3);
+        final String methodName = frame.group(4);
+        @Nullable ClassMapping classMapping = findClass(className);
+        String source = frame.group(5);
+        String method = methodName;
+        if (classMapping != null) {
+            Set<String> methods = classMapping.methods.get(methodName);
+            if (methods != null) {
+                method = String.join("|", methods);
+            }
+            source = translateSource(classMapping, source);
+        }
+        return frame.group(1) + frame.group(2) + translateClassName(className) + "." + method + "(" + source + ")" + translateClassNames(frame.group(6));
+    }
+
+    @NotNull
+    private String translateClassNames(@NotNull String text) {
+        Matcher matcher = CLASS_NAME.matcher(text);
+        StringBuilder output = new StringBuilder();
+        while (matcher.find()) {
+            matcher.appendReplacement(output, Matcher.quoteReplacement(translateClassName(matcher.group())));
+        }
+        matcher.appendTail(output);
+        return output.toString();
+    }
+
+    @NotNull
+    private String translateClassName(@NotNull String className) {
+        @Nullable ClassMapping exact = classes.get(className);
+        if (exact != null) {
+            return exact.originalName;
+        }
+        // Nested classes that weren't renamed themselves keep the (renamed) outer class as their prefix
+        int nested = className.indexOf('$');
+        if (nested > 0) {
+            @Nullable ClassMapping outer = classes.get(className.substring(0, nested));
+            if (outer != null) {
+                return outer.originalName + className.substring(nested);
+            }
+        }
+        return className;
+    }
+
+    @Nullable
+    private ClassMapping findClass(@NotNull String className) {
+        @Nullable ClassMapping exact = classes.get(className);
+        if (exact != null || className.indexOf('$') <= 0) {
+            return exact;
+        }
+        return classes.get(className.substring(0, className.indexOf('$')));
+    }
+
+    @NotNull
+    private static String translateSource(@NotNull ClassMapping classMapping, @NotNull String source) {
+        // Sources look like "File.java:12", "File.java", "Unknown Source", or "Native Method"
+        int colon = source.lastIndexOf(':');
+        String file = colon >= 0 ? source.substring(0, colon) : source;
+        @Nullable String original = classMapping.sources.get(file);
+        if (original == null) {
+            return source;
+        }
+        return colon >= 0 ? original + source.substring(colon) : original;
+    }
+
+    /**
+     * Allatori logs methods as "returnType name(parameters)", only the name appears in stack traces.
+     */
+    @NotNull
+    private static String getMethodName(@NotNull String signature) {
+        int paren = signature.indexOf('(');
+        String withoutParameters = paren >= 0 ? signature.substring(0, paren).trim() : signature.trim();
+        int space = withoutParameters.lastIndexOf(' ');
+        return space >= 0 ? withoutParameters.substring(space + 1) : withoutParameters;
+    }
+
+    private static class ClassMapping {
+        private final @NotNull String originalName;
+        // Obfuscated method name -> original method names (several, when overloads were renamed to the same name)
+        private final Map<String, Set<String>> methods = new HashMap<>();
+        private final Map<String, String> sources = new HashMap<>();
+
+        private ClassMapping(@NotNull String originalName) {
+            this.originalName = originalName;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package io.github.jake_moore.ros_plugin.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Translates the stack traces in a (possibly huge, or still growing) log file, streaming it line by line.
+ * Only stack trace lines are translated (frames, "Caused by:" lines, and the line that starts a trace), everything else is copied as is.
+ * Trace lines repeat a lot in production logs, so each distinct line is translated once: lines are collected into bounded batches
+ *  of unseen lines, and translations are remembered in a bounded cache. Memory use does not grow with the size of the log.
+ */
+public class TraceLogTranslator {
+    // Upper bounds of a single batch, and of the log lines waiting for that batch
+    private static final int MAX_BATCH_LINES = 2000;
+    private static final int MAX_WINDOW_CHARS = 4 * 1024 * 1024;
+    private static final int MAX_CACHED_LINES = 16384;
+    // Longer lines (without a line break) are split, so a corrupt log can't exhaust the memory
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+    private static final int FOLLOW_POLL_MS = 500;
+
+    // "\tat a.b.c(Source:1)", optionally followed by anything a logger appends (like "~[app.jar:1.0]")
+    private static final Pattern FRAME = Pattern.compile("^\\s+at\\s+\\S+\\(.*$");
+    private static final Pattern CONTINUATION = Pattern.compile("^\\s*(?:Caused by|Suppressed): .*|^\\s+\\.\\.\\. \\d+ (?:more|common frames omitted).*$");
+
+    /**
+     * Translates a batch of distinct trace lines, returning one translated line per input line (in order).
+     */
+    public interface BatchTranslator {
+        @NotNull
+        List<String> translate(@NotNull List<String> lines) throws IOException;
+    }
+
+    private final @NotNull BatchTranslator batchTranslator;
+    private final Map<String, String> cache = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_LINES;
+        }
+    };
+
+    // Lines read since the last flush (in order), and the trace lines among them that still need translating
+    private final List<String> windowLines = new ArrayList<>();
+    private final List<Boolean> windowTranslate = new ArrayList<>();
+    private final Set<String> pending = new LinkedHashSet<>();
+    private long windowChars = 0;
+    // The last line is held back, it only becomes a trace header once we see that a frame follows it
+    private @Nullable String previousLine = null;
+    private boolean previousIsTrace = false;
+
+    private long totalLines = 0;
+    private long traceLines = 0;
+    private long translatedLines = 0;
+    private int batches = 0;
+
+    public TraceLogTranslator(@NotNull BatchTranslator batchTranslator) {
+        this.batchTranslator = batchTranslator;
+    }
+
+    /**
+     * Translates the log file into the writer.
+     *
+     * @param follow keep reading as the file grows (like `tail -f`), until the thread is interrupted
+     */
+    public void translate(@NotNull File logFile, @NotNull Writer out, boolean follow) throws IOException {
+        try (FileInputStream in = new FileInputStream(logFile)) {
+            final FileChannel channel = in.getChannel();
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[64 * 1024];
+
+            while (true) {
+                int read = in.read(buffer);
+                if (read > 0) {
+                    int start = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n' || isSplitPoint(buffer[i], line.size() + (i - start))) {
+                            line.write(buffer, start, i - start);
+                            accept(decode(line), out);
+                            line.reset();
+                            start = buffer[i] == '\n' ? i + 1 : i;
+                        }
+                    }
+                    line.write(buffer, start, read - start);
+                    continue;
+                }
+
+                // End of the file (for now)
+                if (!follow) {
+                    break;
+                }
+                // Nothing new, so write what we have, a partial last line waits until it is complete
+                flush(out, true);
+                try {
+                    Thread.sleep(FOLLOW_POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (channel.size() < channel.position()) {
+                    // The log was truncated (or rotated in place), start over from the beginning
+                    channel.position(0);
+                    line.reset();
+                }
+            }
+
+            if (line.size() > 0) {
+                accept(decode(line), out);
+            }
+            flush(out, true);
+        }
+    }
+
+    /**
+     * Whether a line that is too long is split before this byte, only where a character starts (not within a multi-byte UTF-8 character).
+     * A character is at most 4 bytes, so invalid data (a run of continuation bytes) is still split a few bytes later.
+     */
+    private static boolean isSplitPoint(byte b, int lineBytes) {
+        if (lineBytes < MAX_LINE_BYTES) {
+            return false;
+        }
+        return (b & 0xC0) != 0x80 || lineBytes >= MAX_LINE_BYTES + 3;
+    }
+
+    /**
+     * @return a summary of the work done, such as "120000 lines, 3400 trace lines, 210 distinct lines translated in 1 batches"
+     */
+    @NotNull
+    public String summary() {
+        return totalLines + " lines, " + traceLines + " trace lines, " + translatedLines + " distinct lines translated in " + batches + " batches";
+    }
+
+    private void accept(@NotNull String line, @NotNull Writer out) throws IOException {
+        totalLines++;
+        boolean isFrame = FRAME.matcher(line).matches();
+        boolean isTrace = isFrame || CONTINUATION.matcher(line).matches();
+        if (isFrame && previousLine != null && !previousIsTrace) {
+            // The line before the first frame names the exception (possibly after a logger prefix)
+            previousIsTrace = true;
+        }
+        pushPrevious();
+        previousLine = line;
+        previousIsTrace = isTrace;
+
+        if (pending.size() >= MAX_BATCH_LINES || windowChars >= MAX_WINDOW_CHARS) {
+            flush(out, false);
+        }
+    }
+
+    private void pushPrevious() {
+        if (previousLine == null) {
+            return;
+        }
+        windowLines.add(previousLine);
+        windowTranslate.add(previousIsTrace);
+        windowChars += previousLine.length();
+        if (previousIsTrace) {
+            traceLines++;
+            if (!cache.containsKey(previousLine)) {
+                pending.add(previousLine);
+            }
+        }
+        previousLine = null;
+    }
+
+    /**
+     * Translates the pending lines (as one batch), and writes every line read so far.
+     *
+     * @param includePrevious also write the line held back for header detection
+     */
+    private void flush(@NotNull Writer out, boolean includePrevious) throws IOException {
+        if (includePrevious) {
+            pushPrevious();
+        }
+
+        Map<String, String> translations = new HashMap<>();
+        if (!pending.isEmpty()) {
+            List<String> lines = new ArrayList<>(pending);
+            List<String> translated = batchTranslator.translate(lines);
+            if (translated.size() != lines.size()) {
+                throw new IOException("Expected " + lines.size() + " translated lines, got " + translated.size());
+            }
+            for (int i = 0; i < lines.size(); i++) {
+                translations.put(lines.get(i), translated.get(i));
+            }
+            translatedLines += lines.size();
+            batches++;
+        }
+
+        for (int i = 0; i < windowLines.size(); i++) {
+            String line = windowLines.get(i);
+            if (windowTranslate.get(i)) {
+                @Nullable String translated = cache.get(line);
+                line = translated != null ? translated : translations.getOrDefault(line, line);
+            }
+            out.write(line);
+            out.write('\n');
+        }
+        out.flush();
+
+        // Only cache once written, so a line seen in this window can't be evicted before it is written
+        cache.putAll(translations);
+        windowLines.clear();
+        windowTranslate.clear();
+        pending.clear();
+        windowChars = 0;
+    }
+
+    @NotNull
+    private static String decode(@NotNull ByteArrayOutputStream line) {
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+}
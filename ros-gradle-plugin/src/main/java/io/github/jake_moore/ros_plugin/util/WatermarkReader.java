@@ -0,0 +1,66 @@
+package io.github.jake_moore.ros_plugin.util;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the watermark (`obfuscation.json`) that the backend adds to every obfuscated jar, without uploading the jar.
+ * {@link ZipFile} locates the entry through the central directory, so only that one entry is ever read and inflated.
+ */
+public final class WatermarkReader {
+    public static final String WATERMARK_ENTRY_NAME = "obfuscation.json";
+    // The watermark is a handful of short fields, anything larger is not one of ours
+    private static final int MAX_WATERMARK_SIZE = 64 * 1024;
+
+    private WatermarkReader() {}
+
+    /**
+     * @return the watermark data, or null if the jar has no (valid) watermark entry
+     * @throws IOException if the file is not a readable zip archive
+     */
+    @Nullable
+    public static WatermarkData read(@NotNull File jarFile) throws IOException {
+        try (ZipFile zip = new ZipFile(jarFile)) {
+            ZipEntry entry = zip.getEntry(WATERMARK_ENTRY_NAME);
+            if (entry == null || entry.isDirectory()) {
+                return null;
+            }
+
+            String json;
+            try (InputStream in = zip.getInputStream(entry)) {
+                byte[] data = in.readNBytes(MAX_WATERMARK_SIZE + 1);
+                if (data.length > MAX_WATERMARK_SIZE) {
+                    return null;
+                }
+                json = new String(data, StandardCharsets.UTF_8);
+            }
+            return parse(json);
+        }
+    }
+
+    @Nullable
+    private static WatermarkData parse(@NotNull String json) {
+        try {
+            JsonObject jsonObject = JsonParser.parseString(json).getAsJsonObject();
+            @Nullable JsonElement requestId = jsonObject.get("request_id");
+            @Nullable JsonElement requestUser = jsonObject.get("request_user");
+            if (requestId == null || requestUser == null) {
+                return null;
+            }
+            return new WatermarkData(requestId.getAsString(), requestUser.getAsString());
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
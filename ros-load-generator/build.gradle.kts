@@ -0,0 +1,39 @@
+plugins {
+    id("java")
+    id("application")
+}
+
+group = "io.github.jake-moore"
+version = "1.0.0"
+
+repositories {
+    mavenCentral()
+}
+
+// The load generator talks to the backend with the plugin's own client, so it measures what builds actually do
+// Only the client and util sources are shared, they don't depend on the Gradle API
+sourceSets {
+    main {
+        java {
+            srcDir("../ros-gradle-plugin/src/main/java")
+            include("io/github/jake_moore/ros_load/**")
+            include("io/github/jake_moore/ros_plugin/client/ObfuscationClient.java")
+            include("io/github/jake_moore/ros_plugin/client/ObfuscationMetrics.java")
+            include("io/github/jake_moore/ros_plugin/util/**")
+        }
+    }
+}
+
+dependencies {
+    implementation("com.squareup.okhttp3:okhttp:5.0.0-alpha.14")
+    implementation("com.google.code.gson:gson:2.11.0")
+
+    compileOnly("org.projectlombok:lombok:1.18.34")
+    annotationProcessor("org.projectlombok:lombok:1.18.34")
+}
+
+application {
+    mainClass.set("io.github.jake_moore.ros_load.LoadGenerator")
+}
+
+// Run with (from this directory): ../ros-gradle-plugin/gradlew run --args="--url=http://localhost:8080 --clients=8 --jobs=64"
@@ -0,0 +1,248 @@
+package io.github.jake_moore.ros_load;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import io.github.jake_moore.ros_plugin.client.ObfuscationClient;
+import io.github.jake_moore.ros_plugin.client.ObfuscationMetrics;
+import okhttp3.OkHttpClient;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Simulates a burst of CI builds against a (locally started) backend: N clients submit jars, wait for their jobs,
+ *  and download the results at the same time, using the same client code as the Gradle plugin.
+ * Reports p50/p99 latencies per phase, throughput, and the backend's memory use, so runs can be compared across versions.
+ * Start the backend with `ROS_OBFUSCATOR_TYPE=STUB` to load it without an obfuscator licence.
+ */
+public class LoadGenerator {
+    // Generous limits, a loaded backend is expected to queue jobs for a while
+    private static final int MAX_POLL_ATTEMPTS = 3600;
+    private static final int POLL_INTERVAL_MS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        final LoadOptions options = LoadOptions.parse(args);
+        final Path workDir = Files.createTempDirectory("ros-load-");
+        final PrintStream console = System.out;
+
+        final OkHttpClient httpClient = new OkHttpClient.Builder()
+                .connectTimeout(30, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .writeTimeout(30, TimeUnit.SECONDS)
+                .build();
+        try {
+            // One jar per client, so clients don't share (possibly deduplicated) inputs
+            console.println("Generating " + options.getClients() + " jars of " + options.getJarSizeMb() + " MB in " + workDir);
+            final File configFile = workDir.resolve("config.xml").toFile();
+            Files.writeString(configFile.toPath(), "<config>\n</config>\n");
+            final List<File> jars = new ArrayList<>();
+            for (int i = 0; i < options.getClients(); i++) {
+                File jar = workDir.resolve("input-" + i + ".jar").toFile();
+                createJar(jar, options.getJarSizeMb(), i);
+                jars.add(jar);
+            }
+
+            final ObfuscationClient obfuscationClient = new ObfuscationClient(httpClient, resolveEndpoint(options.getUrl(), "api/obfuscate"));
+            final List<ObfuscationMetrics> results = Collections.synchronizedList(new ArrayList<>());
+            final AtomicInteger nextJob = new AtomicInteger(0);
+
+            console.println("Running " + options.getJobs() + " jobs with " + options.getClients() + " concurrent clients against " + options.getUrl());
+            // The client logs every status update, that would drown the results, so it is silenced while the load runs
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            final long start = System.nanoTime();
+            try (@Nullable RssSampler rssSampler = options.getServerPid() != null ? new RssSampler(options.getServerPid()) : null) {
+                ExecutorService executor = Executors.newFixedThreadPool(options.getClients());
+                for (int c = 0; c < options.getClients(); c++) {
+                    final File jar = jars.get(c);
+                    executor.submit(() -> {
+                        int job;
+                        while ((job = nextJob.getAndIncrement()) < options.getJobs()) {
+                            ObfuscationMetrics metrics = runJob(obfuscationClient, options, jar, configFile, workDir, job);
+                            results.add(metrics);
+                            console.println("\t" + metrics.getProjectPath() + " " + metrics.getStatus() + ": " + metrics.summary());
+                        }
+                    });
+                }
+                executor.shutdown();
+                if (!executor.awaitTermination(MAX_POLL_ATTEMPTS * (long) POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    executor.shutdownNow();
+                    throw new RuntimeException("Load did not finish in time");
+                }
+
+                final long durationMs = (System.nanoTime() - start) / 1_000_000;
+                System.setOut(console);
+                JsonObject report = buildReport(options, results, durationMs, rssSampler);
+                printReport(report);
+                if (options.getOutput() != null) {
+                    File output = new File(options.getOutput());
+                    Files.writeString(output.toPath(), new GsonBuilder().setPrettyPrinting().create().toJson(report), StandardCharsets.UTF_8);
+                    System.out.println("Report written to " + output.getAbsolutePath());
+                }
+            }
+        } finally {
+            System.setOut(console);
+            httpClient.dispatcher().executorService().shutdown();
+            httpClient.connectionPool().evictAll();
+            deleteRecursively(workDir);
+        }
+    }
+
+    @NotNull
+    private static ObfuscationMetrics runJob(@NotNull ObfuscationClient obfuscationClient, @NotNull LoadOptions options,
+                                             @NotNull File jar, @NotNull File configFile, @NotNull Path workDir, int job) {
+        final ObfuscationMetrics metrics = new ObfuscationMetrics("job-" + job);
+        final ObfuscationClient jobClient = obfuscationClient.withLogPrefix("job-" + job).withMetrics(metrics);
+        final File outputJar = workDir.resolve("output-" + job + ".jar").toFile();
+        final long start = System.nanoTime();
+        try {
+            JsonObject jsonResponse = jobClient.submit(jar, configFile, options.isDeltaUpload(), false, options.isCompressUpload());
+            String requestID = jsonResponse.get("request_id").getAsString();
+            metrics.setRequestId(requestID);
+            jobClient.awaitCompletion(requestID, MAX_POLL_ATTEMPTS, POLL_INTERVAL_MS);
+            jobClient.downloadJar(requestID, outputJar);
+            metrics.setStatus("completed");
+        } catch (Throwable t) {
+            metrics.setStatus("failed: " + t.getMessage());
+        } finally {
+            metrics.setTotalMs((System.nanoTime() - start) / 1_000_000);
+            outputJar.delete();
+        }
+        return metrics;
+    }
+
+    @NotNull
+    private static JsonObject buildReport(@NotNull LoadOptions options, @NotNull List<ObfuscationMetrics> results, long durationMs, @Nullable RssSampler rssSampler) {
+        List<ObfuscationMetrics> completed = results.stream().filter(m -> "completed".equals(m.getStatus())).toList();
+
+        JsonObject report = new JsonObject();
+        report.addProperty("label", options.getLabel());
+        report.addProperty("url", options.getUrl());
+        report.addProperty("clients", options.getClients());
+        report.addProperty("jobs", options.getJobs());
+        report.addProperty("jar_size_mb", options.getJarSizeMb());
+        report.addProperty("completed", completed.size());
+        report.addProperty("failed", results.size() - completed.size());
+        report.addProperty("duration_ms", durationMs);
+        report.addProperty("throughput_jobs_per_minute", durationMs > 0 ? completed.size() * 60_000.0 / durationMs : 0);
+
+        JsonObject latencies = new JsonObject();
+        latencies.add("end_to_end", percentiles(completed, ObfuscationMetrics::getTotalMs));
+        latencies.add("queue_wait", percentiles(completed, ObfuscationMetrics::getQueueMs));
+        latencies.add("processing", percentiles(completed, ObfuscationMetrics::getProcessingMs));
+        latencies.add("upload", percentiles(completed, ObfuscationMetrics::getUploadMs));
+        latencies.add("download", percentiles(completed, ObfuscationMetrics::getDownloadMs));
+        report.add("latency_ms", latencies);
+
+        if (rssSampler != null) {
+            JsonObject rss = new JsonObject();
+            rss.addProperty("peak", rssSampler.getPeakMb());
+            rss.addProperty("average", rssSampler.getAverageMb());
+            report.add("server_rss_mb", rss);
+        }
+
+        // Keep the first few errors, they usually all share the same cause
+        results.stream().map(ObfuscationMetrics::getStatus)
+                .filter(status -> status != null && !"completed".equals(status))
+                .limit(5)
+                .forEach(status -> System.out.println("\t" + status));
+        return report;
+    }
+
+    @NotNull
+    private static JsonObject percentiles(@NotNull List<ObfuscationMetrics> results, @NotNull ToLongFunction<ObfuscationMetrics> phase) {
+        List<Long> values = results.stream().mapToLong(phase).filter(value -> value >= 0).sorted().boxed().toList();
+        JsonObject json = new JsonObject();
+        json.addProperty("p50", percentile(values, 50));
+        json.addProperty("p99", percentile(values, 99));
+        json.addProperty("max", values.isEmpty() ? -1 : values.get(values.size() - 1));
+        return json;
+    }
+
+    private static long percentile(@NotNull List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+        // Nearest-rank percentile
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+
+    private static void printReport(@NotNull JsonObject report) {
+        System.out.println("\n----------------------------------------------------------------");
+        System.out.println("Run: " + report.get("label").getAsString() + " (" + report.get("clients").getAsInt() + " clients, "
+                + report.get("jobs").getAsInt() + " jobs, " + report.get("jar_size_mb").getAsInt() + " MB jars)");
+        System.out.println("Completed: " + report.get("completed").getAsInt() + ", failed: " + report.get("failed").getAsInt()
+                + ", duration: " + report.get("duration_ms").getAsLong() + " ms"
+                + String.format(", throughput: %.1f jobs/min", report.get("throughput_jobs_per_minute").getAsDouble()));
+        System.out.println(String.format("%-12s %10s %10s %10s", "Phase (ms)", "p50", "p99", "max"));
+        JsonObject latencies = report.getAsJsonObject("latency_ms");
+        for (String phase : latencies.keySet()) {
+            JsonObject values = latencies.getAsJsonObject(phase);
+            System.out.println(String.format("%-12s %10d %10d %10d", phase,
+                    values.get("p50").getAsLong(), values.get("p99").getAsLong(), values.get("max").getAsLong()));
+        }
+        if (report.has("server_rss_mb")) {
+            JsonObject rss = report.getAsJsonObject("server_rss_mb");
+            System.out.println(String.format("Server RSS: peak %.1f MB, average %.1f MB", rss.get("peak").getAsDouble(), rss.get("average").getAsDouble()));
+        }
+        System.out.println("----------------------------------------------------------------");
+    }
+
+    /**
+     * Writes a jar of roughly the given size, with compressible (class-like) and random (resource-like) entries.
+     */
+    private static void createJar(@NotNull File jarFile, int sizeMb, long seed) throws IOException {
+        final long targetSize = sizeMb * 1024L * 1024L;
+        final Random random = new Random(seed);
+        final byte[] content = new byte[32 * 1024];
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(jarFile.toPath()))) {
+            for (int i = 0; jarFile.length() < targetSize; i++) {
+                boolean resource = i % 2 == 1;
+                zip.putNextEntry(new ZipEntry("com/example/p" + (i / 100) + "/" + (resource ? "Resource" + i + ".bin" : "Class" + i + ".class")));
+                if (resource) {
+                    random.nextBytes(content);
+                } else {
+                    for (int b = 0; b < content.length; b++) {
+                        content[b] = (byte) ('a' + random.nextInt(8) + b % 16);
+                    }
+                }
+                zip.write(content);
+                zip.closeEntry();
+                zip.flush();
+            }
+        }
+    }
+
+    @NotNull
+    private static String resolveEndpoint(@NotNull String url, @NotNull String path) {
+        return (url.endsWith("/") ? url : url + "/") + path;
+    }
+
+    private static void deleteRecursively(@NotNull Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.jake_moore.ros_load;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the load generator, given as {@code --name=value} (or {@code --flag}).
+ */
+@Getter
+public class LoadOptions {
+    private final @NotNull String url;
+    private final int clients;
+    private final int jobs;
+    private final int jarSizeMb;
+    private final @Nullable Long serverPid;
+    private final @NotNull String label;
+    private final @Nullable String output;
+    private final boolean deltaUpload;
+    private final boolean compressUpload;
+
+    private LoadOptions(@NotNull Map<String, String> options) {
+        this.url = options.getOrDefault("url", "http://localhost:8080");
+        this.clients = Integer.parseInt(options.getOrDefault("clients", "4"));
+        this.jobs = Integer.parseInt(options.getOrDefault("jobs", String.valueOf(clients * 4)));
+        this.jarSizeMb = Integer.parseInt(options.getOrDefault("jar-size-mb", "10"));
+        this.serverPid = options.containsKey("server-pid") ? Long.parseLong(options.get("server-pid")) : null;
+        this.label = options.getOrDefault("label", "unlabeled");
+        this.output = options.get("output");
+        this.deltaUpload = options.containsKey("delta");
+        this.compressUpload = options.containsKey("compress");
+        if (clients < 1 || jobs < 1 || jarSizeMb < 1) {
+            throw new IllegalArgumentException("--clients, --jobs, and --jar-size-mb must be positive");
+        }
+    }
+
+    @NotNull
+    public static LoadOptions parse(@NotNull String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg + "\n" + usage());
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        if (options.containsKey("help")) {
+            System.out.println(usage());
+            System.exit(0);
+        }
+        return new LoadOptions(options);
+    }
+
+    @NotNull
+    public static String usage() {
+        return """
+                Usage: LoadGenerator [options]
+                  --url=<backend url>     Backend to load (default: http://localhost:8080)
+                  --clients=<n>           Concurrent clients, all starting at once like a CI burst (default: 4)
+                  --jobs=<n>              Total jobs, spread over the clients (default: clients * 4)
+                  --jar-size-mb=<n>       Size of the generated jars (default: 10)
+                  --server-pid=<pid>      Backend process to sample the RSS of (optional)
+                  --label=<name>          Name of the run, e.g. the backend version (default: unlabeled)
+                  --output=<file>         Also write the report as json to this file (optional)
+                  --delta, --compress     Use delta or compressed uploads
+                The backend must be authorized with the ROS_GITHUB_PAT environment variable (a supplemental PAT works best).""";
+    }
+}
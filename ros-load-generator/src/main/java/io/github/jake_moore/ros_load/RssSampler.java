@@ -0,0 +1,72 @@
+package io.github.jake_moore.ros_load;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Samples the resident set size of the backend process while the load runs, using `ps` (Linux and macOS).
+ */
+public class RssSampler implements AutoCloseable {
+    private static final long SAMPLE_INTERVAL_MS = 500;
+
+    private final long pid;
+    private final Thread thread;
+    private long peakKb = 0;
+    private long totalKb = 0;
+    private int samples = 0;
+
+    public RssSampler(long pid) {
+        this.pid = pid;
+        this.thread = new Thread(this::run, "rss-sampler");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            @Nullable Long rssKb = readRssKb();
+            if (rssKb != null) {
+                synchronized (this) {
+                    peakKb = Math.max(peakKb, rssKb);
+                    totalKb += rssKb;
+                    samples++;
+                }
+            }
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Nullable
+    private Long readRssKb() {
+        try {
+            Process process = new ProcessBuilder("ps", "-o", "rss=", "-p", String.valueOf(pid)).start();
+            try (InputStream in = process.getInputStream()) {
+                String output = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+                return output.isEmpty() ? null : Long.parseLong(output);
+            }
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public synchronized double getPeakMb() {
+        return peakKb / 1024.0;
+    }
+
+    public synchronized double getAverageMb() {
+        return samples == 0 ? 0 : totalKb / 1024.0 / samples;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        thread.interrupt();
+        thread.join();
+    }
+}
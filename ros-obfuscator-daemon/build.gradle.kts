@@ -0,0 +1,15 @@
+plugins {
+    id("java")
+}
+
+group = "io.github.jake-moore"
+version = "1.0.0"
+
+// The daemon only needs the JDK, the obfuscator jar is loaded at runtime
+tasks.jar {
+    manifest {
+        attributes("Main-Class" to "io.github.jake_moore.ros_daemon.ObfuscatorDaemon")
+    }
+}
+
+// Build with (from this directory): ../ros-gradle-plugin/gradlew jar, then point ROS_DAEMON_PATH at build/libs/ros-obfuscator-daemon-1.0.0.jar
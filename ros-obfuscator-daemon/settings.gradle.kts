@@ -0,0 +1 @@
+rootProject.name = "ros-obfuscator-daemon"
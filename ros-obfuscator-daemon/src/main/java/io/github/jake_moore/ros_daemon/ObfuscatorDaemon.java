@@ -0,0 +1,233 @@
+package io.github.jake_moore.ros_daemon;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.security.Permission;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * A resident JVM that runs obfuscator commands for the backend, so a job doesn't pay for JVM startup, class loading and JIT warm-up.
+ * The obfuscator jar is loaded once, into a class loader that every job reuses, so its classes stay loaded and JIT compiled.
+ * Static state the obfuscator keeps is shared by the jobs of a daemon, the backend bounds it by replacing the daemon after
+ *  a number of jobs. System properties a job changes are restored after it.
+ * <p>
+ * Commands are read from stdin and answered on stdout, one tab separated line each, in order:
+ * <pre>
+ *   &lt;id&gt; obfuscate &lt;config path&gt;
+ *   &lt;id&gt; trace &lt;log path&gt; &lt;trace path&gt; &lt;output path&gt;
+ *   &lt;id&gt; ping
+ * </pre>
+ * Each is answered with {@code <id> ok|error <base64 of the job's output>}. Jobs run one at a time, with their own output,
+ *  and a job calling {@code System.exit} only ends that job. The backend restarts the daemon if it dies, and replaces it after a number of jobs.
+ */
+public class ObfuscatorDaemon {
+    private static final String OBFUSCATE_CLASS = "com.allatori.Obfuscate";
+    private static final String TRACE_CLASS = "com.allatori.StackTrace2";
+
+    // The real stdout only carries responses, everything printed by jobs (or stray threads) goes to the job output or stderr
+    private static final PrintStream protocol = new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8);
+    private static final PrintStream log = new PrintStream(new FileOutputStream(FileDescriptor.err), true, StandardCharsets.UTF_8);
+    private static final JobOutput jobOutput = new JobOutput();
+    private static volatile boolean inJob = false;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            log.println("Usage: ObfuscatorDaemon <obfuscator jar>");
+            System.exit(2);
+        }
+
+        final long start = System.nanoTime();
+        final File obfuscatorJar = new File(args[0]);
+        // The platform loader as parent, so the obfuscator can't see (or clash with) the daemon's classes
+        final URLClassLoader loader = new URLClassLoader(new URL[]{obfuscatorJar.toURI().toURL()}, ClassLoader.getPlatformClassLoader());
+        final Method obfuscate = findMain(loader, OBFUSCATE_CLASS);
+        final Method trace = findMain(loader, TRACE_CLASS);
+        final int preloaded = preloadClasses(obfuscatorJar, loader);
+
+        final PrintStream output = new PrintStream(jobOutput, true, StandardCharsets.UTF_8);
+        System.setOut(output);
+        System.setErr(output);
+        final boolean exitTrapped = trapExit();
+        log.println("Loaded " + obfuscatorJar.getName() + " (" + preloaded + " classes) in " + (System.nanoTime() - start) / 1_000_000 + " ms"
+                + (exitTrapped ? "" : ", System.exit can't be trapped (start the daemon with -Djava.security.manager=allow)"));
+
+        final BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+            final String[] parts = line.split("\t");
+            final String id = parts[0];
+            final String command = parts.length > 1 ? parts[1] : "";
+            final String[] commandArgs = Arrays.copyOfRange(parts, Math.min(2, parts.length), parts.length);
+
+            switch (command) {
+                case "obfuscate" -> respond(id, runJob(obfuscate, commandArgs, 1));
+                case "trace" -> respond(id, runJob(trace, commandArgs, 3));
+                case "ping" -> respond(id, new JobResult(true, "pong"));
+                default -> respond(id, new JobResult(false, "Unknown command: '" + command + "'"));
+            }
+        }
+        // The backend closed stdin, it no longer needs us
+        System.exit(0);
+    }
+
+    /**
+     * Runs the main method of an obfuscator class with the given arguments, capturing everything it prints.
+     */
+    private static JobResult runJob(Method main, String[] args, int expectedArgs) {
+        if (args.length != expectedArgs) {
+            return new JobResult(false, "Expected " + expectedArgs + " arguments, got " + args.length);
+        }
+
+        final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        // The obfuscator may configure itself through system properties, they don't carry over to the next job
+        final Properties properties = (Properties) System.getProperties().clone();
+        jobOutput.target = captured;
+        inJob = true;
+        final ClassLoader previousLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(main.getDeclaringClass().getClassLoader());
+        boolean success;
+        try {
+            main.invoke(null, (Object) args);
+            success = true;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof ExitException exit) {
+                success = exit.status == 0;
+                if (!success) {
+                    captured.writeBytes(("Exited with status " + exit.status + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            } else {
+                success = false;
+                e.getCause().printStackTrace(new PrintStream(captured, true, StandardCharsets.UTF_8));
+            }
+        } catch (ReflectiveOperationException e) {
+            success = false;
+            e.printStackTrace(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        } finally {
+            inJob = false;
+            System.setProperties(properties);
+            Thread.currentThread().setContextClassLoader(previousLoader);
+            jobOutput.target = log;
+        }
+        return new JobResult(success, captured.toString(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(String id, JobResult result) {
+        final String output = Base64.getEncoder().encodeToString(result.output.getBytes(StandardCharsets.UTF_8));
+        protocol.println(id + "\t" + (result.success ? "ok" : "error") + "\t" + output);
+    }
+
+    private static Method findMain(ClassLoader loader, String className) throws ReflectiveOperationException {
+        return Class.forName(className, false, loader).getMethod("main", String[].class);
+    }
+
+    /**
+     * Loads (without initializing) every class of the obfuscator, so the first job doesn't pay for reading and verifying them.
+     * @return the number of classes loaded
+     */
+    private static int preloadClasses(File jar, ClassLoader loader) throws IOException {
+        int loaded = 0;
+        try (JarFile jarFile = new JarFile(jar)) {
+            final Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                final String name = entries.nextElement().getName();
+                if (!name.endsWith(".class") || name.contains("-") || name.startsWith("META-INF/")) {
+                    continue;
+                }
+                try {
+                    Class.forName(name.substring(0, name.length() - 6).replace('/', '.'), false, loader);
+                    loaded++;
+                } catch (Throwable ignored) {
+                    // Optional classes (missing dependencies), they fail the same way when the obfuscator uses them
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Turns System.exit calls made by a job into an {@link ExitException}, so a job can't take the daemon down with it.
+     * The security manager is the only way to do that, it has to be allowed with {@code -Djava.security.manager=allow} since Java 18.
+     * @return whether exits are trapped
+     */
+    @SuppressWarnings("removal")
+    private static boolean trapExit() {
+        try {
+            System.setSecurityManager(new SecurityManager() {
+                @Override
+                public void checkPermission(Permission perm) {
+                    // Everything else is allowed, the obfuscator runs with the same rights as before
+                }
+
+                @Override
+                public void checkPermission(Permission perm, Object context) {
+                }
+
+                @Override
+                public void checkExit(int status) {
+                    if (inJob) {
+                        throw new ExitException(status);
+                    }
+                }
+            });
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private record JobResult(boolean success, String output) {
+    }
+
+    private static class ExitException extends SecurityException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private ExitException(int status) {
+            super("System.exit(" + status + ")");
+            this.status = status;
+        }
+    }
+
+    /**
+     * Forwards to the running job's output, or to stderr between jobs.
+     */
+    private static class JobOutput extends OutputStream {
+        private volatile OutputStream target = log;
+
+        @Override
+        public void write(int b) throws IOException {
+            target.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+    }
+}